@@ -37,6 +37,14 @@ android {
     buildFeatures {
         compose = true
     }
+    testOptions {
+        // Let JVM unit tests call android.util.Log from the storage and ingest classes
+        unitTests.isReturnDefaultValues = true
+        // Benchmark time bounds are only checked on request (./gradlew test -Pbenchmarks), see Benchmarks
+        unitTests.all {
+            it.systemProperty("benchmarks", project.hasProperty("benchmarks"))
+        }
+    }
 }
 
 dependencies {
@@ -0,0 +1,103 @@
+package com.example.s;
+
+import static org.junit.Assert.assertTrue;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares delivering samples to the UI thread with one Intent broadcast per sample
+ * (the old path) against the batched SampleHub subscription. Results go to logcat
+ * under the "SampleDeliveryBenchmark" tag.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SampleDeliveryBenchmark {
+
+    private static final String TAG = "SampleDeliveryBenchmark";
+    private static final String ACTION = "com.example.s.BENCHMARK_DATA";
+    private static final int SAMPLES = 2000;
+
+    @Test
+    public void broadcastVersusSampleHub() throws Exception {
+        Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+
+        double[] broadcast = measureBroadcast(context);
+        double[] hub = measureSampleHub();
+
+        Log.i(TAG, String.format("Broadcast: %.1f us latency/sample, %.1f us process CPU/sample", broadcast[0], broadcast[1]));
+        Log.i(TAG, String.format("SampleHub: %.1f us latency/sample, %.1f us process CPU/sample", hub[0], hub[1]));
+        assertTrue(hub[0] < broadcast[0]);
+    }
+
+    // One sample in flight at a time, so the latency is not hidden by queueing
+    private double[] measureBroadcast(Context context) throws InterruptedException {
+        Semaphore delivered = new Semaphore(0);
+        long[] latencySum = new long[1];
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context c, Intent intent) {
+                latencySum[0] += SystemClock.elapsedRealtimeNanos() - intent.getLongExtra("SENT", 0);
+                intent.getStringExtra("DATA").split(";");
+                delivered.release();
+            }
+        };
+        ContextCompat.registerReceiver(context, receiver, new IntentFilter(ACTION), ContextCompat.RECEIVER_NOT_EXPORTED);
+        try {
+            long cpuStart = Process.getElapsedCpuTime();
+            for (int i = 0; i < SAMPLES; i++) {
+                Intent intent = new Intent(ACTION);
+                intent.setPackage(context.getPackageName());
+                intent.putExtra("DATA", "72;98;36;0");
+                intent.putExtra("SENT", SystemClock.elapsedRealtimeNanos());
+                context.sendBroadcast(intent);
+                assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+            }
+            long cpuMs = Process.getElapsedCpuTime() - cpuStart;
+            return new double[]{latencySum[0] / 1e3 / SAMPLES, cpuMs * 1e3 / SAMPLES};
+        } finally {
+            context.unregisterReceiver(receiver);
+        }
+    }
+
+    private double[] measureSampleHub() throws InterruptedException {
+        SampleHub hub = new SampleHub(4096, 256);
+        Handler mainHandler = new Handler(Looper.getMainLooper());
+        Semaphore delivered = new Semaphore(0);
+        long[] latencySum = new long[1];
+        SampleHub.Subscriber subscriber = (batch, firstSequence) -> {
+            long now = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < batch.size(); i++) {
+                latencySum[0] += now - batch.timestamps[i];
+            }
+            delivered.release(batch.size());
+        };
+        hub.subscribe(subscriber, mainHandler::post, -1);
+
+        long cpuStart = Process.getElapsedCpuTime();
+        for (int i = 0; i < SAMPLES; i++) {
+            // The timestamp carries the publish time to measure the latency
+            hub.publish(SystemClock.elapsedRealtimeNanos(), 72, 98, 360, false);
+            assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+        }
+        long cpuMs = Process.getElapsedCpuTime() - cpuStart;
+        hub.unsubscribe(subscriber);
+        return new double[]{latencySum[0] / 1e3 / SAMPLES, cpuMs * 1e3 / SAMPLES};
+    }
+}
@@ -0,0 +1,92 @@
+package com.example.s;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import android.app.Instrumentation;
+import android.os.Build;
+import android.os.StrictMode;
+import android.os.SystemClock;
+import android.os.strictmode.Violation;
+
+import androidx.test.core.app.ActivityScenario;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Opens the health storage the way the app does on launch, with StrictMode watching the
+ * main thread, and fails if the main thread reads or writes the disk inside the storage classes.
+ */
+@RunWith(AndroidJUnit4.class)
+public class StorageOpenStrictModeTest {
+
+    // Disk access from the activity itself (its preferences) is not part of the open path
+    private static final Set<String> STORAGE_CLASSES = new HashSet<>(Arrays.asList(
+            "com.example.s.HealthStorage", "com.example.s.HealthDataStore", "com.example.s.HealthDataWriter",
+            "com.example.s.HistoryRing", "com.example.s.HistoryQuery", "com.example.s.HistoryLoader",
+            "com.example.s.Rollups", "com.example.s.RollupStore"));
+
+    @Test
+    public void launchDoesNotTouchTheDiskOnTheMainThread() throws Exception {
+        // The listener penalty needs API 28; an already open store would have nothing left to check
+        assumeTrue(Build.VERSION.SDK_INT >= Build.VERSION_CODES.P);
+        assumeTrue(HealthStorage.peek() == null);
+
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        List<Violation> violations = Collections.synchronizedList(new ArrayList<>());
+        StrictMode.ThreadPolicy[] previous = new StrictMode.ThreadPolicy[1];
+        instrumentation.runOnMainSync(() -> {
+            previous[0] = StrictMode.getThreadPolicy();
+            StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                    .detectDiskReads()
+                    .detectDiskWrites()
+                    .penaltyListener(Runnable::run, violations::add)
+                    .build());
+        });
+        try (ActivityScenario<MainActivity> ignored = ActivityScenario.launch(MainActivity.class)) {
+            long deadline = SystemClock.uptimeMillis() + 10_000;
+            while (HealthStorage.peek() == null && SystemClock.uptimeMillis() < deadline) {
+                SystemClock.sleep(50);
+            }
+            assertNotNull("Storage did not open", HealthStorage.peek());
+            // Let the main thread show what the store was opened for
+            instrumentation.waitForIdleSync();
+        } finally {
+            instrumentation.runOnMainSync(() -> StrictMode.setThreadPolicy(previous[0]));
+        }
+
+        synchronized (violations) {
+            for (Violation violation : violations) {
+                assertTrue(describe(violation), !inStorage(violation));
+            }
+        }
+    }
+
+    private static boolean inStorage(Violation violation) {
+        for (StackTraceElement frame : violation.getStackTrace()) {
+            String name = frame.getClassName();
+            int nested = name.indexOf('$');
+            if (STORAGE_CLASSES.contains(nested < 0 ? name : name.substring(0, nested))) return true;
+        }
+        return false;
+    }
+
+    private static String describe(Violation violation) {
+        StringBuilder text = new StringBuilder("Main thread disk access: ").append(violation);
+        for (StackTraceElement frame : violation.getStackTrace()) {
+            text.append("\n  at ").append(frame);
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.s;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When and how many acknowledgement bytes ("*") to send back to the sensor. Each ack
+ * byte lets the sensor send one more frame: the firmware sends a frame and waits for
+ * its "*", so acking one read at a time is stop-and-wait, one round trip per frame.
+ * The windowed policies grant several frames ahead and return the acks in one write.
+ * A policy instance serves one connection; onChunk runs on the reader thread.
+ */
+public interface AckPolicy {
+
+    // Ack bytes are written from this array, never allocated per write
+    byte[] ACKS = filledAcks(256);
+
+    static byte[] filledAcks(int count) {
+        byte[] acks = new byte[count];
+        Arrays.fill(acks, (byte) '*');
+        return acks;
+    }
+
+    static void writeAcks(OutputStream out, int count) throws IOException {
+        while (count > 0) {
+            int n = Math.min(count, ACKS.length);
+            out.write(ACKS, 0, n);
+            count -= n;
+        }
+        out.flush();
+    }
+
+    // Called once the link is up, before the first read
+    void onConnected(OutputStream out) throws IOException;
+
+    // Called after every read with data, with the number of whole frames it completed
+    void onChunk(OutputStream out, int frames) throws IOException;
+
+    void onDisconnected();
+
+    /** One ack per read with data, the original behaviour. */
+    final class PerRead implements AckPolicy {
+        @Override
+        public void onConnected(OutputStream out) {
+        }
+
+        @Override
+        public void onChunk(OutputStream out, int frames) throws IOException {
+            out.write(ACKS, 0, 1);
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    }
+
+    /** Grants a window of n frames, then acks all n in one write each time n more have arrived. */
+    final class EveryNFrames implements AckPolicy {
+        private final int n;
+        private int received;
+
+        public EveryNFrames(int n) {
+            if (n <= 0) throw new IllegalArgumentException("n must be positive");
+            this.n = n;
+        }
+
+        @Override
+        public void onConnected(OutputStream out) throws IOException {
+            received = 0;
+            writeAcks(out, n);
+        }
+
+        @Override
+        public void onChunk(OutputStream out, int frames) throws IOException {
+            received += frames;
+            if (received >= n) {
+                int acks = received - received % n;
+                received -= acks;
+                writeAcks(out, acks);
+            }
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    }
+
+    /**
+     * Grants a window of frames, then every interval acks what arrived since the last
+     * ack. The acks come from a timer because the reader is blocked when the sensor
+     * has used up its window.
+     */
+    final class Timed implements AckPolicy {
+        private final long intervalMs;
+        private final int window;
+        private final Object lock = new Object();
+        private ScheduledExecutorService timer;
+        private int received; // Guarded by lock
+
+        public Timed(long intervalMs, int window) {
+            if (intervalMs <= 0 || window <= 0) throw new IllegalArgumentException("interval and window must be positive");
+            this.intervalMs = intervalMs;
+            this.window = window;
+        }
+
+        @Override
+        public void onConnected(OutputStream out) throws IOException {
+            synchronized (lock) {
+                received = 0;
+            }
+            writeAcks(out, window);
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "AckTimer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timer.scheduleAtFixedRate(() -> {
+                int acks;
+                synchronized (lock) {
+                    acks = received;
+                    received = 0;
+                }
+                if (acks == 0) return;
+                try {
+                    writeAcks(out, acks);
+                } catch (IOException e) {
+                    timer.shutdown(); // The reader sees the broken link and reconnects
+                }
+            }, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onChunk(OutputStream out, int frames) {
+            synchronized (lock) {
+                received += frames;
+            }
+        }
+
+        @Override
+        public void onDisconnected() {
+            if (timer != null) timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Credit-based window: keeps the sensor allowed to send up to k frames ahead and
+     * tops the credit back up in one write once half of it has been used.
+     */
+    final class Credit implements AckPolicy {
+        private final int k;
+        private int outstanding; // Frames the sensor may still send
+
+        public Credit(int k) {
+            if (k <= 0) throw new IllegalArgumentException("k must be positive");
+            this.k = k;
+        }
+
+        @Override
+        public void onConnected(OutputStream out) throws IOException {
+            outstanding = k;
+            writeAcks(out, k);
+        }
+
+        @Override
+        public void onChunk(OutputStream out, int frames) throws IOException {
+            outstanding = Math.max(0, outstanding - frames);
+            if (outstanding <= k / 2) {
+                writeAcks(out, k - outstanding);
+                outstanding = k;
+            }
+        }
+
+        @Override
+        public void onDisconnected() {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.s;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns a per-sample condition (e.g. the bad-posture flag) into alerts. An alert is
+ * raised once the condition has held for the rule's raise delay and cleared once it
+ * has been absent for the clear delay, so short blips either way change nothing.
+ * Each raise is an episode; episodes closer than the rule's minimum interval to the
+ * last audible one are reported as silent updates to be merged into the notification
+ * already posted. Not thread-safe: feed it from the thread that decodes the frames.
+ */
+public final class AlertEngine {
+
+    public interface Listener {
+        // episodes counts the raises merged into the current notification, 1 for a fresh one
+        void onRaised(AlertRule rule, int episodes, boolean audible);
+
+        void onCleared(AlertRule rule);
+    }
+
+    private static final class RuleState {
+        long conditionSince = -1; // Start of the current run of samples with the condition
+        long absentSince = -1; // Start of the current run without it, while raised
+        boolean raised;
+        long lastAudible = -1;
+        int episodes;
+    }
+
+    private final Listener listener;
+    private final Map<AlertRule, RuleState> states = new HashMap<>();
+    private long audibleAlerts;
+    private long silentUpdates;
+
+    public AlertEngine(Listener listener, AlertRule... rules) {
+        this.listener = listener;
+        for (AlertRule rule : rules) {
+            states.put(rule, new RuleState());
+        }
+    }
+
+    public void update(AlertRule rule, boolean condition, long timestamp) {
+        RuleState state = states.get(rule);
+        if (state == null) throw new IllegalArgumentException("Unknown alert rule " + rule);
+
+        if (condition) {
+            state.absentSince = -1;
+            if (state.conditionSince < 0) state.conditionSince = timestamp;
+            if (!state.raised && timestamp - state.conditionSince >= rule.raiseAfterMs) {
+                raise(rule, state, timestamp);
+            }
+        } else {
+            state.conditionSince = -1;
+            if (state.raised) {
+                if (state.absentSince < 0) state.absentSince = timestamp;
+                if (timestamp - state.absentSince >= rule.clearAfterMs) {
+                    state.raised = false;
+                    state.absentSince = -1;
+                    listener.onCleared(rule);
+                }
+            }
+        }
+    }
+
+    // Forgets the pending runs, e.g. after a reconnect, so samples across a gap are not joined
+    public void reset() {
+        for (RuleState state : states.values()) {
+            state.conditionSince = -1;
+            state.absentSince = -1;
+        }
+    }
+
+    public boolean isRaised(AlertRule rule) {
+        RuleState state = states.get(rule);
+        return state != null && state.raised;
+    }
+
+    public long getAudibleAlerts() {
+        return audibleAlerts;
+    }
+
+    public long getSilentUpdates() {
+        return silentUpdates;
+    }
+
+    private void raise(AlertRule rule, RuleState state, long timestamp) {
+        state.raised = true;
+        boolean audible = state.lastAudible < 0 || timestamp - state.lastAudible >= rule.minIntervalMs;
+        if (audible) {
+            state.lastAudible = timestamp;
+            state.episodes = 1;
+            audibleAlerts++;
+        } else {
+            state.episodes++;
+            silentUpdates++;
+        }
+        listener.onRaised(rule, state.episodes, audible);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.s;
+
+/**
+ * Timing of one alert type: how long its condition must hold before the alert is
+ * raised, how long it must be gone before the alert clears, and the minimum time
+ * between two audible notifications. Episodes inside that interval only update the
+ * notification already shown.
+ */
+public final class AlertRule {
+
+    public final String name;
+    public final long raiseAfterMs;
+    public final long clearAfterMs;
+    public final long minIntervalMs;
+
+    public AlertRule(String name, long raiseAfterMs, long clearAfterMs, long minIntervalMs) {
+        if (raiseAfterMs < 0 || clearAfterMs < 0 || minIntervalMs < 0) {
+            throw new IllegalArgumentException("Alert delays must not be negative");
+        }
+        this.name = name;
+        this.raiseAfterMs = raiseAfterMs;
+        this.clearAfterMs = clearAfterMs;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
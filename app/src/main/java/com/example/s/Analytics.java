@@ -0,0 +1,80 @@
+package com.example.s;
+
+import java.util.Locale;
+
+/**
+ * Streaming statistics of one sensor, updated once per accepted sample on the reader
+ * thread: resting heart rate over the last hour, average saturation over the last five
+ * minutes and the temperature trend. The screens take a Summary, never the samples.
+ */
+public final class Analytics {
+
+    private static final long HEART_RATE_WINDOW_MS = 60 * 60 * 1000;
+    private static final long SATURATION_WINDOW_MS = 5 * 60 * 1000;
+    private static final long TEMPERATURE_WINDOW_MS = 30 * 60 * 1000;
+
+    // Resting heart rate: the 10th percentile of the last hour, low but not the odd outlier
+    private static final double RESTING_PERCENTILE = 0.10;
+    // Temperature change that counts as a trend, in tenths of a degree
+    private static final int TREND_THRESHOLD = 1;
+
+    // Capacities fit the sensor's four frames a second with room to spare, about 330 KB in all
+    private final WindowedStats heartRate = new WindowedStats(HEART_RATE_WINDOW_MS, 16_384, 0, 255, 30_000, 10 * 60_000);
+    private final WindowedStats saturation = new WindowedStats(SATURATION_WINDOW_MS, 2048, 0, 100, 30_000, 5 * 60_000);
+    private final WindowedStats temperature = new WindowedStats(TEMPERATURE_WINDOW_MS, 8192, 300, 450, 60_000, 15 * 60_000);
+
+    public synchronized void add(long timestamp, int heartRate, int saturation, int temperature) {
+        this.heartRate.add(timestamp, heartRate);
+        this.saturation.add(timestamp, saturation);
+        this.temperature.add(timestamp, temperature);
+    }
+
+    public synchronized Summary summary(long now) {
+        heartRate.expire(now);
+        saturation.expire(now);
+        temperature.expire(now);
+        return new Summary(heartRate.count(),
+                heartRate.fastAverage(), heartRate.percentile(RESTING_PERCENTILE), heartRate.min(), heartRate.max(),
+                saturation.mean(), saturation.min(),
+                temperature.fastAverage() / 10, (temperature.fastAverage() - temperature.slowAverage()) / 10);
+    }
+
+    /** Immutable snapshot for the UI. Fields are NaN or Integer.MIN_VALUE when there is no data yet. */
+    public static final class Summary {
+        public final int samples; // In the last hour
+        public final double heartRate; // Smoothed over about half a minute
+        public final int restingHeartRate;
+        public final int minHeartRate;
+        public final int maxHeartRate;
+        public final double saturation5Min;
+        public final int minSaturation5Min;
+        public final double temperature; // Degrees, smoothed over about a minute
+        public final double temperatureTrend; // Degrees, short-term minus 15-minute average
+
+        Summary(int samples, double heartRate, int restingHeartRate, int minHeartRate, int maxHeartRate,
+                double saturation5Min, int minSaturation5Min, double temperature, double temperatureTrend) {
+            this.samples = samples;
+            this.heartRate = heartRate;
+            this.restingHeartRate = restingHeartRate;
+            this.minHeartRate = minHeartRate;
+            this.maxHeartRate = maxHeartRate;
+            this.saturation5Min = saturation5Min;
+            this.minSaturation5Min = minSaturation5Min;
+            this.temperature = temperature;
+            this.temperatureTrend = temperatureTrend;
+        }
+
+        // A few lines for the main screen, empty without data
+        public String toText() {
+            if (samples == 0) return "";
+            String trend = temperatureTrend * 10 >= TREND_THRESHOLD ? "in aumento"
+                    : temperatureTrend * 10 <= -TREND_THRESHOLD ? "in calo" : "stabile";
+            StringBuilder text = new StringBuilder(String.format(Locale.ITALY,
+                    "FC a riposo (1 h): %d (min %d, max %d)%n", restingHeartRate, minHeartRate, maxHeartRate));
+            if (!Double.isNaN(saturation5Min)) {
+                text.append(String.format(Locale.ITALY, "Saturazione media (5 min): %.1f%n", saturation5Min));
+            }
+            return text.append(String.format(Locale.ITALY, "Temperatura: %.1f, %s", temperature, trend)).toString();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.s;
+
+/**
+ * Streaming classifier of the samples of one sensor, in constant memory per metric.
+ * Each metric keeps a robust baseline (an exponentially weighted mean and mean
+ * absolute deviation) and flags a sample as an artifact when it is physically
+ * impossible, when it jumps away from the baseline without the following samples
+ * confirming the new level (a spike), or when the heart rate stays exactly flat for a
+ * minute (a stuck sensor). A sustained change is accepted after a few consecutive
+ * samples on the same side, like a CUSUM that restarts at every normal sample; the
+ * jump masks tell the caller which held-back samples the change makes real. Samples
+ * that are not artifacts are clinically notable when outside the clinical range.
+ */
+public final class AnomalyDetector {
+
+    // In order of precedence when the metrics of a sample disagree
+    public enum Verdict { VALID, NOTABLE, STUCK, ARTIFACT, OUT_OF_RANGE }
+
+    // Bits of the jump masks
+    public static final int HEART_RATE = 1;
+    public static final int SATURATION = 2;
+    public static final int TEMPERATURE = 4;
+
+    // Deviation from the baseline, in robust standard deviations, that makes a sample an outlier
+    static final double SPIKE_Z = 6;
+    // Consecutive outliers on the same side that confirm a real change of level
+    static final int CONFIRM_SAMPLES = 4;
+    static final int WARMUP_SAMPLES = 8;
+    static final double ALPHA = 0.05; // Baseline smoothing per sample, about 5 s at 4 Hz
+    static final long GAP_RESET_MS = 60_000; // After a longer gap the baseline starts over
+
+    /** The baseline and detector state of one metric. */
+    static final class Signal {
+        private final int hardMin, hardMax; // Outside: impossible, the sensor is not reading
+        private final int clinicalMin, clinicalMax; // Outside: notable
+        private final double minSigma;
+        private final long flatlineMs; // 0 to never flag a flat signal
+
+        private double baseline;
+        private double deviation;
+        private int samples;
+        private int outliers; // Consecutive, signed by side
+        private boolean confirmed; // The last sample confirmed the run of outliers as a new level
+        private boolean spike; // The last sample ended a run of outliers without confirming it
+        private int lastValue = Integer.MIN_VALUE;
+        private long flatSince;
+        private long lastTimestamp;
+
+        Signal(int hardMin, int hardMax, int clinicalMin, int clinicalMax, double minSigma, long flatlineMs) {
+            this.hardMin = hardMin;
+            this.hardMax = hardMax;
+            this.clinicalMin = clinicalMin;
+            this.clinicalMax = clinicalMax;
+            this.minSigma = minSigma;
+            this.flatlineMs = flatlineMs;
+        }
+
+        void reset() {
+            samples = 0;
+            outliers = 0;
+            lastValue = Integer.MIN_VALUE;
+        }
+
+        Verdict classify(long timestamp, int value) {
+            int run = outliers;
+            confirmed = false;
+            Verdict verdict = judge(timestamp, value);
+            spike = run != 0 && !confirmed && Integer.signum(outliers) != Integer.signum(run);
+            return verdict;
+        }
+
+        private Verdict judge(long timestamp, int value) {
+            if (value < hardMin || value > hardMax) return Verdict.OUT_OF_RANGE;
+            if (samples > 0 && timestamp - lastTimestamp > GAP_RESET_MS) reset();
+            lastTimestamp = timestamp;
+
+            if (value != lastValue) {
+                lastValue = value;
+                flatSince = timestamp;
+            } else if (flatlineMs > 0 && timestamp - flatSince >= flatlineMs) {
+                return Verdict.STUCK;
+            }
+
+            if (samples < WARMUP_SAMPLES) {
+                // Plain running mean until the deviation means something
+                samples++;
+                baseline += (value - baseline) / samples;
+                deviation += (Math.abs(value - baseline) - deviation) / samples;
+                return clinical(value);
+            }
+
+            double sigma = Math.max(minSigma, 1.4826 * deviation);
+            double z = (value - baseline) / sigma;
+            if (Math.abs(z) > SPIKE_Z) {
+                int side = z > 0 ? 1 : -1;
+                outliers = Integer.signum(outliers) == side ? outliers + side : side;
+                if (Math.abs(outliers) < CONFIRM_SAMPLES) return Verdict.ARTIFACT;
+                // Confirmed: the level really moved, follow it
+                baseline = value;
+                outliers = 0;
+                confirmed = true;
+                return clinical(value);
+            }
+            outliers = 0;
+            baseline += ALPHA * (value - baseline);
+            deviation += ALPHA * (Math.abs(value - baseline) - deviation);
+            return clinical(value);
+        }
+
+        private Verdict clinical(int value) {
+            return value < clinicalMin || value > clinicalMax ? Verdict.NOTABLE : Verdict.VALID;
+        }
+    }
+
+    // Heart rate in bpm, flat for a minute is a stuck sensor; saturation in %; temperature in tenths of a degree
+    private final Signal heartRate = new Signal(20, 250, 40, 130, 2, 60_000);
+    private final Signal saturation = new Signal(50, 100, 90, 100, 1, 0);
+    private final Signal temperature = new Signal(250, 450, 350, 380, 2, 0);
+
+    private Verdict last = Verdict.VALID;
+    private boolean notableHeartRate, notableSaturation, notableTemperature;
+    private boolean stuck;
+    private int jumps, confirmed, spikes;
+
+    // Forgets the baselines, e.g. when another patient wears the sensor
+    public void reset() {
+        heartRate.reset();
+        saturation.reset();
+        temperature.reset();
+    }
+
+    // The worst verdict among the three metrics: out of range, then artifact, then stuck, then notable
+    public Verdict classify(long timestamp, int heartRate, int saturation, int temperature) {
+        Verdict hr = this.heartRate.classify(timestamp, heartRate);
+        Verdict spo2 = this.saturation.classify(timestamp, saturation);
+        Verdict temp = this.temperature.classify(timestamp, temperature);
+        notableHeartRate = hr == Verdict.NOTABLE;
+        notableSaturation = spo2 == Verdict.NOTABLE;
+        notableTemperature = temp == Verdict.NOTABLE;
+        stuck = hr == Verdict.STUCK;
+        jumps = mask(hr == Verdict.ARTIFACT, spo2 == Verdict.ARTIFACT, temp == Verdict.ARTIFACT);
+        confirmed = mask(this.heartRate.confirmed, this.saturation.confirmed, this.temperature.confirmed);
+        spikes = mask(this.heartRate.spike, this.saturation.spike, this.temperature.spike);
+        last = worst(worst(hr, spo2), temp);
+        return last;
+    }
+
+    // The same, as a rule of a ValidationChain: notable samples pass, isNotable tells them apart
+    public RejectReason check(long timestamp, int heartRate, int saturation, int temperature) {
+        switch (classify(timestamp, heartRate, saturation, temperature)) {
+            case OUT_OF_RANGE:
+                return RejectReason.OUT_OF_RANGE;
+            case ARTIFACT:
+                return RejectReason.ARTIFACT;
+            case STUCK:
+                return RejectReason.FLATLINE;
+            default:
+                return null;
+        }
+    }
+
+    // The last sample is an artifact only because of jumps the next samples may still confirm
+    public boolean isUnconfirmedJump() {
+        return last == Verdict.ARTIFACT && !stuck;
+    }
+
+    // Metrics whose jump from the baseline made the last sample an artifact
+    public int getJumps() {
+        return jumps;
+    }
+
+    // Metrics whose earlier jumps the last sample confirmed as a new level
+    public int getConfirmed() {
+        return confirmed;
+    }
+
+    // Metrics whose earlier jumps the last sample showed to be spikes
+    public int getSpikes() {
+        return spikes;
+    }
+
+    public boolean isNotable() {
+        return last == Verdict.NOTABLE;
+    }
+
+    // Which metrics made the last sample notable, for the alert text
+    public boolean isHeartRateNotable() {
+        return last == Verdict.NOTABLE && notableHeartRate;
+    }
+
+    public boolean isSaturationNotable() {
+        return last == Verdict.NOTABLE && notableSaturation;
+    }
+
+    public boolean isTemperatureNotable() {
+        return last == Verdict.NOTABLE && notableTemperature;
+    }
+
+    private static int mask(boolean heartRate, boolean saturation, boolean temperature) {
+        return (heartRate ? HEART_RATE : 0) | (saturation ? SATURATION : 0) | (temperature ? TEMPERATURE : 0);
+    }
+
+    private static Verdict worst(Verdict a, Verdict b) {
+        return a.ordinal() >= b.ordinal() ? a : b;
+    }
+}
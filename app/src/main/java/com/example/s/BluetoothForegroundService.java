@@ -8,66 +8,321 @@ import android.app.PendingIntent;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.app.Service;
 import android.content.pm.PackageManager;
+import android.os.Binder;
 import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
 import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
-import androidx.annotation.RequiresPermission;
 import androidx.core.app.ActivityCompat;
 import androidx.core.app.NotificationCompat;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class BluetoothForegroundService extends Service {
     private static final String CHANNEL_ID = "BluetoothServiceChannel";
     private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
-    public static final String HEARTBEATS_FILE_NAME = "healthData.txt";
-    private static final long MAX_FILE_SIZE = 20 * 1024 * 1024; // 20 MB
+
+    // Sensors read at the same time, each with its own socket and reader thread; the
+    // Bluetooth controller itself allows about seven connected devices
+    private static final int MAX_SESSIONS = 4;
+
+    // DEVICE_ADDRESS "replay:healthData.txt" replays that file from the app files instead of
+    // connecting to a sensor; lines without a time are REPLAY_PERIOD_MS apart
+    private static final String REPLAY_PREFIX = "replay:";
+    private static final long REPLAY_PERIOD_MS = 250;
+
+    // Acknowledgements sent back to the sensor: "per_read", "every_n", "timed" or "credit"
+    private static final String ACK_POLICY = "per_read";
+    private static final int ACK_WINDOW = 16; // Frames granted ahead by the windowed policies
+    private static final long ACK_INTERVAL_MS = 250;
 
     private BluetoothAdapter bluetoothAdapter;
-    private BluetoothSocket bluetoothSocket;
-    private InputStream inputStream;
-    private OutputStream outputStream;
-    private String deviceAddress;
-    private boolean isReconnecting = false; // Flag to track reconnection attempts
+    private final SessionManager sessions = new SessionManager(this::createSession, MAX_SESSIONS);
+    private final IngestMetrics metrics = IngestMetrics.get();
+    // The sensor whose samples the screens get live: the one the user picked last, or the first
+    // other live sensor while that one is not running
+    private String pickedAddress; // Main thread only
+    private volatile DeviceSession primarySession;
+    // Alerts shown in the alert notification, "address rule"; it goes away with the last one
+    private final Set<String> raisedAlerts = new HashSet<>(); // Main thread only
+
+    // In-process delivery of the samples to bound clients, batched on the main thread
+    private static final int HUB_CAPACITY = 4096;
+    private static final int HUB_BATCH_SIZE = 256;
+    private final SampleHub sampleHub = new SampleHub(HUB_CAPACITY, HUB_BATCH_SIZE, metrics);
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final IBinder binder = new LocalBinder();
+
+    // Storage is opened, and each session's partition prepared, on this thread; a session is
+    // created on the main thread once what it needs is ready, so no disk I/O happens there
+    private final ExecutorService storageExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ServiceStorage");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile HealthStorage healthStorage;
+    private final Map<String, Prepared> prepared = new HashMap<>(); // Main thread only, read by createSession
+    private boolean destroyed; // Main thread only
+
+    // What a session needs from the disk before it can be created
+    private static final class Prepared {
+        final ConnectionManager.ConnectionFactory factory;
+        final HealthStorage own; // Null if it could not be opened
+        final SampleBatch lastHour; // Null for a replay or if the partition could not be read
+
+        Prepared(ConnectionManager.ConnectionFactory factory, HealthStorage own, SampleBatch lastHour) {
+            this.factory = factory;
+            this.own = own;
+            this.lastHour = lastHour;
+        }
+    }
+
+    // Screen off or nobody subscribed: the samples are only stored, in large batches, and checked
+    // for alerts. With the screen off the hub also holds deliveries back until it comes on again
+    private boolean screenOn = true;
+    private boolean background;
+    private final BroadcastReceiver screenReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            screenOn = Intent.ACTION_SCREEN_ON.equals(intent.getAction());
+            updatePowerMode();
+        }
+    };
+
+    public class LocalBinder extends Binder {
+        public BluetoothForegroundService getService() {
+            return BluetoothForegroundService.this;
+        }
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        IngestMetrics.setVerbose(getSharedPreferences(DiagnosticsActivity.PREFS_NAME, MODE_PRIVATE)
+                .getBoolean(DiagnosticsActivity.PREF_VERBOSE, false));
+        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        storageExecutor.execute(() -> {
+            try {
+                healthStorage = HealthStorage.get(this);
+            } catch (IOException e) {
+                Log.e("BluetoothService", "Failed to open health data store", e);
+            }
+        });
+        PowerManager powerManager = getSystemService(PowerManager.class);
+        screenOn = powerManager == null || powerManager.isInteractive();
+        IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_OFF);
+        filter.addAction(Intent.ACTION_SCREEN_ON);
+        registerReceiver(screenReceiver, filter);
+        updatePowerMode();
+    }
+
+    @Override
+    public void onDestroy() {
+        destroyed = true;
+        unregisterReceiver(screenReceiver);
+        sessions.stopAll();
+        HealthStorage.setBackground(false);
+        // Make sure queued samples reach the disk before the service goes away, off the main thread
+        storageExecutor.execute(() -> {
+            HealthStorage storage = healthStorage;
+            if (storage == null) return;
+            try {
+                if (!storage.getWriter().flush(1000)) {
+                    Log.e("BluetoothService", "Timed out flushing health data");
+                }
+                HealthStorage.syncAll();
+            } catch (IOException e) {
+                Log.e("BluetoothService", "Failed to sync health data", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        storageExecutor.shutdown();
+        super.onDestroy();
+    }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        if ("DISCONNECT".equals(intent.getAction())) {
+        if (intent != null && "DISCONNECT".equals(intent.getAction())) {
+            // One device if the intent names it, otherwise all of them
+            String address = intent.getStringExtra("DEVICE_ADDRESS");
+            if (address != null && sessions.stop(address) && sessions.liveCount() > 0) {
+                updatePrimary();
+                updateNotification();
+                return START_STICKY;
+            }
             disconnectFromDevice();
             stopSelf();
             return START_NOT_STICKY;
         }
 
         Log.d("BluetoothService", "Service started!");
-        deviceAddress = intent.getStringExtra("DEVICE_ADDRESS");
+        String address = intent != null ? intent.getStringExtra("DEVICE_ADDRESS") : null;
 
-        if (deviceAddress == null) {
+        if (address == null) {
             Log.e("BluetoothService", "No device address provided. Stopping service.");
             stopSelf();
             return START_NOT_STICKY;
         }
 
-        startForeground(1, createNotification(false)); // Start with a placeholder notification
-        new Thread(this::connectToDevice).start();
+        startForeground(1, createNotification(0, Math.max(1, sessions.liveCount()))); // Placeholder until a state change
+        // Only the device picked on the main screen is started without the replay prefix
+        boolean picked = !address.startsWith(REPLAY_PREFIX);
+        if (picked) pickedAddress = address;
+        DeviceSession existing = sessions.get(address);
+        if (existing != null && !existing.isStopped()) {
+            // Every onResume asks again: nothing to open
+            Log.d("BluetoothService", "Already connected or reconnecting to " + address);
+            updatePrimary();
+            updateNotification();
+            return START_STICKY;
+        }
+        storageExecutor.execute(() -> {
+            Prepared ready = prepare(address);
+            mainHandler.post(() -> startSession(address, ready));
+        });
         return START_STICKY;
     }
 
-    private Notification createNotification(boolean isConnected) {
+    // Runs on the storage thread: opens the device's partition, reads its recording if it is a
+    // replay, otherwise the last hour the sensor recorded
+    private Prepared prepare(String address) {
+        HealthStorage own = null;
+        try {
+            own = HealthStorage.getPartition(this, address);
+        } catch (IOException e) {
+            Log.e("BluetoothService", "Failed to open health data store for " + address, e);
+        }
+        boolean replay = address.startsWith(REPLAY_PREFIX);
+        SampleBatch lastHour = !replay && own != null ? readLastHour(own.getStore()) : null;
+        return new Prepared(createConnectionFactory(address), own, lastHour);
+    }
+
+    private void startSession(String address, Prepared ready) {
+        if (destroyed) return;
+        prepared.put(address, ready);
+        SessionManager.StartResult result = sessions.start(address);
+        prepared.remove(address);
+        updatePrimary();
+        if (result == SessionManager.StartResult.TOO_MANY_DEVICES) {
+            Log.e("BluetoothService", "Already reading " + MAX_SESSIONS + " devices, ignoring " + address);
+        } else if (result == SessionManager.StartResult.ALREADY_RUNNING) {
+            Log.d("BluetoothService", "Already connected or reconnecting to " + address);
+        }
+        updateNotification();
+    }
+
+    // Runs on the main thread from startSession, once per new device, with what prepare() read
+    private DeviceSession createSession(String address) {
+        Prepared ready = prepared.get(address);
+        HealthStorage own = ready.own;
+        // Every sensor records into its own partition; the one the screens follow is also shown live
+        DeviceSession session = new DeviceSession(address, ready.factory,
+                (timestamp, heartRate, saturation, temperature, badPosture) -> {
+                    boolean queued = own == null || own.submit(timestamp, heartRate, saturation, temperature, badPosture);
+                    DeviceSession primary = primarySession;
+                    if (primary != null && primary.getAddress().equals(address)) {
+                        sampleHub.publish(timestamp, heartRate, saturation, temperature, badPosture);
+                    }
+                    return queued;
+                },
+                this::createAckPolicy, sessionListener);
+        if (ready.lastHour != null) {
+            SampleBatch lastHour = ready.lastHour;
+            Analytics analytics = session.getAnalytics();
+            for (int i = 0; i < lastHour.size(); i++) {
+                analytics.add(lastHour.timestamps[i], lastHour.heartRates[i], lastHour.saturations[i], lastHour.temperatures[i]);
+            }
+        }
+        return session;
+    }
+
+    // Runs on the main thread whenever a session starts or ends
+    private void updatePrimary() {
+        DeviceSession primary = null;
+        for (DeviceSession session : sessions.getSessions()) {
+            if (session.isStopped() || session.getAddress().startsWith(REPLAY_PREFIX)) continue;
+            if (session.getAddress().equals(pickedAddress)) {
+                primary = session;
+                break;
+            }
+            if (primary == null) primary = session;
+        }
+        if (primary != primarySession) {
+            Log.d("BluetoothService", "Screens follow " + (primary == null ? "no device" : primary.getAddress()));
+        }
+        primarySession = primary;
+    }
+
+    private ConnectionManager.ConnectionFactory createConnectionFactory(String address) {
+        return address.startsWith(REPLAY_PREFIX) ? openReplay(address.substring(REPLAY_PREFIX.length()))
+                : () -> openConnection(address);
+    }
+
+    // The last hour already stored, to warm the analytics up so they do not start empty after a restart.
+    // Read from the store: the recent ring may still be loading
+    private static SampleBatch readLastHour(HealthDataStore store) {
+        try {
+            long from = store.indexAtOrAfter(System.currentTimeMillis() - Rollups.HOUR);
+            long count = store.size() - from;
+            SampleBatch lastHour = new SampleBatch((int) Math.max(1, count));
+            store.read(from, from + count, lastHour::add);
+            return lastHour;
+        } catch (IOException e) {
+            Log.e("BluetoothService", "Failed to read the last hour for the analytics", e);
+            return null;
+        }
+    }
+
+    // Streaming statistics of the sensor the screens follow, null before it is started
+    public Analytics.Summary getSummary() {
+        DeviceSession session = primarySession;
+        return session == null ? null : session.getAnalytics().summary(System.currentTimeMillis());
+    }
+
+    // Main thread only; state callbacks post it. Counts the sessions without taking their locks
+    private void updateNotification() {
+        if (destroyed) return; // A post from a session stopping with the service
+        int connected = 0;
+        int live = 0;
+        for (DeviceSession session : sessions.getSessions()) {
+            if (session.isStopped()) continue;
+            live++;
+            if (session.getState() == ConnectionManager.State.CONNECTED) connected++;
+        }
+        if (live == 0) return;
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        if (manager != null) {
+            manager.notify(1, createNotification(connected, live));
+        }
+    }
+
+    private Notification createNotification(int connected, int total) {
         NotificationChannel channel = null;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             channel = new NotificationChannel(
@@ -86,20 +341,23 @@ public class BluetoothForegroundService extends Service {
 
         return new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle("Bluetooth Service")
-                .setContentText(isConnected ? "Connesso" : "Tentativo di connessione...")
+                .setContentText(connected == 0 ? "Tentativo di connessione..."
+                        : total == 1 ? "Connesso" : "Connessi " + connected + " di " + total + " sensori")
                 .setSmallIcon(R.drawable.baseline_notifications_24)
                 .setContentIntent(pendingIntent) // Add the disconnect action
-                .setOngoing(isConnected) // Make it persistent only when connected
+                .setOngoing(connected > 0) // Make it persistent only when connected
                 .build();
     }
 
-    private void sendAlertNotification(String alertText) {
+    // A silent alert replaces the text of the one already posted without sound or vibration
+    private void sendAlertNotification(String alertText, boolean audible) {
         Notification alertNotification = new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setContentTitle("Attenzione!")
                 .setContentText(alertText)
                 .setSmallIcon(R.drawable.baseline_announcement_24)
                 .setPriority(NotificationCompat.PRIORITY_HIGH)
                 .setVibrate(new long[]{0, 1000, 200, 500})
+                .setSilent(!audible)
                 .build();
 
         NotificationManager manager = getSystemService(NotificationManager.class);
@@ -110,82 +368,14 @@ public class BluetoothForegroundService extends Service {
         Log.d("BluetoothService", "Alert notification sent: " + alertText);
     }
 
-    private void saveHeartbeat(String data) {
-        long timestamp = System.currentTimeMillis();
-        String message = "Frequenza cardiaca: " + data + " a " + timestamp;
-
-        Log.d("BluetoothService", message);
-
-        Intent intent = new Intent("com.example.s.BLUETOOTH_DATA");
-        intent.putExtra("DATA", message);
-        sendBroadcast(intent);
-    }
-
-    private void saveHeartbeatsToFile(String data) {
-        File file = getFileStreamPath(HEARTBEATS_FILE_NAME);
-
-        try {
-            // Check if the file exceeds the maximum size
-            if (file.exists() && file.length() > MAX_FILE_SIZE) {
-                truncateFile(file);
-            }
-
-            // Append new data to the file
-            try (FileOutputStream fos = new FileOutputStream(file, true)) {
-                fos.write((data + "\n").getBytes());
-            }
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Dati salute non salvati correttamente", Toast.LENGTH_SHORT).show();
-        }
-    }
-
-    private void truncateFile(File file) {
-        try {
-            // Read the file into memory
-            StringBuilder data = new StringBuilder();
-            try (FileInputStream fis = new FileInputStream(file);
-                 BufferedReader reader = new BufferedReader(new InputStreamReader(fis))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    data.append(line).append("\n");
-                }
-            }
-
-            // Keep only the last half of the file's content
-            String[] lines = data.toString().split("\n");
-            int start = lines.length / 2; // Start from the middle
-            StringBuilder truncatedData = new StringBuilder();
-            for (int i = start; i < lines.length; i++) {
-                truncatedData.append(lines[i]).append("\n");
-            }
-
-            // Overwrite the file with the truncated content
-            try (FileOutputStream fos = new FileOutputStream(file, false)) {
-                fos.write(truncatedData.toString().getBytes());
-            }
-
-            Log.d("BluetoothService", "File truncated successfully. Old entries removed.");
-        } catch (IOException e) {
-            e.printStackTrace();
-            Log.e("BluetoothService", "Failed to truncate file.");
-        }
-    }
-
-    private String loadHeartbeatsFromFile() {
-        StringBuilder data = new StringBuilder();
-        try (FileInputStream fis = openFileInput(HEARTBEATS_FILE_NAME);
-             BufferedReader reader = new BufferedReader(new InputStreamReader(fis))) {
-            String line;
-            while ((line = reader.readLine()) != null) {
-                data.append(line).append("\n");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-            Toast.makeText(this, "Dati salute non caricati correttamente", Toast.LENGTH_SHORT).show();
+    // Main thread only
+    private void cancelAlertNotificationIfCleared() {
+        if (!raisedAlerts.isEmpty()) return;
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        if (manager != null) {
+            manager.cancel(2);
         }
-        return data.toString();
+        Log.d("BluetoothService", "Alerts cleared, alert notification removed");
     }
 
     private void verifyFileSaved(String fileName) {
@@ -203,146 +393,184 @@ public class BluetoothForegroundService extends Service {
     @Nullable
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return binder;
     }
 
-    @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
-    private void connectToDevice() {
-        bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+    /**
+     * Delivers new samples to the subscriber on the main thread, in batches. Pass the
+     * sequence after the last one received to replay what was missed while unsubscribed,
+     * or -1 for new samples only. The policy bounds what a subscriber that falls behind gets.
+     */
+    public void subscribe(SampleHub.Subscriber subscriber, long fromSequence, SampleHub.Policy policy) {
+        sampleHub.subscribe(subscriber, mainHandler::post, fromSequence, policy);
+        updatePowerMode();
+    }
 
-        try {
-            // Attempt standard connection
-            bluetoothSocket = device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
-            bluetoothSocket.connect();
-            inputStream = bluetoothSocket.getInputStream();
-            outputStream = bluetoothSocket.getOutputStream();
-
-            // Update notification to show connected status
-            NotificationManager manager = getSystemService(NotificationManager.class);
-            if (manager != null) {
-                manager.notify(1, createNotification(true));
-            }
+    public void unsubscribe(SampleHub.Subscriber subscriber) {
+        sampleHub.unsubscribe(subscriber);
+        updatePowerMode();
+    }
 
-            listenForData();
-        } catch (IOException e) {
-            Log.e("BluetoothService", "Connection failed!", e);
-            attemptReconnect();
-        }
+    // Runs on the main thread, on every screen change and (un)subscription
+    private void updatePowerMode() {
+        sampleHub.setPaused(!screenOn);
+        boolean idle = !screenOn || sampleHub.getSubscriberCount() == 0;
+        if (idle == background) return;
+        background = idle;
+        HealthStorage.setBackground(idle);
+        Log.d("BluetoothService", idle ? "Nobody watching, batching samples" : "Screen in use, live samples");
     }
 
-    private void disconnectFromDevice() {
-        try {
-            if (bluetoothSocket != null) {
-                bluetoothSocket.close();
-            }
-            NotificationManager manager = getSystemService(NotificationManager.class);
-            if (manager != null) {
-                manager.cancel(1); // Remove the notification
-            }
-            Log.d("BluetoothService", "Disconnected from device.");
-        } catch (IOException e) {
-            Log.e("BluetoothService", "Error while disconnecting!", e);
+    private final DeviceSession.Listener sessionListener = new DeviceSession.Listener() {
+        @Override
+        public void onStateChanged(DeviceSession session, ConnectionManager.State state) {
+            if (state == ConnectionManager.State.STOPPED) return;
+            // Called with the connection manager locked: the notification update is a binder call
+            mainHandler.post(BluetoothForegroundService.this::updateNotification);
         }
-    }
 
-    private void attemptReconnect() {
-        if (isReconnecting) return; // Avoid multiple reconnection attempts
-        isReconnecting = true;
-
-        new Thread(() -> {
-            long startTime = System.currentTimeMillis();
-            while (System.currentTimeMillis() - startTime < 60000) { // Retry for 1 minute
-                try {
-                    Log.d("BluetoothService", "Attempting to reconnect...");
-                    if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
-                        Log.e("BluetoothService", "Missing BLUETOOTH_CONNECT permission.");
-                        return;
+        @Override
+        public void onAlert(DeviceSession session, AlertRule rule, int episodes, boolean audible) {
+            String text = rule == DeviceSession.VITALS_ALERT ? vitalsText(session.getDetector())
+                    : "Attenzione! Postura errata!";
+            if (episodes > 1) text += " (" + episodes + " volte)";
+            if (sessions.liveCount() > 1) text += " - " + session.getAddress();
+            String alert = session.getAddress() + " " + rule.name;
+            String shown = text;
+            // On the main thread, in order with the clears that may cancel the notification
+            mainHandler.post(() -> {
+                if (destroyed) return;
+                raisedAlerts.add(alert);
+                sendAlertNotification(shown, audible);
+            });
+        }
+
+        @Override
+        public void onAlertCleared(DeviceSession session, AlertRule rule) {
+            String alert = session.getAddress() + " " + rule.name;
+            mainHandler.post(() -> {
+                if (raisedAlerts.remove(alert)) cancelAlertNotificationIfCleared();
+            });
+        }
+
+        // Names the metrics outside the clinical range in the last sample
+        private String vitalsText(AnomalyDetector detector) {
+            StringBuilder text = new StringBuilder("Attenzione! Parametri vitali fuori norma:");
+            if (detector.isHeartRateNotable()) text.append(" FC");
+            if (detector.isSaturationNotable()) text.append(" Saturazione");
+            if (detector.isTemperatureNotable()) text.append(" Temperatura");
+            return text.toString();
+        }
+
+        @Override
+        public void onGaveUp(DeviceSession session) {
+            sessions.remove(session);
+            if (sessions.liveCount() == 0) {
+                Log.e("BluetoothService", "No device left to read. Stopping service.");
+                stopSelf(); // Stop the service if reconnection fails
+            } else {
+                mainHandler.post(() -> {
+                    // Its alerts will never clear
+                    if (raisedAlerts.removeIf(alert -> alert.startsWith(session.getAddress() + " "))) {
+                        cancelAlertNotificationIfCleared();
                     }
-                    connectToDevice(); // Attempt to reconnect
-                    isReconnecting = false; // Stop reconnection attempts if successful
-                    return;
-                } catch (Exception e) {
-                    Log.e("BluetoothService", "Reconnection attempt failed. Retrying...", e);
-                }
+                    updatePrimary();
+                    updateNotification();
+                });
+            }
+        }
+    };
 
-                try {
-                    Thread.sleep(5000); // Wait 5 seconds before retrying
-                } catch (InterruptedException e) {
-                    Log.e("BluetoothService", "Reconnection thread interrupted", e);
-                    break;
-                }
+    // Runs on the connection thread, once per attempt
+    private ConnectionManager.Connection openConnection(String deviceAddress) throws IOException {
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.BLUETOOTH_CONNECT) != PackageManager.PERMISSION_GRANTED) {
+            throw new IOException("Missing BLUETOOTH_CONNECT permission");
+        }
+        BluetoothDevice device = bluetoothAdapter.getRemoteDevice(deviceAddress);
+        BluetoothSocket socket = device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
+        try {
+            socket.connect();
+        } catch (IOException e) {
+            Log.e("BluetoothService", "Connection failed!", e);
+            socket.close();
+            throw e;
+        }
+        return new ConnectionManager.Connection() {
+            @Override
+            public InputStream getInputStream() throws IOException {
+                return socket.getInputStream();
             }
 
-            Log.e("BluetoothService", "Failed to reconnect after 1 minute. Stopping service.");
-            stopSelf(); // Stop the service if reconnection fails
-            isReconnecting = false;
-        }).start();
-    }
+            @Override
+            public OutputStream getOutputStream() throws IOException {
+                return socket.getOutputStream();
+            }
 
-    private void broadcastReceivedData(String data) {
-        Intent intent = new Intent("com.example.s.BLUETOOTH_DATA");
-        intent.setPackage(getPackageName());
-        intent.putExtra("DATA", data); // Use lowercase key: "data"
-        sendBroadcast(intent);
-        Log.d("BluetoothService", "Broadcasted data: " + data);
+            @Override
+            public void close() throws IOException {
+                socket.close();
+            }
+        };
     }
 
-    private void listenForData() {
-        Log.d("BluetoothService", "Listening for data...");
+    // Plays a recording from the app files instead of a sensor, in real time
+    private ConnectionManager.ConnectionFactory openReplay(String fileName) {
+        try (FileReader reader = new FileReader(new File(getFilesDir(), fileName))) {
+            return new ReplayTransport(ReplayTransport.Recording.fromLines(reader, REPLAY_PERIOD_MS));
+        } catch (IOException | NumberFormatException e) {
+            Log.e("BluetoothService", "Cannot read recording " + fileName, e);
+            return () -> {
+                throw new IOException("No recording " + fileName);
+            };
+        }
+    }
 
-        StringBuilder messageBuffer = new StringBuilder();
-        byte[] buffer = new byte[4096];
-        int bytes;
+    private void disconnectFromDevice() {
+        sessions.stopAll(); // Cancels the pending reconnects and closes the sockets
+        NotificationManager manager = getSystemService(NotificationManager.class);
+        if (manager != null) {
+            manager.cancel(1); // Remove the notification
+        }
+        Log.d("BluetoothService", "Disconnected from all devices.");
+    }
 
-        while (true) {
-            try {
-                bytes = inputStream.read(buffer);
-                if (bytes > 0) {
-                    String receivedData = new String(buffer, 0, bytes);
-                    Log.d("BluetoothService", "Raw Data: " + receivedData);
-                    outputStream.write("*".getBytes());
-                    Log.d("BluetoothService", "Sent *");
-                    for (char c : receivedData.toCharArray()) {
-                        if (c == '%') {
-                            String fullMessage = messageBuffer.toString().trim();
-                            Log.d("BluetoothService", "Complete Message: " + fullMessage);
-
-                            if (!fullMessage.isEmpty()) {
-                                // Filter: skip if temperature is 8 (calibration value) or heart rate/saturation are 0
-                                String[] parts = fullMessage.split(";");
-                                if (parts.length == 4) {
-                                    String frequenzaCardiaca = parts[0];
-                                    String saturazione = parts[1];
-                                    String temperatura = parts[2];
-                                    if (temperatura.equals("8") || frequenzaCardiaca.equals("0") || saturazione.equals("0")) {
-                                        Log.d("BluetoothService", "Filtered out message with temp=8 or freq/sat=0");
-                                        messageBuffer.setLength(0);
-                                        continue;
-                                    }
-                                }
-                                char flag = fullMessage.charAt(fullMessage.length() - 2);
-
-                                if (flag == '1') {
-                                    sendAlertNotification("Attenzione! Postura errata!");
-                                    Log.d("BluetoothService", "Alert received!");
-                                }
-                            }
-
-                            broadcastReceivedData(fullMessage);
-                            messageBuffer.setLength(0);
-                        } else {
-                            messageBuffer.append(c);
-                        }
-                    }
+    // The firmware acks frame by frame; the windowed policies need it to accept credits ahead
+    private AckPolicy createAckPolicy() {
+        switch (ACK_POLICY) {
+            case "every_n":
+                return new AckPolicy.EveryNFrames(ACK_WINDOW);
+            case "timed":
+                return new AckPolicy.Timed(ACK_INTERVAL_MS, ACK_WINDOW);
+            case "credit":
+                return new AckPolicy.Credit(ACK_WINDOW);
+            default:
+                return new AckPolicy.PerRead();
+        }
+    }
 
-                }
-            } catch (IOException e) {
-                Log.e("BluetoothService", "Error reading data!", e);
-                disconnectFromDevice(); // Disconnect on error
-                attemptReconnect(); // Start reconnection attempts if connection is lost
-                break;
+    // adb shell dumpsys activity service com.example.spinemate/com.example.s.BluetoothForegroundService [json]
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        HealthDataWriter healthWriter = healthStorage != null ? healthStorage.getWriter() : null;
+        IngestMetrics.Snapshot snapshot = metrics.snapshot(healthWriter);
+        List<DeviceSession> devices = sessions.getSessions();
+        if (args != null && args.length > 0 && "json".equals(args[0])) {
+            StringBuilder json = new StringBuilder("{\"total\":").append(snapshot.toJson(null)).append(",\"devices\":{");
+            for (int i = 0; i < devices.size(); i++) {
+                DeviceSession session = devices.get(i);
+                if (i > 0) json.append(',');
+                json.append('"').append(session.getAddress()).append("\":")
+                        .append(session.getMetrics().snapshot(null).toJson(null));
             }
+            writer.println(json.append("}}"));
+            return;
+        }
+        writer.println(snapshot.toText(null));
+        for (DeviceSession session : devices) {
+            ConnectionManager manager = session.getConnectionManager();
+            writer.println("device " + session.getAddress() + ": " + manager.getState() + ", " + manager.getAttempts()
+                    + " attempts, " + manager.getFailedAttempts() + " failed, " + manager.getReconnects() + " reconnects");
+            writer.println(session.getMetrics().snapshot(null).toText(null));
         }
     }
 }
@@ -0,0 +1,242 @@
+package com.example.s;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns the lifecycle of one device link on a single scheduler thread. Connection
+ * attempts, the read session and the retries all run there, so at most one attempt
+ * or session exists at any time. After a failure the next attempt is scheduled with
+ * capped exponential backoff and jitter; stop() cancels a pending attempt and closes
+ * the open connection. No Android dependency, so it can be driven by a fake factory.
+ *
+ * <pre>
+ * IDLE -> CONNECTING -> CONNECTED      a failed attempt or a short-lived link waits
+ *          ^     |          |          in WAITING before the next CONNECTING;
+ *          |     v          |          stop() or giving up moves any state to STOPPED
+ *          +-- WAITING <----+
+ * </pre>
+ */
+public final class ConnectionManager {
+
+    public enum State { IDLE, CONNECTING, CONNECTED, WAITING, STOPPED }
+
+    public interface Connection extends Closeable {
+        InputStream getInputStream() throws IOException;
+        OutputStream getOutputStream() throws IOException;
+    }
+
+    public interface ConnectionFactory {
+        // Blocks until connected; throws if the device cannot be reached
+        Connection connect() throws IOException;
+    }
+
+    public interface Callback {
+        // Runs on the connection thread while the link is up; returns or throws once it is lost
+        void onConnected(Connection connection) throws IOException;
+
+        // Called with the manager locked: must not block or call back into it
+        void onStateChanged(State state);
+
+        // No connection could be made for longer than the give-up delay
+        void onGaveUp();
+    }
+
+    private final ConnectionFactory factory;
+    private final Callback callback;
+    private final long initialDelayMs;
+    private final long maxDelayMs;
+    private final long giveUpAfterMs;
+    private final ScheduledExecutorService scheduler;
+
+    // Guarded by this
+    private State state = State.IDLE;
+    private Connection connection;
+    private ScheduledFuture<?> pending;
+    private int failures; // Consecutive failed attempts or short-lived links
+    private long outageStart; // When the current outage began, in ms
+    private boolean connectedBefore; // Later connections count as reconnects
+
+    // Metrics, guarded by this
+    private long attempts;
+    private long failedAttempts;
+    private long reconnects;
+    private long lastReconnectLatencyMs = -1;
+    private long maxReconnectLatencyMs;
+    private long totalReconnectLatencyMs;
+
+    public ConnectionManager(ConnectionFactory factory, Callback callback,
+                             long initialDelayMs, long maxDelayMs, long giveUpAfterMs) {
+        this.factory = factory;
+        this.callback = callback;
+        this.initialDelayMs = initialDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.giveUpAfterMs = giveUpAfterMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "BluetoothConnection");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Delay before retry number attempt (0-based): half of the capped exponential delay plus up to as much jitter
+    static long backoffDelay(int attempt, long initialDelayMs, long maxDelayMs, double random) {
+        long delay = initialDelayMs << Math.min(attempt, 30);
+        if (delay <= 0 || delay > maxDelayMs) delay = maxDelayMs;
+        return delay / 2 + (long) (random * (delay - delay / 2));
+    }
+
+    public synchronized void start() {
+        if (state != State.IDLE) return;
+        outageStart = now();
+        schedule(0);
+    }
+
+    // Cancels any pending attempt and closes the connection; the manager cannot be restarted
+    public void stop() {
+        Connection open;
+        synchronized (this) {
+            if (state == State.STOPPED) return;
+            setState(State.STOPPED);
+            if (pending != null) pending.cancel(false);
+            open = connection;
+            connection = null;
+        }
+        closeQuietly(open); // Unblocks a session waiting on a read
+        scheduler.shutdown();
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized long getAttempts() {
+        return attempts;
+    }
+
+    public synchronized long getFailedAttempts() {
+        return failedAttempts;
+    }
+
+    public synchronized long getReconnects() {
+        return reconnects;
+    }
+
+    // From losing the link to being connected again, -1 before the first reconnect
+    public synchronized long getLastReconnectLatencyMs() {
+        return lastReconnectLatencyMs;
+    }
+
+    public synchronized long getMaxReconnectLatencyMs() {
+        return maxReconnectLatencyMs;
+    }
+
+    public synchronized long getMeanReconnectLatencyMs() {
+        return reconnects == 0 ? 0 : totalReconnectLatencyMs / reconnects;
+    }
+
+    private void schedule(long delayMs) {
+        setState(delayMs == 0 ? State.CONNECTING : State.WAITING);
+        pending = scheduler.schedule(this::attempt, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt() {
+        synchronized (this) {
+            if (state == State.STOPPED) return;
+            setState(State.CONNECTING);
+            attempts++;
+        }
+
+        Connection opened;
+        try {
+            opened = factory.connect();
+        } catch (IOException | RuntimeException e) {
+            onAttemptFailed();
+            return;
+        }
+
+        synchronized (this) {
+            if (state == State.STOPPED) {
+                closeQuietly(opened);
+                return;
+            }
+            connection = opened;
+            if (connectedBefore) recordLatency(now() - outageStart);
+            connectedBefore = true;
+            setState(State.CONNECTED);
+        }
+        long connectedAt = now();
+
+        try {
+            callback.onConnected(opened);
+        } catch (IOException | RuntimeException e) {
+            // Link lost, reconnect below
+        }
+
+        synchronized (this) {
+            closeQuietly(opened);
+            if (state == State.STOPPED) return;
+            connection = null;
+            outageStart = now();
+            // Retry at once after a stable link, back off if the device keeps dropping it
+            if (outageStart - connectedAt >= maxDelayMs) {
+                failures = 0;
+                schedule(0);
+            } else {
+                schedule(nextDelay());
+            }
+        }
+    }
+
+    private void onAttemptFailed() {
+        synchronized (this) {
+            if (state == State.STOPPED) return;
+            failedAttempts++;
+            if (now() - outageStart >= giveUpAfterMs) {
+                setState(State.STOPPED);
+                scheduler.shutdown();
+            } else {
+                schedule(nextDelay());
+                return;
+            }
+        }
+        callback.onGaveUp();
+    }
+
+    private long nextDelay() {
+        return backoffDelay(failures++, initialDelayMs, maxDelayMs, ThreadLocalRandom.current().nextDouble());
+    }
+
+    private void recordLatency(long latency) {
+        reconnects++;
+        lastReconnectLatencyMs = latency;
+        maxReconnectLatencyMs = Math.max(maxReconnectLatencyMs, latency);
+        totalReconnectLatencyMs += latency;
+    }
+
+    private void setState(State newState) {
+        if (state == newState) return;
+        state = newState;
+        callback.onStateChanged(newState);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+    }
+}
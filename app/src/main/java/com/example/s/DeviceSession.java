@@ -0,0 +1,290 @@
+package com.example.s;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.function.Supplier;
+
+/**
+ * Everything that belongs to one sensor: its connection manager and reader thread,
+ * the frame decoder and read buffer, the posture alert state and the ingest metrics.
+ * Nothing is shared with the sessions of other devices except the sink the accepted
+ * samples are handed to.
+ */
+public final class DeviceSession {
+
+    // Reconnect backoff: 0.5 s doubling up to 10 s, with jitter; give up after a minute without a link
+    static final long RECONNECT_INITIAL_DELAY_MS = 500;
+    static final long RECONNECT_MAX_DELAY_MS = 10_000;
+    static final long RECONNECT_GIVE_UP_MS = 60_000;
+
+    // Posture alert: raised after 5 s of bad posture, cleared after 3 s of good posture,
+    // audible at most once a minute (later episodes only update the notification)
+    static final AlertRule POSTURE_ALERT = new AlertRule("posture", 5000, 3000, 60_000);
+    // Vital signs alert: clinically notable readings for 15 s, cleared after 30 s back in range,
+    // audible at most every 5 minutes
+    static final AlertRule VITALS_ALERT = new AlertRule("vitals", 15_000, 30_000, 5 * 60_000);
+
+    public interface SampleSink {
+        // Called on the reader thread for every accepted sample; false if it had to be dropped
+        boolean submit(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture);
+    }
+
+    public interface Listener {
+        // Called with the session's connection manager locked: must not block or call into other sessions
+        void onStateChanged(DeviceSession session, ConnectionManager.State state);
+
+        void onAlert(DeviceSession session, AlertRule rule, int episodes, boolean audible);
+
+        // The condition has been absent for the rule's clear delay
+        void onAlertCleared(DeviceSession session, AlertRule rule);
+
+        // No connection could be made for longer than the give-up delay, the session is stopped
+        void onGaveUp(DeviceSession session);
+    }
+
+    private final String address;
+    private final SampleSink sink;
+    private final Supplier<AckPolicy> ackPolicies;
+    private final Listener listener;
+    private final ConnectionManager connectionManager;
+    private final long giveUpAfterMs;
+    private volatile ConnectionManager.State state = ConnectionManager.State.IDLE;
+
+    // Reused by the reader thread for every chunk and frame
+    private final byte[] buffer = new byte[4096];
+    private final FrameDecoder frameDecoder = new FrameDecoder(this::onFrame);
+    private final IngestMetrics metrics = IngestMetrics.forDevice();
+    private final Analytics analytics = new Analytics();
+    private final AnomalyDetector detector = new AnomalyDetector();
+    private final ValidationChain validation = ValidationChain.standard(detector);
+    private final AlertEngine alertEngine;
+    // Frames rejected as jumps the next ones may confirm as a new level, kept in order with the
+    // metrics still waiting for it; released when every jump is confirmed, dropped on a spike
+    private final SampleBatch held = new SampleBatch(3 * (AnomalyDetector.CONFIRM_SAMPLES - 1));
+    private final int[] heldJumps = new int[held.capacity()];
+    private long lastTimestamp = Long.MIN_VALUE; // Reader thread only
+    private boolean clockBehind; // Reader thread only
+
+    public DeviceSession(String address, ConnectionManager.ConnectionFactory factory, SampleSink sink,
+                         Supplier<AckPolicy> ackPolicies, Listener listener) {
+        this(address, factory, sink, ackPolicies, listener,
+                RECONNECT_INITIAL_DELAY_MS, RECONNECT_MAX_DELAY_MS, RECONNECT_GIVE_UP_MS);
+    }
+
+    DeviceSession(String address, ConnectionManager.ConnectionFactory factory, SampleSink sink,
+                  Supplier<AckPolicy> ackPolicies, Listener listener,
+                  long initialDelayMs, long maxDelayMs, long giveUpAfterMs) {
+        this.address = address;
+        this.sink = sink;
+        this.ackPolicies = ackPolicies;
+        this.listener = listener;
+        this.giveUpAfterMs = giveUpAfterMs;
+        this.alertEngine = new AlertEngine(new AlertEngine.Listener() {
+            @Override
+            public void onRaised(AlertRule rule, int episodes, boolean audible) {
+                listener.onAlert(DeviceSession.this, rule, episodes, audible);
+            }
+
+            @Override
+            public void onCleared(AlertRule rule) {
+                Log.d("BluetoothService", address + ": alert cleared: " + rule);
+                listener.onAlertCleared(DeviceSession.this, rule);
+            }
+        }, POSTURE_ALERT, VITALS_ALERT);
+        this.connectionManager = new ConnectionManager(factory, connectionCallback,
+                initialDelayMs, maxDelayMs, giveUpAfterMs);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public void start() {
+        connectionManager.start();
+    }
+
+    // Cancels a pending reconnect and closes the socket; a stopped session cannot be restarted
+    public void stop() {
+        connectionManager.stop();
+    }
+
+    // Lock-free, safe to call from another session's callbacks
+    public ConnectionManager.State getState() {
+        return state;
+    }
+
+    public boolean isStopped() {
+        return state == ConnectionManager.State.STOPPED;
+    }
+
+    public ConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    public IngestMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Analytics getAnalytics() {
+        return analytics;
+    }
+
+    // Only meant for the alert listener, which runs on the reader thread
+    public AnomalyDetector getDetector() {
+        return detector;
+    }
+
+    private final ConnectionManager.Callback connectionCallback = new ConnectionManager.Callback() {
+        @Override
+        public void onConnected(ConnectionManager.Connection connection) throws IOException {
+            if (connectionManager.getReconnects() > 0) {
+                metrics.recordReconnect(connectionManager.getLastReconnectLatencyMs());
+                Log.d("BluetoothService", address + ": reconnected in " + connectionManager.getLastReconnectLatencyMs() + " ms (mean "
+                        + connectionManager.getMeanReconnectLatencyMs() + " ms, max "
+                        + connectionManager.getMaxReconnectLatencyMs() + " ms)");
+            }
+            listenForData(connection.getInputStream(), connection.getOutputStream());
+        }
+
+        @Override
+        public void onStateChanged(ConnectionManager.State newState) {
+            state = newState;
+            Log.d("BluetoothService", address + ": connection state: " + newState);
+            listener.onStateChanged(DeviceSession.this, newState);
+        }
+
+        @Override
+        public void onGaveUp() {
+            Log.e("BluetoothService", address + ": failed to reconnect after " + giveUpAfterMs / 1000 + " s");
+            listener.onGaveUp(DeviceSession.this);
+        }
+    };
+
+    // Reads until the link breaks; the connection manager then schedules the reconnect
+    private void listenForData(InputStream inputStream, OutputStream outputStream) throws IOException {
+        Log.d("BluetoothService", address + ": listening for data...");
+
+        frameDecoder.reset(); // Drop any partial frame left by a previous connection
+        alertEngine.reset(); // The detector keeps its baselines, a long gap resets them by itself
+        AckPolicy ackPolicy = ackPolicies.get();
+        int bytes;
+
+        try {
+            ackPolicy.onConnected(outputStream);
+            while (true) {
+                bytes = inputStream.read(buffer);
+                if (bytes < 0) throw new IOException("Stream closed by the device");
+                if (bytes > 0) {
+                    long framesBefore = frameDecoder.getFramesDecoded();
+                    long malformedBefore = frameDecoder.getFramesMalformed();
+                    long start = System.nanoTime();
+                    frameDecoder.feed(buffer, 0, bytes);
+                    long decoded = frameDecoder.getFramesDecoded() - framesBefore;
+                    long malformed = frameDecoder.getFramesMalformed() - malformedBefore;
+                    metrics.recordChunk(bytes, System.nanoTime() - start, decoded, malformed);
+                    // A malformed frame still used up one of the frames the sensor was allowed to send
+                    ackPolicy.onChunk(outputStream, (int) (decoded + malformed));
+                    if (IngestMetrics.isVerbose()) {
+                        Log.v("BluetoothService", address + ": read " + bytes + " bytes");
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("BluetoothService", address + ": error reading data!", e);
+            throw e;
+        } finally {
+            ackPolicy.onDisconnected();
+            dropHeld(); // A new level cannot be confirmed across the gap
+        }
+    }
+
+    private void onFrame(int heartRate, int saturation, int temperature, boolean badPosture) {
+        // Never before the previous frame: the alert timers, the analytics windows and the
+        // history all expect time to go forward, the wall clock can be set back
+        long now = System.currentTimeMillis();
+        if ((now < lastTimestamp) != clockBehind) {
+            clockBehind = !clockBehind;
+            Log.w("BluetoothService", address + (clockBehind ? ": clock went back " + (lastTimestamp - now)
+                    + " ms, samples keep the last timestamp until it catches up" : ": clock caught up"));
+        }
+        long timestamp = Math.max(now, lastTimestamp);
+        lastTimestamp = timestamp;
+        // Device markers, impossible values and artifacts stay out of the history, the rollups and the alerts
+        RejectReason reason = validation.validate(timestamp, heartRate, saturation, temperature);
+        if (reason == RejectReason.CALIBRATION || reason == RejectReason.ZERO_READING) {
+            reject(reason, heartRate, saturation, temperature);
+            return;
+        }
+        settleHeld();
+        // The posture bit is valid as long as the device is really reading
+        alertEngine.update(POSTURE_ALERT, badPosture, timestamp);
+        if (reason == RejectReason.ARTIFACT && detector.isUnconfirmedJump()
+                && held.add(timestamp, heartRate, saturation, temperature, badPosture)) {
+            heldJumps[held.size() - 1] = detector.getJumps();
+            return;
+        }
+        if (reason != null) {
+            reject(reason, heartRate, saturation, temperature);
+            return;
+        }
+        boolean notable = detector.isNotable();
+        alertEngine.update(VITALS_ALERT, notable, timestamp);
+        if (notable) metrics.recordNotable();
+        accept(timestamp, heartRate, saturation, temperature, badPosture);
+    }
+
+    private void accept(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        metrics.recordAccepted();
+        analytics.add(timestamp, heartRate, saturation, temperature);
+
+        if (!sink.submit(timestamp, heartRate, saturation, temperature, badPosture)) {
+            Log.e("BluetoothService", address + ": health data queue full, sample dropped");
+        }
+    }
+
+    // Applies what the detector learnt from the last frame to the held ones: a frame with a
+    // spike is an artifact, one whose jumps are all confirmed is accepted once the frames
+    // before it are settled, so the sink still gets them in order
+    private void settleHeld() {
+        int confirmed = detector.getConfirmed();
+        int spikes = detector.getSpikes();
+        int kept = 0;
+        for (int i = 0; i < held.size(); i++) {
+            int jumps = heldJumps[i];
+            if ((jumps & spikes) != 0) {
+                reject(RejectReason.ARTIFACT, held.heartRates[i], held.saturations[i], held.temperatures[i]);
+                continue;
+            }
+            jumps &= ~confirmed;
+            if (jumps == 0 && kept == 0) {
+                accept(held.timestamps[i], held.heartRates[i], held.saturations[i], held.temperatures[i], held.badPostures[i]);
+                continue;
+            }
+            held.timestamps[kept] = held.timestamps[i];
+            held.heartRates[kept] = held.heartRates[i];
+            held.saturations[kept] = held.saturations[i];
+            held.temperatures[kept] = held.temperatures[i];
+            held.badPostures[kept] = held.badPostures[i];
+            heldJumps[kept] = jumps;
+            kept++;
+        }
+        held.setSize(kept);
+    }
+
+    private void dropHeld() {
+        for (int i = 0; i < held.size(); i++) {
+            reject(RejectReason.ARTIFACT, held.heartRates[i], held.saturations[i], held.temperatures[i]);
+        }
+        held.clear();
+    }
+
+    private void reject(RejectReason reason, int heartRate, int saturation, int temperature) {
+        metrics.recordRejected(reason);
+        if (IngestMetrics.isVerbose()) {
+            Log.d("BluetoothService", address + ": filtered out " + heartRate + ";" + saturation + ";" + temperature + ": " + reason);
+        }
+    }
+}
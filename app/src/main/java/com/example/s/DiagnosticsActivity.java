@@ -0,0 +1,78 @@
+package com.example.s;
+
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.CheckBox;
+import android.widget.TextView;
+import androidx.appcompat.app.AppCompatActivity;
+
+/**
+ * Live view of the ingest metrics, refreshed every second, with the verbose logging
+ * switch and a button to share the JSON snapshot.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    static final String PREFS_NAME = "DebugPrefs";
+    static final String PREF_VERBOSE = "VerboseLogging";
+
+    private static final long REFRESH_MS = 1000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private TextView diagnosticsText;
+    private IngestMetrics.Snapshot previous;
+
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            IngestMetrics.Snapshot snapshot = takeSnapshot();
+            diagnosticsText.setText(snapshot.toText(previous));
+            previous = snapshot;
+            handler.postDelayed(this, REFRESH_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_diagnostics);
+
+        diagnosticsText = findViewById(R.id.diagnostics_text);
+
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        CheckBox verboseCheckBox = findViewById(R.id.checkbox_verbose);
+        verboseCheckBox.setChecked(IngestMetrics.isVerbose());
+        verboseCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> {
+            IngestMetrics.setVerbose(isChecked);
+            prefs.edit().putBoolean(PREF_VERBOSE, isChecked).apply();
+        });
+
+        findViewById(R.id.dump_button).setOnClickListener(v -> {
+            Intent send = new Intent(Intent.ACTION_SEND);
+            send.setType("application/json");
+            send.putExtra(Intent.EXTRA_SUBJECT, "SpineMate diagnostics");
+            send.putExtra(Intent.EXTRA_TEXT, takeSnapshot().toJson(null));
+            startActivity(Intent.createChooser(send, "Esporta diagnostica"));
+        });
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        previous = null;
+        handler.post(refresh);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+
+    private IngestMetrics.Snapshot takeSnapshot() {
+        HealthStorage storage = HealthStorage.peek();
+        return IngestMetrics.get().snapshot(storage != null ? storage.getWriter() : null);
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.s;
+
+/**
+ * Incremental decoder for the sensor frames ("FC;SAT;TEMP;POSTURA;%").
+ * Works directly on the bytes read from the socket: partial frames are kept
+ * across reads and the fields are accumulated into primitives, so no String
+ * or char[] is created per frame.
+ */
+public final class FrameDecoder {
+
+    public interface Listener {
+        // temperature is expressed in tenths of a degree (36.5 -> 365)
+        void onFrame(int heartRate, int saturation, int temperature, boolean badPosture);
+    }
+
+    private static final int FIELD_COUNT = 4;
+    private static final int MAX_FIELD_VALUE = 100000; // guards against overflow on garbage input
+
+    private final Listener listener;
+    private final int[] fields = new int[FIELD_COUNT];
+
+    // State of the frame being decoded
+    private int fieldIndex;
+    private int integerPart;
+    private int tenths;
+    private boolean hasDigits;
+    private boolean afterPoint;
+    private boolean malformed;
+
+    // Counters, only touched by the reader thread
+    private long bytesConsumed;
+    private long framesDecoded;
+    private long framesMalformed;
+
+    public FrameDecoder(Listener listener) {
+        this.listener = listener;
+        reset();
+    }
+
+    public void feed(byte[] buffer, int offset, int length) {
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            byte b = buffer[i];
+            if (b >= '0' && b <= '9') {
+                if (afterPoint) {
+                    // Keep one decimal digit, extra precision is dropped
+                    if (tenths < 0) tenths = b - '0';
+                } else if (integerPart < MAX_FIELD_VALUE) {
+                    integerPart = integerPart * 10 + (b - '0');
+                } else {
+                    malformed = true;
+                }
+                hasDigits = true;
+            } else if (b == ';') {
+                endField();
+            } else if (b == '%') {
+                endFrame();
+            } else if (b == '.' || b == ',') {
+                if (afterPoint) malformed = true;
+                afterPoint = true;
+            } else if (b != ' ' && b != '\r' && b != '\n' && b != '\t') {
+                malformed = true;
+            }
+        }
+        bytesConsumed += length;
+    }
+
+    // Drops any partial frame, e.g. after a reconnection
+    public void reset() {
+        fieldIndex = 0;
+        malformed = false;
+        resetField();
+    }
+
+    public long getBytesConsumed() {
+        return bytesConsumed;
+    }
+
+    public long getFramesDecoded() {
+        return framesDecoded;
+    }
+
+    public long getFramesMalformed() {
+        return framesMalformed;
+    }
+
+    private void endField() {
+        if (hasDigits) {
+            if (fieldIndex < FIELD_COUNT) {
+                fields[fieldIndex] = integerPart * 10 + Math.max(tenths, 0);
+            } else {
+                malformed = true; // more than four values
+            }
+        } else if (afterPoint || fieldIndex < FIELD_COUNT) {
+            malformed = true; // empty field in the middle of the frame
+        }
+        fieldIndex++;
+        resetField();
+    }
+
+    private void endFrame() {
+        // A trailing ';' before '%' is allowed, it leaves an empty fifth field
+        if (hasDigits || afterPoint) {
+            endField();
+        }
+        if (fieldIndex == 0 && !malformed) {
+            reset(); // blank frame, e.g. only whitespace between two '%'
+            return;
+        }
+        if (malformed || fieldIndex < FIELD_COUNT) {
+            framesMalformed++;
+        } else {
+            framesDecoded++;
+            listener.onFrame(fields[0] / 10, fields[1] / 10, fields[2], fields[3] == 10);
+        }
+        reset();
+    }
+
+    private void resetField() {
+        integerPart = 0;
+        tenths = -1;
+        hasDigits = false;
+        afterPoint = false;
+    }
+}
@@ -0,0 +1,37 @@
+package com.example.s;
+
+/**
+ * Coalesces updates into at most one redraw per frame interval. Each update asks
+ * when the next redraw should run: right away if the last one is older than the
+ * interval, at the end of the interval otherwise, or never if a redraw is already
+ * scheduled and will pick the update up. Not thread-safe: used from the main thread.
+ */
+public final class FrameLimiter {
+
+    private final long intervalMs;
+    private long lastFrame = Long.MIN_VALUE / 2;
+    private boolean scheduled;
+
+    public FrameLimiter(long intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("intervalMs must be positive");
+        this.intervalMs = intervalMs;
+    }
+
+    // Delay before the redraw this update needs, or -1 if one is already scheduled
+    public long request(long now) {
+        if (scheduled) return -1;
+        scheduled = true;
+        return Math.max(0, lastFrame + intervalMs - now);
+    }
+
+    // Called by the redraw when it runs
+    public void onFrame(long now) {
+        scheduled = false;
+        lastFrame = now;
+    }
+
+    // Forgets a scheduled redraw that was cancelled
+    public void cancel() {
+        scheduled = false;
+    }
+}
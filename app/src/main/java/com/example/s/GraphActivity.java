@@ -1,7 +1,14 @@
 package com.example.s;
 
+import android.content.ComponentName;
+import android.content.Intent;
+import android.content.ServiceConnection;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.MotionEvent;
 import android.widget.CheckBox;
 import androidx.appcompat.app.AppCompatActivity;
 import com.github.mikephil.charting.charts.LineChart;
@@ -9,13 +16,54 @@ import com.github.mikephil.charting.components.XAxis;
 import com.github.mikephil.charting.data.Entry;
 import com.github.mikephil.charting.data.LineData;
 import com.github.mikephil.charting.data.LineDataSet;
+import com.github.mikephil.charting.formatter.ValueFormatter;
+import com.github.mikephil.charting.listener.ChartTouchListener;
+import com.github.mikephil.charting.listener.OnChartGestureListener;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class GraphActivity extends AppCompatActivity {
 
+    // Points per line: about two per pixel of the plot (MAX_POINTS before the layout),
+    // independent of the history size
+    private static final int MAX_POINTS = 1000;
+    // Circles are only drawn when the visible points are at least this far apart
+    private static final int CIRCLE_SPACING_PX = 24;
+    // Live mode: a sliding minute at up to 50 Hz, redrawn at most 30 times a second
+    private static final int LIVE_WINDOW = 60 * 50;
+    private static final long FRAME_INTERVAL_MS = 34; // 1000 / 30 rounded up
+
     private LineChart lineChart;
     private LineDataSet heartRateDataSet, saturationDataSet, temperatureDataSet;
+    private CheckBox heartRateCheckBox, saturationCheckBox, temperatureCheckBox;
+
+    // History mode: the whole range at screen resolution, with the visible part
+    // re-read in detail after each zoom or pan
+    private HistoryQuery historyQuery;
+    private HistoryQuery.Window overview;
+    private long historyOrigin;
+    private volatile int detailGeneration; // Bumped on the main thread to drop stale detail reads
+    private final ExecutorService detailLoader = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "GraphDetailLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Live mode, main thread only: the window holds the samples, the data sets recycle their entries
+    private BluetoothForegroundService bluetoothService;
+    private boolean started;
+    private boolean live;
+    private final HistoryRing liveWindow = new HistoryRing(LIVE_WINDOW);
+    private long liveOrigin;
+    private final FrameLimiter frameLimiter = new FrameLimiter(FRAME_INTERVAL_MS);
+    private final Runnable liveRedraw = this::redrawLive;
+    private final SampleHub.Subscriber liveSubscriber = this::onLiveSamples;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -24,39 +72,215 @@ public class GraphActivity extends AppCompatActivity {
 
         lineChart = findViewById(R.id.line_chart);
 
-        CheckBox heartRateCheckBox = findViewById(R.id.checkbox_heart_rate);
-        CheckBox saturationCheckBox = findViewById(R.id.checkbox_saturation);
-        CheckBox temperatureCheckBox = findViewById(R.id.checkbox_temperature);
+        heartRateCheckBox = findViewById(R.id.checkbox_heart_rate);
+        saturationCheckBox = findViewById(R.id.checkbox_saturation);
+        temperatureCheckBox = findViewById(R.id.checkbox_temperature);
+        CheckBox liveCheckBox = findViewById(R.id.checkbox_live);
 
-        // Get health data from intent
-        List<String[]> healthDataList = (List<String[]>) getIntent().getSerializableExtra("HEALTH_DATA");
-
-        if (healthDataList != null) {
-            setupGraph(healthDataList);
-        }
+        loadHistory();
 
         // Set listeners for checkboxes
         heartRateCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> toggleLineVisibility(heartRateDataSet, isChecked));
         saturationCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> toggleLineVisibility(saturationDataSet, isChecked));
         temperatureCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> toggleLineVisibility(temperatureDataSet, isChecked));
+        liveCheckBox.setOnCheckedChangeListener((buttonView, isChecked) -> setLive(isChecked));
+        lineChart.setOnChartGestureListener(gestureListener);
+
+        // Bind without creating the service: live mode has nothing to show unless a sensor is connected
+        bindService(new Intent(this, BluetoothForegroundService.class), serviceConnection, 0);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        detailLoader.shutdownNow();
+        try {
+            unbindService(serviceConnection);
+        } catch (IllegalArgumentException e) {
+            e.printStackTrace(); // Service not bound
+        }
     }
 
-    private void setupGraph(List<String[]> healthDataList) {
-        List<Entry> heartRateEntries = new ArrayList<>();
-        List<Entry> saturationEntries = new ArrayList<>();
-        List<Entry> temperatureEntries = new ArrayList<>();
+    @Override
+    protected void onStart() {
+        super.onStart();
+        started = true;
+        subscribeLive();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        started = false;
+        unsubscribeLive();
+    }
 
-        for (int i = 0; i < healthDataList.size(); i++) {
-            String[] data = healthDataList.get(i);
-            float heartRate = Float.parseFloat(data[0]);
-            float saturation = Float.parseFloat(data[1]);
-            float temperature = Float.parseFloat(data[2]);
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            bluetoothService = ((BluetoothForegroundService.LocalBinder) service).getService();
+            subscribeLive();
+        }
 
-            heartRateEntries.add(new Entry(i, heartRate));
-            saturationEntries.add(new Entry(i, saturation));
-            temperatureEntries.add(new Entry(i, temperature));
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            bluetoothService = null;
         }
+    };
+
+    // Reads the whole recorded range from disk at screen resolution, queued with the detail reads
+    private void loadHistory() {
+        int points = pointBudget();
+        int generation = ++detailGeneration;
+        detailLoader.execute(() -> {
+            if (generation != detailGeneration) return; // Switched to live mode, or a newer load is queued
+            try {
+                // The history of the sensor the main screen follows
+                String address = getSharedPreferences("BluetoothPrefs", MODE_PRIVATE).getString("LastDevice", null);
+                HealthStorage storage = HealthStorage.forDevice(this, address);
+                // Let the writer persist what the service has queued so the graph is up to date
+                storage.getWriter().flush(500);
+                HistoryQuery query = storage.newQuery();
+                long first = query.firstTimestamp();
+                if (first < 0) return;
+                HistoryQuery.Window window = query.queryMinMax(first, query.lastTimestamp() + 1, points);
+                runOnUiThread(() -> {
+                    if (generation != detailGeneration || isFinishing() || isDestroyed() || live) return;
+                    historyQuery = query;
+                    overview = window;
+                    setupGraph(window);
+                });
+            } catch (IOException e) {
+                Log.e("GraphActivity", "Failed to load health data", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+    }
 
+    private void setupGraph(HistoryQuery.Window window) {
+        List<Entry> heartRateEntries = new ArrayList<>(window.size);
+        List<Entry> saturationEntries = new ArrayList<>(window.size);
+        List<Entry> temperatureEntries = new ArrayList<>(window.size);
+
+        // X is seconds since the first point: a float cannot hold epoch milliseconds
+        long origin = window.size > 0 ? window.timestamps[0] : 0;
+        historyOrigin = origin;
+        addEntries(window, 0, window.size, heartRateEntries, saturationEntries, temperatureEntries);
+        long span = window.size > 0 ? window.timestamps[window.size - 1] - origin : 0;
+        showLines(heartRateEntries, saturationEntries, temperatureEntries, origin,
+                span > Rollups.HOUR * 24 ? "dd/MM HH:mm" : "HH:mm:ss", isSparse(window.size));
+    }
+
+    private void addEntries(HistoryQuery.Window window, int from, int to,
+                            List<Entry> heartRates, List<Entry> saturations, List<Entry> temperatures) {
+        for (int i = from; i < to; i++) {
+            float x = (window.timestamps[i] - historyOrigin) / 1000f;
+            heartRates.add(new Entry(x, window.heartRates[i]));
+            saturations.add(new Entry(x, window.saturations[i]));
+            temperatures.add(new Entry(x, window.temperatures[i]));
+        }
+    }
+
+    // About two points per pixel of the plot, so the decimation does not show
+    private int pointBudget() {
+        int width = (int) lineChart.getViewPortHandler().contentWidth();
+        return width > 0 ? 2 * width : MAX_POINTS;
+    }
+
+    private boolean isSparse(int visiblePoints) {
+        int width = (int) lineChart.getViewPortHandler().contentWidth();
+        return (long) visiblePoints * CIRCLE_SPACING_PX <= (width > 0 ? width : MAX_POINTS / 2);
+    }
+
+    private final OnChartGestureListener gestureListener = new OnChartGestureListener() {
+        @Override
+        public void onChartGestureEnd(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+            loadVisibleRange();
+        }
+
+        @Override
+        public void onChartGestureStart(MotionEvent me, ChartTouchListener.ChartGesture lastPerformedGesture) {
+        }
+
+        @Override
+        public void onChartLongPressed(MotionEvent me) {
+        }
+
+        @Override
+        public void onChartDoubleTapped(MotionEvent me) {
+        }
+
+        @Override
+        public void onChartSingleTapped(MotionEvent me) {
+        }
+
+        @Override
+        public void onChartFling(MotionEvent me1, MotionEvent me2, float velocityX, float velocityY) {
+        }
+
+        @Override
+        public void onChartScale(MotionEvent me, float scaleX, float scaleY) {
+        }
+
+        @Override
+        public void onChartTranslate(MotionEvent me, float dX, float dY) {
+        }
+    };
+
+    // Re-reads the visible range at screen resolution; the cost depends on the plot width, not on the history
+    private void loadVisibleRange() {
+        if (live || historyQuery == null || overview == null) return;
+        long from = historyOrigin + (long) Math.floor(lineChart.getLowestVisibleX() * 1000.0);
+        long to = historyOrigin + (long) Math.ceil(lineChart.getHighestVisibleX() * 1000.0) + 1;
+        int points = pointBudget();
+        int generation = ++detailGeneration;
+        HistoryQuery query = historyQuery;
+        detailLoader.execute(() -> {
+            if (generation != detailGeneration) return; // A newer gesture is queued
+            try {
+                HistoryQuery.Window detail = query.queryMinMax(from, to, points);
+                runOnUiThread(() -> {
+                    if (generation == detailGeneration && !live && !isDestroyed()) showDetail(detail, from, to);
+                });
+            } catch (IOException e) {
+                Log.e("GraphActivity", "Failed to load the visible range", e);
+            }
+        });
+    }
+
+    // Splices the detail of the visible range into the overview, so the X range and the viewport stay put
+    private void showDetail(HistoryQuery.Window detail, long from, long to) {
+        if (heartRateDataSet == null) return;
+        HistoryQuery.Window window = overview;
+        int before = 0;
+        while (before < window.size && window.timestamps[before] < from) before++;
+        int after = before;
+        while (after < window.size && window.timestamps[after] < to) after++;
+
+        int size = before + detail.size + window.size - after;
+        List<Entry> heartRates = new ArrayList<>(size);
+        List<Entry> saturations = new ArrayList<>(size);
+        List<Entry> temperatures = new ArrayList<>(size);
+        addEntries(window, 0, before, heartRates, saturations, temperatures);
+        addEntries(detail, 0, detail.size, heartRates, saturations, temperatures);
+        addEntries(window, after, window.size, heartRates, saturations, temperatures);
+
+        boolean circles = isSparse(detail.size);
+        heartRateDataSet.setValues(heartRates);
+        saturationDataSet.setValues(saturations);
+        temperatureDataSet.setValues(temperatures);
+        for (LineDataSet dataSet : new LineDataSet[]{heartRateDataSet, saturationDataSet, temperatureDataSet}) {
+            dataSet.setDrawCircles(circles);
+            dataSet.setDrawValues(circles);
+        }
+        lineChart.getData().notifyDataChanged();
+        lineChart.notifyDataSetChanged();
+        lineChart.invalidate();
+    }
+
+    private void showLines(List<Entry> heartRateEntries, List<Entry> saturationEntries, List<Entry> temperatureEntries,
+                           long origin, String timePattern, boolean drawCircles) {
         heartRateDataSet = new LineDataSet(heartRateEntries, "Frequenza Cardiaca");
         heartRateDataSet.setColor(Color.RED);
         heartRateDataSet.setLineWidth(2f);
@@ -75,6 +299,14 @@ public class GraphActivity extends AppCompatActivity {
         temperatureDataSet.setCircleColor(Color.GREEN);
         temperatureDataSet.setCircleRadius(4f);
 
+        for (LineDataSet dataSet : new LineDataSet[]{heartRateDataSet, saturationDataSet, temperatureDataSet}) {
+            dataSet.setDrawCircles(drawCircles);
+            dataSet.setDrawValues(drawCircles);
+        }
+        heartRateDataSet.setVisible(heartRateCheckBox.isChecked());
+        saturationDataSet.setVisible(saturationCheckBox.isChecked());
+        temperatureDataSet.setVisible(temperatureCheckBox.isChecked());
+
         LineData lineData = new LineData(heartRateDataSet, saturationDataSet, temperatureDataSet);
         lineChart.setData(lineData);
 
@@ -86,6 +318,7 @@ public class GraphActivity extends AppCompatActivity {
         xAxis.setPosition(XAxis.XAxisPosition.BOTTOM);
         xAxis.setTextColor(Color.BLACK);
         xAxis.setGranularity(1f);
+        xAxis.setValueFormatter(new TimeAxisFormatter(origin, timePattern));
 
         lineChart.getAxisLeft().setTextColor(Color.BLACK);
         lineChart.getAxisLeft().setGranularity(1f);
@@ -96,8 +329,98 @@ public class GraphActivity extends AppCompatActivity {
         lineChart.invalidate();
     }
 
+    // Switches between the recorded history and the samples arriving from the service
+    private void setLive(boolean enabled) {
+        if (enabled == live) return;
+        live = enabled;
+        if (live) {
+            detailGeneration++;
+            overview = null;
+            liveWindow.clear();
+            liveOrigin = System.currentTimeMillis();
+            showLines(new ArrayList<>(LIVE_WINDOW), new ArrayList<>(LIVE_WINDOW), new ArrayList<>(LIVE_WINDOW),
+                    liveOrigin, "HH:mm:ss", false);
+            subscribeLive();
+        } else {
+            unsubscribeLive();
+            loadHistory();
+        }
+    }
+
+    private void subscribeLive() {
+        if (live && started && bluetoothService != null) {
+            // Nothing older than the window would be drawn anyway
+            bluetoothService.subscribe(liveSubscriber, -1, SampleHub.Policy.dropOldest(LIVE_WINDOW));
+        }
+    }
+
+    private void unsubscribeLive() {
+        if (bluetoothService != null) bluetoothService.unsubscribe(liveSubscriber);
+        lineChart.removeCallbacks(liveRedraw);
+        frameLimiter.cancel();
+    }
+
+    // Called on the main thread: only the window changes here, the chart is redrawn once per frame
+    private void onLiveSamples(SampleBatch batch, long firstSequence) {
+        if (!live) return;
+        liveWindow.add(batch);
+        long delay = frameLimiter.request(SystemClock.uptimeMillis());
+        if (delay >= 0) lineChart.postDelayed(liveRedraw, delay);
+    }
+
+    // Writes the window into the entries already in the data sets; new entries are only
+    // allocated while the window is filling up, so hours of samples do not grow the heap
+    private void redrawLive() {
+        frameLimiter.onFrame(SystemClock.uptimeMillis());
+        if (!live || heartRateDataSet == null) return;
+        List<Entry> heartRates = heartRateDataSet.getValues();
+        List<Entry> saturations = saturationDataSet.getValues();
+        List<Entry> temperatures = temperatureDataSet.getValues();
+        for (int i = 0; i < liveWindow.size(); i++) {
+            float x = (liveWindow.timestampAt(i) - liveOrigin) / 1000f;
+            setEntry(heartRates, i, x, liveWindow.heartRateAt(i));
+            setEntry(saturations, i, x, liveWindow.saturationAt(i));
+            setEntry(temperatures, i, x, liveWindow.temperatureAt(i) / 10f);
+        }
+        heartRateDataSet.notifyDataSetChanged();
+        saturationDataSet.notifyDataSetChanged();
+        temperatureDataSet.notifyDataSetChanged();
+        lineChart.getData().notifyDataChanged();
+        lineChart.notifyDataSetChanged();
+        lineChart.invalidate();
+    }
+
+    private static void setEntry(List<Entry> entries, int index, float x, float y) {
+        if (index < entries.size()) {
+            Entry entry = entries.get(index);
+            entry.setX(x);
+            entry.setY(y);
+        } else {
+            entries.add(new Entry(x, y));
+        }
+    }
+
     private void toggleLineVisibility(LineDataSet dataSet, boolean isVisible) {
+        if (dataSet == null) return; // History still loading
         dataSet.setVisible(isVisible);
         lineChart.invalidate();
     }
+
+    // Labels the X axis with the wall-clock time of each position
+    private static final class TimeAxisFormatter extends ValueFormatter {
+        private final long origin;
+        private final SimpleDateFormat format;
+        private final Date date = new Date();
+
+        TimeAxisFormatter(long origin, String pattern) {
+            this.origin = origin;
+            this.format = new SimpleDateFormat(pattern, Locale.getDefault());
+        }
+
+        @Override
+        public String getFormattedValue(float value) {
+            date.setTime(origin + (long) (value * 1000));
+            return format.format(date);
+        }
+    }
 }
@@ -0,0 +1,546 @@
+package com.example.s;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only store of health samples. Samples are sealed in compressed blocks of
+ * BLOCK_RECORDS samples (see SampleCodec), each one checksummed and decodable on its own:
+ *
+ * <pre>
+ *  0  int   payload length
+ *  4  int   CRC-32 of the payload
+ *  8  ...   payload
+ * </pre>
+ *
+ * The samples of the block being filled are kept in memory and in a ".tail" journal,
+ * after a header with the format version (top byte) and the index of its first sample,
+ * as fixed-width records, so each append is still a single positional write:
+ *
+ * <pre>
+ *  0  long  timestamp (ms)
+ *  8  short heart rate
+ * 10  short temperature (tenths of a degree)
+ * 12  byte  saturation (unsigned)
+ * 13  byte  flags (bit 0: bad posture)
+ * 14  short checksum of bytes 0-13 and the index of the sample
+ * </pre>
+ *
+ * On open the journal is replayed up to the first record that does not match its
+ * checksum (torn, or never written before a power cut), so recovery reads at most one
+ * block worth of records whatever the size of the history. How often the journal is
+ * forced to disk is set by a SyncPolicy.
+ *
+ * A full tail is encoded, appended to the block file and started over. The offset and
+ * the first and last timestamp of every block are kept in memory and in a sidecar ".idx"
+ * file, so finding a time is a binary search plus the decoding of one block.
+ */
+public final class HealthDataStore implements Closeable {
+
+    public static final int RECORD_SIZE = 16;
+    public static final int FLAG_BAD_POSTURE = 1;
+    public static final int BLOCK_RECORDS = 1024;
+
+    static final int TAIL_HEADER = 8;
+    static final int TAIL_VERSION = 1; // 0: records without checksums
+    private static final long FIRST_INDEX_MASK = (1L << 56) - 1;
+    private static final int BLOCK_HEADER = 8;
+    private static final int INDEX_ENTRY = 24;
+    private static final int IMPORT_BATCH = 4096;
+
+    public interface Visitor {
+        void visit(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture);
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final RandomAccessFile tailFile;
+    private final FileChannel tailChannel;
+    private final RandomAccessFile indexFile;
+    private final FileChannel indexChannel;
+
+    // Appending thread only, under the lock
+    private final SampleBatch tail = new SampleBatch(BLOCK_RECORDS);
+    private final SampleBatch single = new SampleBatch(1);
+    private final SampleCodec codec = new SampleCodec();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(RECORD_SIZE);
+    private long blocksLength; // End of the last whole block
+    private SyncPolicy syncPolicy = SyncPolicy.ON_PAUSE;
+    private long lastSync = System.nanoTime();
+    private long syncs;
+
+    // Filled before blockCount moves past an entry, and blockCount before count
+    private volatile long[] blockOffsets;
+    private volatile long[] blockFirst;
+    private volatile long[] blockLast;
+    private volatile int blockCount;
+    private volatile long count;
+    // The last block a lookup decoded, never changed once published
+    private volatile DecodedBlock lastLookup;
+
+    private static final class DecodedBlock {
+        final int block;
+        final SampleBatch samples;
+
+        DecodedBlock(int block, SampleBatch samples) {
+            this.block = block;
+            this.samples = samples;
+        }
+    }
+
+    public HealthDataStore(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        indexFile = new RandomAccessFile(new File(path.getPath() + ".idx"), "rw");
+        indexChannel = indexFile.getChannel();
+        tailFile = new RandomAccessFile(new File(path.getPath() + ".tail"), "rw");
+        tailChannel = tailFile.getChannel();
+        loadBlocks();
+        loadTail();
+    }
+
+    public synchronized void append(long timestamp, int heartRate, int saturation, int temperature,
+                                    boolean badPosture) throws IOException {
+        single.clear();
+        single.add(timestamp, heartRate, saturation, temperature, badPosture);
+        append(single);
+    }
+
+    public synchronized void setSyncPolicy(SyncPolicy policy) {
+        syncPolicy = policy;
+    }
+
+    // Journal syncs so far, from the policy or from flush
+    synchronized long syncCount() {
+        return syncs;
+    }
+
+    // Appends the batch with one write to the tail, plus one block for each tail it fills
+    public synchronized void append(SampleBatch batch) throws IOException {
+        appendRecords(batch);
+        if (syncPolicy.isDue((System.nanoTime() - lastSync) / 1_000_000)) {
+            tailChannel.force(false);
+            lastSync = System.nanoTime();
+            syncs++;
+        }
+    }
+
+    private void appendRecords(SampleBatch batch) throws IOException {
+        int from = 0;
+        while (from < batch.size()) {
+            int records = Math.min(batch.size() - from, BLOCK_RECORDS - tail.size());
+            if (writeBuffer.capacity() < records * RECORD_SIZE) {
+                writeBuffer = ByteBuffer.allocate(records * RECORD_SIZE);
+            }
+            writeBuffer.clear();
+            long index = count;
+            for (int i = from; i < from + records; i++) {
+                putRecord(writeBuffer, batch.timestamps[i], batch.heartRates[i], batch.saturations[i],
+                        batch.temperatures[i], batch.badPostures[i], index++);
+            }
+            writeBuffer.flip();
+            writeFully(tailChannel, writeBuffer, TAIL_HEADER + (long) tail.size() * RECORD_SIZE);
+            // As read back from the records, so a sample does not change when its block is sealed
+            for (int i = from; i < from + records; i++) {
+                tail.add(batch.timestamps[i], (short) batch.heartRates[i], batch.saturations[i] & 0xFF,
+                        (short) batch.temperatures[i], batch.badPostures[i]);
+            }
+            count += records;
+            if (tail.isFull()) seal();
+            from += records;
+        }
+    }
+
+    // Copies the samples of a store in the old fixed-width format after the ones already
+    // here, so an interrupted import picks up where it stopped
+    public void importRecords(File legacy) throws IOException {
+        try (RandomAccessFile source = new RandomAccessFile(legacy, "r")) {
+            FileChannel sourceChannel = source.getChannel();
+            long records = sourceChannel.size() / RECORD_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(IMPORT_BATCH * RECORD_SIZE);
+            SampleBatch batch = new SampleBatch(IMPORT_BATCH);
+            for (long index = size(); index < records; index += batch.size()) {
+                int chunk = (int) Math.min(IMPORT_BATCH, records - index);
+                buffer.clear();
+                buffer.limit(chunk * RECORD_SIZE);
+                readFully(sourceChannel, buffer, index * RECORD_SIZE);
+                buffer.flip();
+                batch.clear();
+                getRecords(buffer, chunk, batch);
+                append(batch);
+            }
+        }
+        flush();
+    }
+
+    // Number of records in the store
+    public long size() {
+        return count;
+    }
+
+    // Visits the records with index in [from, to), oldest first
+    public void read(long from, long to, Visitor visitor) throws IOException {
+        to = Math.min(to, count);
+        if (from < 0) from = 0;
+        SampleBatch decoded = null;
+        long index = from;
+        while (index < to) {
+            int blocks = blockCount;
+            long sealed = (long) blocks * BLOCK_RECORDS;
+            if (index < sealed) {
+                int block = (int) (index / BLOCK_RECORDS);
+                DecodedBlock cached = lastLookup;
+                SampleBatch samples;
+                if (cached != null && cached.block == block) {
+                    samples = cached.samples;
+                } else {
+                    if (decoded == null) decoded = new SampleBatch(BLOCK_RECORDS);
+                    readBlock(block, decoded);
+                    samples = decoded;
+                }
+                long first = (long) block * BLOCK_RECORDS;
+                int end = (int) Math.min(BLOCK_RECORDS, to - first);
+                visit(samples, (int) (index - first), end, visitor);
+                index = first + end;
+                continue;
+            }
+            SampleBatch copy;
+            synchronized (this) {
+                if (blockCount != blocks) continue; // Sealed meanwhile, read it from its block
+                int start = (int) (index - sealed);
+                int end = (int) Math.min(tail.size(), to - sealed);
+                copy = new SampleBatch(end - start);
+                for (int i = start; i < end; i++) {
+                    copy.add(tail.timestamps[i], tail.heartRates[i], tail.saturations[i],
+                            tail.temperatures[i], tail.badPostures[i]);
+                }
+            }
+            visit(copy, 0, copy.size(), visitor); // Outside the lock, the visitor may be slow
+            index = to;
+        }
+    }
+
+    // Timestamp of a single record
+    public long timestampAt(long index) throws IOException {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException("No record " + index);
+        while (true) {
+            int blocks = blockCount;
+            if (index < (long) blocks * BLOCK_RECORDS) {
+                return lookup((int) (index / BLOCK_RECORDS)).timestamps[(int) (index % BLOCK_RECORDS)];
+            }
+            synchronized (this) {
+                if (blockCount == blocks) return tail.timestamps[(int) (index - (long) blocks * BLOCK_RECORDS)];
+            }
+        }
+    }
+
+    // Index of the first record at or after the given time, size() if none.
+    // Records are appended in time order: a binary search over the block index finds
+    // the block, then decoding that block finds the record.
+    public long indexAtOrAfter(long timestamp) throws IOException {
+        while (true) {
+            int blocks = blockCount;
+            long[] first = blockFirst;
+            long[] last = blockLast;
+            int low = 0;
+            int high = blocks;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (last[mid] < timestamp) low = mid + 1;
+                else high = mid;
+            }
+            if (low < blocks) {
+                if (first[low] >= timestamp) return (long) low * BLOCK_RECORDS;
+                return (long) low * BLOCK_RECORDS + search(lookup(low).timestamps, BLOCK_RECORDS, timestamp);
+            }
+            // Every sealed record is older
+            synchronized (this) {
+                if (blockCount != blocks) continue;
+                return (long) blocks * BLOCK_RECORDS + search(tail.timestamps, tail.size(), timestamp);
+            }
+        }
+    }
+
+    // Forces everything to disk, whatever the sync policy
+    public synchronized void flush() throws IOException {
+        channel.force(false);
+        tailChannel.force(false);
+        indexChannel.force(false);
+        lastSync = System.nanoTime();
+        syncs++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        tailFile.close();
+        indexFile.close();
+        file.close();
+    }
+
+    // Position of the first timestamp at or after the given one among the first size
+    private static int search(long[] timestamps, int size, long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private static void visit(SampleBatch batch, int from, int to, Visitor visitor) {
+        for (int i = from; i < to; i++) {
+            visitor.visit(batch.timestamps[i], batch.heartRates[i], batch.saturations[i],
+                    batch.temperatures[i], batch.badPostures[i]);
+        }
+    }
+
+    // Seeks land on the same few blocks over and over, e.g. the first and the last one
+    private SampleBatch lookup(int block) throws IOException {
+        DecodedBlock cached = lastLookup;
+        if (cached != null && cached.block == block) return cached.samples;
+        SampleBatch samples = new SampleBatch(BLOCK_RECORDS);
+        readBlock(block, samples);
+        lastLookup = new DecodedBlock(block, samples);
+        return samples;
+    }
+
+    private void readBlock(int block, SampleBatch batch) throws IOException {
+        long offset = blockOffsets[block];
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, offset + BLOCK_HEADER);
+        if (!decodeBlock(payload.array(), length, header.getInt(4), batch)) {
+            throw new IOException("Corrupt health data block " + block);
+        }
+    }
+
+    // False when the payload does not match its checksum or is not a whole block
+    private static boolean decodeBlock(byte[] payload, int length, int checksum, SampleBatch batch) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        if ((int) crc.getValue() != checksum) return false;
+        try {
+            SampleCodec.decode(payload, 0, length, batch);
+        } catch (IOException e) {
+            return false;
+        }
+        return batch.size() == BLOCK_RECORDS;
+    }
+
+    // Encodes the full tail as a new block, then starts the tail over after it
+    private void seal() throws IOException {
+        int length = codec.encode(tail);
+        crc.reset();
+        crc.update(codec.buffer(), 0, length);
+        ByteBuffer block = ByteBuffer.allocate(BLOCK_HEADER + length);
+        block.putInt(length).putInt((int) crc.getValue()).put(codec.buffer(), 0, length).flip();
+        writeFully(channel, block, blocksLength);
+        // The block must be on disk before its samples leave the tail
+        channel.force(false);
+        addBlock(blocksLength, tail.timestamps[0], tail.timestamps[BLOCK_RECORDS - 1], true);
+        blocksLength += BLOCK_HEADER + length;
+
+        tailChannel.truncate(TAIL_HEADER);
+        writeTailHeader();
+        tail.clear();
+    }
+
+    private void addBlock(long offset, long first, long last, boolean writeIndex) throws IOException {
+        int block = blockCount;
+        long[] offsets = blockOffsets;
+        long[] firsts = blockFirst;
+        long[] lasts = blockLast;
+        if (block == offsets.length) {
+            offsets = Arrays.copyOf(offsets, block * 2);
+            firsts = Arrays.copyOf(firsts, block * 2);
+            lasts = Arrays.copyOf(lasts, block * 2);
+        }
+        offsets[block] = offset;
+        firsts[block] = first;
+        lasts[block] = last;
+        blockOffsets = offsets;
+        blockFirst = firsts;
+        blockLast = lasts;
+        if (writeIndex) {
+            ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY);
+            entry.putLong(offset).putLong(first).putLong(last).flip();
+            writeFully(indexChannel, entry, (long) block * INDEX_ENTRY);
+        }
+        blockCount = block + 1;
+    }
+
+    // Reads the sidecar index, checks its last block against the data and indexes any
+    // block written after it; a block torn by a crash is cut off, its samples are still in the tail
+    private void loadBlocks() throws IOException {
+        long length = channel.size();
+        int entries = (int) (indexChannel.size() / INDEX_ENTRY);
+        blockOffsets = new long[Math.max(16, entries)];
+        blockFirst = new long[blockOffsets.length];
+        blockLast = new long[blockOffsets.length];
+        blockCount = 0;
+        if (entries > 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(entries * INDEX_ENTRY);
+            readFully(indexChannel, buffer, 0);
+            buffer.flip();
+            for (int i = 0; i < entries; i++) {
+                addBlock(buffer.getLong(), buffer.getLong(), buffer.getLong(), false);
+            }
+        }
+
+        SampleBatch decoded = new SampleBatch(BLOCK_RECORDS);
+        ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+        long position = 0;
+        if (entries > 0) {
+            // An index that does not match the data (lost or replaced) is rebuilt
+            long offset = blockOffsets[entries - 1];
+            long end = checkBlock(offset, length, header, decoded);
+            if (end < 0 || decoded.timestamps[0] != blockFirst[entries - 1]
+                    || decoded.timestamps[BLOCK_RECORDS - 1] != blockLast[entries - 1]) {
+                blockCount = 0;
+            } else {
+                position = end;
+            }
+        }
+        indexChannel.truncate((long) blockCount * INDEX_ENTRY);
+
+        while (position < length) {
+            long end = checkBlock(position, length, header, decoded);
+            if (end < 0) {
+                channel.truncate(position);
+                break;
+            }
+            addBlock(position, decoded.timestamps[0], decoded.timestamps[BLOCK_RECORDS - 1], true);
+            position = end;
+        }
+        blocksLength = position;
+    }
+
+    // End of the block at the offset, -1 if it is torn or corrupt
+    private long checkBlock(long offset, long fileLength, ByteBuffer header, SampleBatch decoded) throws IOException {
+        if (offset + BLOCK_HEADER > fileLength) return -1;
+        header.clear();
+        readFully(channel, header, offset);
+        int length = header.getInt(0);
+        if (length < 0 || offset + BLOCK_HEADER + length > fileLength) return -1;
+        ByteBuffer payload = ByteBuffer.allocate(length);
+        readFully(channel, payload, offset + BLOCK_HEADER);
+        if (!decodeBlock(payload.array(), length, header.getInt(4), decoded)) return -1;
+        return offset + BLOCK_HEADER + length;
+    }
+
+    // Replays the journal of the open block: records a crash left both in a block and in
+    // the tail are dropped, the journal is cut at the first torn or unwritten record
+    private void loadTail() throws IOException {
+        long sealed = (long) blockCount * BLOCK_RECORDS;
+        long length = tailChannel.size();
+        if (length < TAIL_HEADER) {
+            tailChannel.truncate(0);
+            writeTailHeader();
+            count = sealed;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(TAIL_HEADER);
+        readFully(tailChannel, header, 0);
+        int version = (int) (header.getLong(0) >>> 56);
+        long first = header.getLong(0) & FIRST_INDEX_MASK;
+        int records = (int) Math.min((length - TAIL_HEADER) / RECORD_SIZE, Integer.MAX_VALUE / RECORD_SIZE);
+        int skip = (int) Math.max(0, Math.min(records, sealed - first));
+
+        ByteBuffer buffer = ByteBuffer.allocate((records - skip) * RECORD_SIZE);
+        readFully(tailChannel, buffer, TAIL_HEADER + (long) skip * RECORD_SIZE);
+        buffer.flip();
+        int valid = version == 0 ? records - skip : checkedRecords(buffer, records - skip, first + skip);
+        SampleBatch pending = new SampleBatch(valid);
+        getRecords(buffer, valid, pending);
+
+        count = sealed;
+        if (version == TAIL_VERSION && first == sealed && pending.size() < BLOCK_RECORDS) {
+            tailChannel.truncate(TAIL_HEADER + (long) pending.size() * RECORD_SIZE);
+            for (int i = 0; i < pending.size(); i++) {
+                tail.add(pending.timestamps[i], pending.heartRates[i], pending.saturations[i],
+                        pending.temperatures[i], pending.badPostures[i]);
+            }
+            count = sealed + tail.size();
+        } else {
+            // Interrupted while sealing, or written without checksums: write the tail
+            // again, sealing what fills a block
+            tailChannel.truncate(0);
+            writeTailHeader();
+            appendRecords(pending);
+            tailChannel.force(false);
+        }
+    }
+
+    private void writeTailHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(TAIL_HEADER);
+        header.putLong(0, ((long) TAIL_VERSION << 56) | (long) blockCount * BLOCK_RECORDS);
+        writeFully(tailChannel, header, 0);
+    }
+
+    // Number of leading records that match their checksum
+    private static int checkedRecords(ByteBuffer buffer, int records, long firstIndex) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < records; i++) {
+            int offset = buffer.position() + i * RECORD_SIZE;
+            if (buffer.getShort(offset + 14) != checksum(crc, buffer.array(), offset, firstIndex + i)) return i;
+        }
+        return records;
+    }
+
+    // 16 bits of the CRC-32 of the record mixed with its index, so a record left over
+    // from an earlier block or a zero-filled one does not pass
+    static short checksum(CRC32 crc, byte[] record, int offset, long index) {
+        crc.reset();
+        crc.update(record, offset, 14);
+        long mixed = crc.getValue() ^ (index * 0x9E3779B97F4A7C15L >>> 32);
+        return (short) (mixed ^ (mixed >>> 16));
+    }
+
+    private static void getRecords(ByteBuffer buffer, int records, SampleBatch batch) {
+        for (int i = 0; i < records; i++) {
+            long timestamp = buffer.getLong();
+            int heartRate = buffer.getShort();
+            int temperature = buffer.getShort();
+            int saturation = buffer.get() & 0xFF;
+            int flags = buffer.get();
+            buffer.getShort();
+            batch.add(timestamp, heartRate, saturation, temperature, (flags & FLAG_BAD_POSTURE) != 0);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of health data store");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void putRecord(ByteBuffer buffer, long timestamp, int heartRate, int saturation,
+                           int temperature, boolean badPosture, long index) {
+        int offset = buffer.position();
+        buffer.putLong(timestamp)
+                .putShort((short) heartRate)
+                .putShort((short) temperature)
+                .put((byte) saturation)
+                .put((byte) (badPosture ? FLAG_BAD_POSTURE : 0))
+                .putShort(checksum(crc, buffer.array(), offset, index));
+    }
+}
@@ -0,0 +1,268 @@
+package com.example.s;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Background writer that groups samples into batches before handing them to the sink.
+ * Callers only copy the sample into a bounded in-memory batch, so submit() never
+ * touches the disk; the writer thread commits when batchSize samples are pending or
+ * the oldest pending sample is maxDelayMs old, whichever comes first. The cadence can
+ * be changed while running, e.g. to commit rarely and in large batches while nobody
+ * is looking at the screen.
+ */
+public final class HealthDataWriter implements Closeable {
+
+    public interface Sink {
+        void write(SampleBatch batch) throws IOException;
+
+        // Forces what was written so far to disk; only called when asked for with requestSync()
+        default void sync() throws IOException {
+        }
+    }
+
+    private final Sink sink;
+    private final int capacity;
+    private final Thread thread;
+    private final Object lock = new Object();
+
+    // Producers fill pending while the writer thread drains writing, then they are swapped
+    private SampleBatch pending;
+    private SampleBatch writing;
+    private int batchSize;
+    private long maxDelayNanos;
+    private long firstPendingAt;
+    private boolean flushRequested;
+    private boolean syncRequested;
+    private boolean closed;
+
+    private long submitted;
+    private long written;
+    private long dropped;
+    private long failed;
+    private long stalled;
+    private long wakeups;
+    private int waitingProducers;
+
+    public HealthDataWriter(Sink sink, int capacity, int batchSize, long maxDelayMs) {
+        if (batchSize <= 0 || batchSize > capacity) {
+            throw new IllegalArgumentException("batchSize must be in [1, capacity]");
+        }
+        this.sink = sink;
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.maxDelayNanos = maxDelayMs * 1_000_000L;
+        pending = new SampleBatch(capacity);
+        writing = new SampleBatch(capacity);
+
+        thread = new Thread(this::run, "HealthDataWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Never blocks on I/O: returns false (and counts a drop) if the queue is full
+    public boolean submit(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        return submit(0, timestamp, heartRate, saturation, temperature, badPosture);
+    }
+
+    // Same, tagging the sample with the storage partition it belongs to
+    public boolean submit(int source, long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        return submit(source, timestamp, heartRate, saturation, temperature, badPosture, 0);
+    }
+
+    // Same, but waits up to timeoutMs for room when the queue is full: the caller slows down
+    // to the pace of the disk instead of losing samples, and only drops if the disk stalls
+    public boolean submit(int source, long timestamp, int heartRate, int saturation, int temperature, boolean badPosture,
+                          long timeoutMs) {
+        synchronized (lock) {
+            if (!closed && pending.isFull() && timeoutMs > 0) {
+                stalled++;
+                long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+                waitingProducers++;
+                try {
+                    while (!closed && pending.isFull()) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) break;
+                        lock.wait(remaining / 1_000_000L + 1);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waitingProducers--;
+                }
+            }
+            if (closed || !pending.add(source, timestamp, heartRate, saturation, temperature, badPosture)) {
+                dropped++;
+                return false;
+            }
+            submitted++;
+            if (pending.size() == 1) {
+                firstPendingAt = System.nanoTime();
+            }
+            if (pending.size() == batchSize || pending.size() == 1) {
+                lock.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    // Changes the commit cadence; what is pending is committed right away if it is already due
+    public void setBatching(int batchSize, long maxDelayMs) {
+        if (batchSize <= 0 || batchSize > capacity) {
+            throw new IllegalArgumentException("batchSize must be in [1, capacity]");
+        }
+        synchronized (lock) {
+            this.batchSize = batchSize;
+            this.maxDelayNanos = maxDelayMs * 1_000_000L;
+            lock.notifyAll();
+        }
+    }
+
+    // Asks the writer to commit what is pending now, without waiting for it
+    public void requestFlush() {
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    // Same, then has the sink force everything to disk from the writer thread, e.g. when the app goes to the background
+    public void requestSync() {
+        synchronized (lock) {
+            flushRequested = true;
+            syncRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    // Waits until every sample submitted so far has been handed to the sink
+    public boolean flush(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1_000_000L;
+        synchronized (lock) {
+            long target = submitted;
+            flushRequested = true;
+            lock.notifyAll();
+            while (written + failed < target) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return false;
+                lock.wait(remaining / 1_000_000L + 1);
+            }
+            return true;
+        }
+    }
+
+    public long getSubmitted() {
+        synchronized (lock) {
+            return submitted;
+        }
+    }
+
+    public long getWritten() {
+        synchronized (lock) {
+            return written;
+        }
+    }
+
+    public long getDropped() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    // Submits that had to wait for room in the queue
+    public long getStalled() {
+        synchronized (lock) {
+            return stalled;
+        }
+    }
+
+    // Times the writer thread woke up, to commit or to start timing a new batch
+    public long getWakeups() {
+        synchronized (lock) {
+            return wakeups;
+        }
+    }
+
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return pending.size();
+        }
+    }
+
+    // Drains everything still pending, then stops the writer thread
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            thread.join(2000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        while (true) {
+            boolean sync;
+            synchronized (lock) {
+                try {
+                    while (!closed && pending.size() == 0 && !syncRequested) {
+                        flushRequested = false;
+                        lock.wait();
+                        wakeups++;
+                    }
+                    while (!closed && !flushRequested && pending.size() < batchSize) {
+                        long remaining = firstPendingAt + maxDelayNanos - System.nanoTime();
+                        if (remaining <= 0) break;
+                        lock.wait(remaining / 1_000_000L + 1);
+                        wakeups++;
+                    }
+                } catch (InterruptedException e) {
+                    closed = true;
+                }
+                if (pending.size() == 0 && closed && !syncRequested) {
+                    lock.notifyAll();
+                    return;
+                }
+                SampleBatch batch = pending;
+                pending = writing;
+                writing = batch;
+                flushRequested = false;
+                sync = syncRequested;
+                syncRequested = false;
+                if (waitingProducers > 0) lock.notifyAll(); // The swap made room
+            }
+
+            int count = writing.size();
+            boolean ok = true;
+            if (count > 0) {
+                try {
+                    sink.write(writing);
+                } catch (IOException | RuntimeException e) {
+                    // A bug in the sink loses this batch, not the writer thread every later submit waits on
+                    ok = false;
+                    Log.e("HealthDataWriter", "Failed to write " + count + " samples", e);
+                }
+                writing.clear();
+            }
+
+            synchronized (lock) {
+                if (ok) written += count;
+                else failed += count;
+                lock.notifyAll();
+            }
+
+            if (sync) {
+                try {
+                    sink.sync();
+                } catch (IOException | RuntimeException e) {
+                    Log.e("HealthDataWriter", "Failed to sync", e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.example.s;
+
+import android.content.Context;
+import android.util.Log;
+
+import org.json.JSONArray;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process-wide owner of the health data stores and of the background writer,
+ * shared by the activities and the Bluetooth service. Every sensor, and every replayed
+ * recording, records into its own partition (store, rollups and recent ring) under
+ * devices/, and the screens show the partition of the sensor they follow. The primary
+ * partition at the root of the app storage keeps the history recorded before the data
+ * was kept per device, shown while no sensor has been picked. All partitions share one
+ * bounded writer queue and its thread; the writer splits each batch by partition.
+ */
+public final class HealthStorage {
+
+    private static final String HEALTH_DATA_FILE = "health_data.json"; // Legacy format, migrated on first start
+    private static final String HEALTH_DATA_STORE_FILE = "health_data.blk";
+    private static final String FIXED_RECORDS_FILE = "health_data.bin"; // Uncompressed format, migrated on first start
+    private static final String ROLLUP_FILE_PREFIX = "health_rollup"; // health_rollup_1s.bin, _1m, _1h
+    private static final String DEVICES_DIR = "devices";
+
+    // Commit cadence: a batch is written every BATCH_SIZE samples or after MAX_DELAY_MS
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int BATCH_SIZE = 32;
+    private static final long MAX_DELAY_MS = 2000;
+    // While nobody is looking the writer wakes up once a minute; the journal is still forced on every commit
+    private static final int BACKGROUND_BATCH_SIZE = 1024;
+    private static final long BACKGROUND_MAX_DELAY_MS = 60_000;
+    // A full queue holds the reader thread back this long before a sample is dropped, so bursts are not lost
+    private static final long SUBMIT_TIMEOUT_MS = 1000;
+    // Durability: the journal of unsealed samples is forced at most as often as batches are committed,
+    // and the open rollup buckets are saved once a minute so a restart replays at most that much
+    private static final SyncPolicy SYNC_POLICY = SyncPolicy.every(MAX_DELAY_MS);
+    private static final long SNAPSHOT_INTERVAL_MS = 60_000;
+
+    // Samples kept in memory for the screens, a day at 1 Hz
+    private static final int RECENT_CAPACITY = 24 * 60 * 60;
+    // Loaded into the ring before open returns, enough for the first screen; the rest is paged in the background
+    private static final int FIRST_PAGE = 1024;
+    private static final int PAGE_SIZE = 8192;
+
+    private static volatile HealthStorage instance;
+    private static HealthDataWriter writer;
+    // Guards the batching mode and the writer it applies to, not the class: the main thread sets the
+    // mode and must not wait for a store being opened under the class lock
+    private static final Object batchingLock = new Object();
+    private static boolean background;
+    private static final Map<String, HealthStorage> devices = new HashMap<>();
+    // Indexed by source, replaced on every new partition so the writer thread reads it without locking
+    private static volatile HealthStorage[] partitions = new HealthStorage[0];
+
+    private final int source;
+    private final HealthDataStore store;
+    private final Rollups rollups;
+    private final HistoryRing recent;
+    private final SampleBatch scratch = new SampleBatch(QUEUE_CAPACITY); // Writer thread only
+    private long lastSnapshot = System.nanoTime(); // Writer thread only
+    // Newest stored timestamp: the store searches by time and the rollups skip older samples
+    private long lastTimestamp; // Writer thread only
+
+    private HealthStorage(int source, HealthDataStore store, Rollups rollups, HistoryRing recent) throws IOException {
+        this.source = source;
+        this.store = store;
+        this.rollups = rollups;
+        this.recent = recent;
+        long size = store.size();
+        lastTimestamp = size == 0 ? Long.MIN_VALUE : store.timestampAt(size - 1);
+    }
+
+    // The primary partition: the history recorded before it was kept per device, and source 0
+    public static synchronized HealthStorage get(Context context) throws IOException {
+        if (instance == null) {
+            Context appContext = context.getApplicationContext();
+            HealthDataStore store = openStore(appContext.getFilesDir());
+            migrateLegacyHealthData(appContext, store);
+            instance = open(store, appContext.getFilesDir());
+        }
+        return instance;
+    }
+
+    // The partition of the sensor the screens follow, the primary one while none is picked
+    public static HealthStorage forDevice(Context context, String address) throws IOException {
+        return address == null || address.isEmpty() ? get(context) : getPartition(context, address);
+    }
+
+    // The partition of one device, or of a replayed recording
+    public static synchronized HealthStorage getPartition(Context context, String name) throws IOException {
+        Context appContext = context.getApplicationContext();
+        HealthStorage storage = devices.get(name);
+        if (storage == null) {
+            get(appContext); // The primary partition owns source 0
+            File dir = new File(new File(appContext.getFilesDir(), DEVICES_DIR), name.replaceAll("[^A-Za-z0-9._-]", "_"));
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            storage = open(openStore(dir), dir);
+            devices.put(name, storage);
+        }
+        return storage;
+    }
+
+    // The compressed store of a partition, with the samples of the uncompressed one moved into it
+    private static HealthDataStore openStore(File dir) throws IOException {
+        HealthDataStore store = new HealthDataStore(new File(dir, HEALTH_DATA_STORE_FILE));
+        File fixed = new File(dir, FIXED_RECORDS_FILE);
+        if (fixed.exists()) {
+            store.importRecords(fixed);
+            Log.d("HealthStorage", "Migrated " + store.size() + " samples from " + fixed);
+            if (!fixed.delete()) Log.e("HealthStorage", "Failed to delete " + fixed + " after migration");
+            new File(fixed.getPath() + ".idx").delete();
+        }
+        return store;
+    }
+
+    private static HealthStorage open(HealthDataStore store, File dir) throws IOException {
+        store.setSyncPolicy(SYNC_POLICY);
+        Rollups rollups = new Rollups(dir, ROLLUP_FILE_PREFIX);
+        rollups.catchUp(store);
+        HistoryRing recent = new HistoryRing(RECENT_CAPACITY);
+        HistoryLoader loader = new HistoryLoader(store, recent, FIRST_PAGE, PAGE_SIZE);
+        if (!loader.isDone()) {
+            Thread thread = new Thread(() -> {
+                try {
+                    loader.loadAll();
+                } catch (IOException e) {
+                    // The ring only misses older samples, the queries read them from the store
+                    Log.e("HealthStorage", "Failed to load the recent history", e);
+                }
+            }, "HistoryLoader");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        HealthStorage[] grown = Arrays.copyOf(partitions, partitions.length + 1);
+        HealthStorage storage = new HealthStorage(grown.length - 1, store, rollups, recent);
+        grown[storage.source] = storage;
+        partitions = grown;
+        synchronized (batchingLock) {
+            if (writer == null) {
+                writer = new HealthDataWriter(new HealthDataWriter.Sink() {
+                    @Override
+                    public void write(SampleBatch batch) throws IOException {
+                        route(batch);
+                    }
+
+                    @Override
+                    public void sync() throws IOException {
+                        syncAll();
+                    }
+                }, QUEUE_CAPACITY, BATCH_SIZE, MAX_DELAY_MS);
+                if (background) writer.setBatching(BACKGROUND_BATCH_SIZE, BACKGROUND_MAX_DELAY_MS);
+            }
+        }
+        return storage;
+    }
+
+    // Large, rare commits while no screen shows the samples; switching back commits what is already due right away
+    public static void setBackground(boolean inBackground) {
+        synchronized (batchingLock) {
+            background = inBackground;
+            if (writer == null) return;
+            if (inBackground) {
+                writer.setBatching(BACKGROUND_BATCH_SIZE, BACKGROUND_MAX_DELAY_MS);
+            } else {
+                writer.setBatching(BATCH_SIZE, MAX_DELAY_MS);
+            }
+        }
+    }
+
+    // Forces the samples every partition has written so far to disk, e.g. when the app goes to the background
+    public static void syncAll() throws IOException {
+        for (HealthStorage storage : partitions) {
+            storage.store.flush();
+        }
+    }
+
+    // Commits what is queued and then syncs every partition, both on the writer thread, without waiting for it
+    public static void requestSync() {
+        synchronized (batchingLock) {
+            if (writer != null) writer.requestSync();
+        }
+    }
+
+    // Returns the instance only if something already opened it, without waiting for an open in progress
+    public static HealthStorage peek() {
+        return instance;
+    }
+
+    public HealthDataStore getStore() {
+        return store;
+    }
+
+    public Rollups getRollups() {
+        return rollups;
+    }
+
+    // The newest persisted samples; synchronize on the ring while reading it. Right after
+    // opening it holds only the newest ones, older samples are added in front as they load
+    public HistoryRing getRecent() {
+        return recent;
+    }
+
+    // Shared by every partition
+    public HealthDataWriter getWriter() {
+        return writer;
+    }
+
+    // Queues a sample for this partition, waiting for room if the shared queue is full; false if it stays full
+    public boolean submit(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        return writer.submit(source, timestamp, heartRate, saturation, temperature, badPosture, SUBMIT_TIMEOUT_MS);
+    }
+
+    public HistoryQuery newQuery() {
+        return new HistoryQuery(store, rollups, recent);
+    }
+
+    // Runs on the writer thread: hands each partition its own samples, one failing partition does not hold back the others
+    private static void route(SampleBatch batch) throws IOException {
+        HealthStorage[] targets = partitions;
+        if (targets.length == 1) {
+            targets[0].write(batch);
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            targets[batch.sources[i]].scratch.add(batch.sources[i], batch.timestamps[i], batch.heartRates[i],
+                    batch.saturations[i], batch.temperatures[i], batch.badPostures[i]);
+        }
+        IOException failure = null;
+        for (HealthStorage target : targets) {
+            if (target.scratch.size() == 0) continue;
+            try {
+                target.write(target.scratch);
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            } finally {
+                target.scratch.clear();
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    // Raw samples first, then the recent ring and the rollup tiers
+    private void write(SampleBatch batch) throws IOException {
+        // The wall clock went back, e.g. while the app was not running
+        int restamped = batch.keepInOrder(lastTimestamp);
+        if (restamped > 0) {
+            Log.w("HealthStorage", "Clock behind the stored history, " + restamped + " samples restamped to keep it in order");
+        }
+        store.append(batch);
+        if (batch.size() > 0) lastTimestamp = batch.timestamps[batch.size() - 1];
+        synchronized (recent) {
+            recent.add(batch);
+        }
+        try {
+            rollups.add(batch);
+            if (System.nanoTime() - lastSnapshot >= SNAPSHOT_INTERVAL_MS * 1_000_000) {
+                rollups.snapshot(store);
+                lastSnapshot = System.nanoTime();
+            }
+        } catch (IOException e) {
+            // The raw samples are safe, the rollups can be rebuilt from them
+            Log.e("HealthStorage", "Failed to update rollups", e);
+        }
+    }
+
+    // One-time import of the old health_data.json into the binary store
+    private static void migrateLegacyHealthData(Context context, HealthDataStore store) {
+        File legacyFile = context.getFileStreamPath(HEALTH_DATA_FILE);
+        if (!legacyFile.exists()) return;
+
+        try (FileInputStream fis = new FileInputStream(legacyFile)) {
+            byte[] bytes = new byte[(int) legacyFile.length()];
+            int offset = 0;
+            while (offset < bytes.length) {
+                int read = fis.read(bytes, offset, bytes.length - offset);
+                if (read < 0) break;
+                offset += read;
+            }
+            JSONArray jsonArray = new JSONArray(new String(bytes, 0, offset));
+
+            // Parse everything first so a corrupt file does not leave a partial import behind
+            int[][] readings = new int[jsonArray.length()][];
+            for (int i = 0; i < readings.length; i++) {
+                JSONArray inner = jsonArray.getJSONArray(i);
+                readings[i] = new int[]{
+                        Integer.parseInt(inner.getString(0)),
+                        Integer.parseInt(inner.getString(1)),
+                        Math.round(Float.parseFloat(inner.getString(2)) * 10),
+                        Boolean.parseBoolean(inner.getString(3)) ? 1 : 0};
+            }
+
+            // The JSON history had no timestamps: space the readings one second apart,
+            // ending when the file was last written
+            long timestamp = legacyFile.lastModified() - (readings.length - 1) * 1000L;
+            for (int[] reading : readings) {
+                store.append(timestamp, reading[0], reading[1], reading[2], reading[3] == 1);
+                timestamp += 1000;
+            }
+            store.flush();
+            Log.d("HealthStorage", "Migrated " + readings.length + " readings from " + HEALTH_DATA_FILE);
+        } catch (FileNotFoundException e) {
+            return;
+        } catch (IOException | org.json.JSONException | NumberFormatException e) {
+            // Keep the legacy file around so no data is lost if the import fails
+            Log.e("HealthStorage", "Failed to migrate health data list", e);
+            return;
+        }
+
+        if (!legacyFile.delete()) {
+            Log.e("HealthStorage", "Failed to delete " + HEALTH_DATA_FILE + " after migration");
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.s;
+
+import java.io.IOException;
+
+/**
+ * Fills an empty recent ring from the store without holding up whoever opened it:
+ * the newest samples go in right away, then older pages are read one at a time and
+ * put in front of the oldest sample held, usually from a background thread. The
+ * writer keeps appending newer samples meanwhile, so the ring is always a contiguous
+ * run of the newest samples in the store. Loading stops at the sample the ring would
+ * have started from if it had been filled in one go, or as soon as the ring is full.
+ */
+public final class HistoryLoader {
+
+    private final HealthDataStore store;
+    private final HistoryRing ring;
+    private final SampleBatch page;
+    private final long stop; // Store index of the oldest sample to load
+    private long next; // Store index the next page ends at, exclusive
+
+    // Loads the newest firstPage samples before returning; the ring must be empty
+    // and must not take samples from the writer until this returns
+    public HistoryLoader(HealthDataStore store, HistoryRing ring, int firstPage, int pageSize) throws IOException {
+        this.store = store;
+        this.ring = ring;
+        this.page = new SampleBatch(pageSize);
+        long size = store.size();
+        stop = Math.max(0, size - ring.capacity());
+        next = Math.max(stop, size - firstPage);
+        synchronized (ring) {
+            if (!ring.isEmpty()) throw new IllegalStateException("The ring is not empty");
+            store.read(next, size, ring::add);
+        }
+    }
+
+    // Loads the next older page; false once there is nothing left to load
+    public boolean loadPage() throws IOException {
+        long from = Math.max(stop, next - page.capacity());
+        if (from >= next) return false;
+        page.clear();
+        store.read(from, next, page::add);
+        // Read outside the lock, prepended under it newest first so readers never see a gap
+        synchronized (ring) {
+            for (int i = page.size() - 1; i >= 0; i--) {
+                if (!ring.addFirst(page.timestamps[i], page.heartRates[i], page.saturations[i],
+                        page.temperatures[i], page.badPostures[i])) {
+                    next = stop; // Filled up by newer samples in the meantime
+                    return false;
+                }
+            }
+        }
+        next = from;
+        return next > stop;
+    }
+
+    // Loads every remaining page
+    public void loadAll() throws IOException {
+        while (loadPage()) {
+            // Keep going
+        }
+    }
+
+    public boolean isDone() {
+        return next <= stop;
+    }
+}
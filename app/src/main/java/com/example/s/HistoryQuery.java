@@ -0,0 +1,271 @@
+package com.example.s;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Windowed reads over the stored history: a time range and a maximum number of points.
+ * Small ranges come straight from the raw samples; larger ones from the finest rollup
+ * tier that fits, so the cost depends on the number of points asked for and not on the
+ * size of the history. The part of the range the chosen tier has not stored yet (its
+ * open bucket) is filled in from the finer tiers and, last, from the raw samples.
+ * Raw samples are taken from the in-memory recent history when it covers the range.
+ */
+public final class HistoryQuery {
+
+    private static final long[] TIER_WIDTHS = {Rollups.SECOND, Rollups.MINUTE, Rollups.HOUR};
+
+    /**
+     * Columnar result of a query. Timestamps are sample times for raw points and bucket
+     * starts for aggregated ones; values are means (or extremes, see queryMinMax),
+     * temperature in degrees.
+     */
+    public static final class Window {
+        public long[] timestamps;
+        public float[] heartRates;
+        public float[] saturations;
+        public float[] temperatures;
+        public int size;
+        public long resolution; // 0 for raw samples, otherwise the width of one point in ms
+
+        Window(int capacity) {
+            timestamps = new long[capacity];
+            heartRates = new float[capacity];
+            saturations = new float[capacity];
+            temperatures = new float[capacity];
+        }
+
+        void add(long timestamp, float heartRate, float saturation, float temperature) {
+            if (size == timestamps.length) {
+                int capacity = Math.max(16, size * 2);
+                timestamps = Arrays.copyOf(timestamps, capacity);
+                heartRates = Arrays.copyOf(heartRates, capacity);
+                saturations = Arrays.copyOf(saturations, capacity);
+                temperatures = Arrays.copyOf(temperatures, capacity);
+            }
+            timestamps[size] = timestamp;
+            heartRates[size] = heartRate;
+            saturations[size] = saturation;
+            temperatures[size] = temperature;
+            size++;
+        }
+    }
+
+    private final HealthDataStore raw;
+    private final Rollups rollups;
+    private final HistoryRing recent; // May be null
+
+    public HistoryQuery(HealthDataStore raw, Rollups rollups) {
+        this(raw, rollups, null);
+    }
+
+    public HistoryQuery(HealthDataStore raw, Rollups rollups, HistoryRing recent) {
+        this.raw = raw;
+        this.rollups = rollups;
+        this.recent = recent;
+    }
+
+    // Time of the oldest stored sample, or -1 if there is none
+    public long firstTimestamp() throws IOException {
+        return raw.size() == 0 ? -1 : raw.timestampAt(0);
+    }
+
+    // Time of the newest stored sample, or -1 if there is none
+    public long lastTimestamp() throws IOException {
+        long size = raw.size();
+        return size == 0 ? -1 : raw.timestampAt(size - 1);
+    }
+
+    /**
+     * Returns at most maxPoints + 1 points covering [from, to), oldest first. Callers
+     * page through a longer history by moving the range.
+     */
+    public Window query(long from, long to, int maxPoints) throws IOException {
+        return query(from, to, maxPoints, false);
+    }
+
+    /**
+     * Like query, but each aggregated bucket gives two points, its minimum and its
+     * maximum, so the peaks a mean would smooth away stay visible. Buckets narrower
+     * than the finest tier are made from the raw samples. At most maxPoints + 2 points.
+     */
+    public Window queryMinMax(long from, long to, int maxPoints) throws IOException {
+        return query(from, to, maxPoints, true);
+    }
+
+    private Window query(long from, long to, int maxPoints, boolean minMax) throws IOException {
+        if (maxPoints <= 0) throw new IllegalArgumentException("maxPoints must be positive");
+        Window window = new Window(Math.min(maxPoints, 1024));
+        if (from >= to) return window;
+
+        if (countRaw(from, to) <= maxPoints) {
+            readRaw(from, to, (timestamp, heartRate, saturation, temperature, badPosture) ->
+                    window.add(timestamp, heartRate, saturation, temperature / 10f));
+            return window;
+        }
+
+        int maxBuckets = minMax ? Math.max(1, maxPoints / 2) : maxPoints;
+        long rawWidth = (to - from + maxBuckets - 1) / maxBuckets;
+        if (minMax && rawWidth < TIER_WIDTHS[0]) {
+            // Short range: at most maxBuckets seconds of raw samples
+            Merger merger = new Merger(window, from, rawWidth, true);
+            window.resolution = rawWidth;
+            readRaw(from, to, merger::add);
+            merger.finish();
+            return window;
+        }
+
+        // Finest tier with few enough buckets in range, the hour tier in any case
+        int level = 0;
+        while (level < TIER_WIDTHS.length - 1 && bucketsInRange(level, from, to) > maxBuckets) {
+            level++;
+        }
+        long width = TIER_WIDTHS[level];
+        long origin = from - Math.floorMod(from, width);
+        long buckets = (to - origin + width - 1) / width;
+        Merger merger = new Merger(window, origin, width * Math.max(1, (buckets + maxBuckets - 1) / maxBuckets), minMax);
+        window.resolution = merger.width;
+
+        long cursor = from;
+        for (int i = level; i >= 0; i--) {
+            long tierWidth = TIER_WIDTHS[i];
+            RollupStore store = rollups.getStore(tierWidth);
+            long hi = store.indexAtOrAfter(to);
+            store.read(store.indexAtOrAfter(cursor - Math.floorMod(cursor, tierWidth)), hi, merger::add);
+            if (hi < store.size()) break; // Stored buckets reach past the range
+            long lastStart = store.lastStart();
+            if (lastStart != Long.MIN_VALUE) cursor = Math.max(cursor, lastStart + tierWidth);
+            if (i == 0) {
+                readRaw(cursor, to, merger::add);
+            }
+        }
+        merger.finish();
+        return window;
+    }
+
+    private long bucketsInRange(int level, long from, long to) throws IOException {
+        long width = TIER_WIDTHS[level];
+        RollupStore store = rollups.getStore(width);
+        return store.indexAtOrAfter(to) - store.indexAtOrAfter(from - Math.floorMod(from, width));
+    }
+
+    // Whether the recent ring holds every raw sample at or after the given time
+    private boolean recentCovers(long from) {
+        if (recent == null || recent.isEmpty()) return false;
+        return recent.timestampAt(0) <= from || recent.size() >= raw.size();
+    }
+
+    private long countRaw(long from, long to) throws IOException {
+        if (recent != null) {
+            synchronized (recent) {
+                if (recentCovers(from)) return recent.indexAtOrAfter(to) - recent.indexAtOrAfter(from);
+            }
+        }
+        return raw.indexAtOrAfter(to) - raw.indexAtOrAfter(from);
+    }
+
+    private void readRaw(long from, long to, HealthDataStore.Visitor visitor) throws IOException {
+        if (recent != null) {
+            synchronized (recent) {
+                if (recentCovers(from)) {
+                    recent.read(recent.indexAtOrAfter(from), recent.indexAtOrAfter(to), visitor);
+                    return;
+                }
+            }
+        }
+        raw.read(raw.indexAtOrAfter(from), raw.indexAtOrAfter(to), visitor);
+    }
+
+    /**
+     * Sums rollups and raw samples into output points of a fixed width aligned on the
+     * origin, so the tails read from the finer tiers land in the same points. In min/max
+     * mode each point becomes two, at the start and the middle of its bucket; the order
+     * of the extremes inside a bucket is not stored, so each line goes first to the one
+     * nearer to its previous point.
+     */
+    private static final class Merger {
+        final Window window;
+        final long origin;
+        final long width;
+        final boolean minMax;
+        long point = Long.MIN_VALUE;
+        long count, heartRateSum, saturationSum, temperatureSum;
+        int heartRateMin, heartRateMax, saturationMin, saturationMax, temperatureMin, temperatureMax;
+        float lastHeartRate = Float.NaN, lastSaturation = Float.NaN, lastTemperature = Float.NaN;
+
+        Merger(Window window, long origin, long width, boolean minMax) {
+            this.window = window;
+            this.origin = origin;
+            this.width = width;
+            this.minMax = minMax;
+            resetExtremes();
+        }
+
+        void add(Rollup rollup) {
+            add(rollup.start, rollup.count, rollup.heartRateSum, rollup.saturationSum, rollup.temperatureSum);
+            heartRateMin = Math.min(heartRateMin, rollup.heartRateMin);
+            heartRateMax = Math.max(heartRateMax, rollup.heartRateMax);
+            saturationMin = Math.min(saturationMin, rollup.saturationMin);
+            saturationMax = Math.max(saturationMax, rollup.saturationMax);
+            temperatureMin = Math.min(temperatureMin, rollup.temperatureMin);
+            temperatureMax = Math.max(temperatureMax, rollup.temperatureMax);
+        }
+
+        void add(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+            add(timestamp, 1, heartRate, saturation, temperature);
+            heartRateMin = Math.min(heartRateMin, heartRate);
+            heartRateMax = Math.max(heartRateMax, heartRate);
+            saturationMin = Math.min(saturationMin, saturation);
+            saturationMax = Math.max(saturationMax, saturation);
+            temperatureMin = Math.min(temperatureMin, temperature);
+            temperatureMax = Math.max(temperatureMax, temperature);
+        }
+
+        private void add(long timestamp, long samples, long heartRate, long saturation, long temperature) {
+            long index = Math.floorDiv(timestamp - origin, width);
+            if (index != point) {
+                finish();
+                point = index;
+            }
+            count += samples;
+            heartRateSum += heartRate;
+            saturationSum += saturation;
+            temperatureSum += temperature;
+        }
+
+        void finish() {
+            if (count == 0) {
+                resetExtremes();
+                return;
+            }
+            long start = origin + point * width;
+            if (minMax) {
+                boolean heartRateMaxFirst = nearerToMax(lastHeartRate, heartRateMin, heartRateMax);
+                boolean saturationMaxFirst = nearerToMax(lastSaturation, saturationMin, saturationMax);
+                boolean temperatureMaxFirst = nearerToMax(lastTemperature, temperatureMin / 10f, temperatureMax / 10f);
+                window.add(start,
+                        heartRateMaxFirst ? heartRateMax : heartRateMin,
+                        saturationMaxFirst ? saturationMax : saturationMin,
+                        (temperatureMaxFirst ? temperatureMax : temperatureMin) / 10f);
+                lastHeartRate = heartRateMaxFirst ? heartRateMin : heartRateMax;
+                lastSaturation = saturationMaxFirst ? saturationMin : saturationMax;
+                lastTemperature = (temperatureMaxFirst ? temperatureMin : temperatureMax) / 10f;
+                window.add(start + width / 2, lastHeartRate, lastSaturation, lastTemperature);
+            } else {
+                float n = count;
+                window.add(start, heartRateSum / n, saturationSum / n, temperatureSum / n / 10f);
+            }
+            count = heartRateSum = saturationSum = temperatureSum = 0;
+            resetExtremes();
+        }
+
+        private void resetExtremes() {
+            heartRateMin = saturationMin = temperatureMin = Integer.MAX_VALUE;
+            heartRateMax = saturationMax = temperatureMax = Integer.MIN_VALUE;
+        }
+
+        private static boolean nearerToMax(float previous, float min, float max) {
+            return Math.abs(previous - max) < Math.abs(previous - min); // False for the first point
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.example.s;
+
+/**
+ * Fixed-capacity ring of the most recent samples, one primitive array per field:
+ * timestamps as long, heart rate and temperature (tenths of a degree) as short,
+ * saturation as an unsigned byte and the posture flags as a bitset. About 13 bytes
+ * per sample, so a day at 1 Hz fits in a little over 1 MB. Once full, each new
+ * sample overwrites the oldest one. Not thread-safe: callers synchronize on the ring.
+ */
+public final class HistoryRing {
+
+    private final long[] timestamps;
+    private final short[] heartRates;
+    private final byte[] saturations;
+    private final short[] temperatures;
+    private final long[] badPostures; // One bit per slot
+
+    private int head; // Slot of the next sample
+    private int size;
+
+    public HistoryRing(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("capacity must be positive");
+        timestamps = new long[capacity];
+        heartRates = new short[capacity];
+        saturations = new byte[capacity];
+        temperatures = new short[capacity];
+        badPostures = new long[(capacity + 63) >>> 6];
+    }
+
+    // Bytes held by the arrays of a ring of the given capacity, headers excluded
+    public static long bytesFor(int capacity) {
+        return capacity * (8L + 2 + 1 + 2) + ((capacity + 63L) >>> 6) * 8;
+    }
+
+    public void add(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        int slot = head;
+        timestamps[slot] = timestamp;
+        heartRates[slot] = (short) heartRate;
+        saturations[slot] = (byte) saturation;
+        temperatures[slot] = (short) temperature;
+        if (badPosture) badPostures[slot >>> 6] |= 1L << slot;
+        else badPostures[slot >>> 6] &= ~(1L << slot);
+
+        head = slot + 1 == timestamps.length ? 0 : slot + 1;
+        if (size < timestamps.length) size++;
+    }
+
+    // Puts a sample in front of the oldest one, for history loaded newest first;
+    // false once the ring is full
+    public boolean addFirst(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        if (size == timestamps.length) return false;
+        int slot = head - size - 1;
+        if (slot < 0) slot += timestamps.length;
+        timestamps[slot] = timestamp;
+        heartRates[slot] = (short) heartRate;
+        saturations[slot] = (byte) saturation;
+        temperatures[slot] = (short) temperature;
+        if (badPosture) badPostures[slot >>> 6] |= 1L << slot;
+        else badPostures[slot >>> 6] &= ~(1L << slot);
+        size++;
+        return true;
+    }
+
+    public void add(SampleBatch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.timestamps[i], batch.heartRates[i], batch.saturations[i], batch.temperatures[i], batch.badPostures[i]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    // Accessors by age: index 0 is the oldest sample held, size() - 1 the newest
+
+    public long timestampAt(int index) {
+        return timestamps[slot(index)];
+    }
+
+    public int heartRateAt(int index) {
+        return heartRates[slot(index)];
+    }
+
+    public int saturationAt(int index) {
+        return saturations[slot(index)] & 0xFF;
+    }
+
+    public int temperatureAt(int index) {
+        return temperatures[slot(index)];
+    }
+
+    public boolean isBadPostureAt(int index) {
+        int slot = slot(index);
+        return (badPostures[slot >>> 6] & (1L << slot)) != 0;
+    }
+
+    // Index of the first sample at or after the given time, size() if none
+    public int indexAtOrAfter(long timestamp) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestampAt(mid) < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // Visits the samples with index in [from, to), oldest first
+    public void read(int from, int to, HealthDataStore.Visitor visitor) {
+        to = Math.min(to, size);
+        for (int i = Math.max(from, 0); i < to; i++) {
+            int slot = slot(i);
+            visitor.visit(timestamps[slot], heartRates[slot], saturations[slot] & 0xFF, temperatures[slot],
+                    (badPostures[slot >>> 6] & (1L << slot)) != 0);
+        }
+    }
+
+    private int slot(int index) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("No sample " + index + " of " + size);
+        int slot = head - size + index;
+        return slot < 0 ? slot + timestamps.length : slot;
+    }
+}
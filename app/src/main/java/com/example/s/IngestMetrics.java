@@ -0,0 +1,263 @@
+package com.example.s;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Process-wide counters and latency histograms for the Bluetooth ingest pipeline:
+ * bytes and frames read, frames rejected per reason, decode time per chunk, delay
+ * from the socket to the screen, samples the screens skipped and reconnect
+ * durations. Recording is a few atomic adds, so it stays on in release builds;
+ * verbose per-chunk logging is a separate runtime switch that costs a volatile
+ * read when off. Each device session records into its own instance, which
+ * forwards everything to the process-wide one.
+ */
+public final class IngestMetrics {
+
+    private static final IngestMetrics INSTANCE = new IngestMetrics();
+
+    private static volatile boolean verbose;
+
+    private final IngestMetrics parent;
+    private final long startNanos = System.nanoTime();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong malformed = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong notable = new AtomicLong();
+    private final AtomicLong conflated = new AtomicLong();
+    private final AtomicLong deliveryDropped = new AtomicLong();
+    private final AtomicLongArray rejected = new AtomicLongArray(RejectReason.values().length);
+    private final LatencyHistogram parseTime = new LatencyHistogram();
+    private final LatencyHistogram socketToUi = new LatencyHistogram();
+    private final LatencyHistogram reconnects = new LatencyHistogram();
+
+    IngestMetrics() {
+        this(null);
+    }
+
+    // Metrics of one device, also counted in parent
+    IngestMetrics(IngestMetrics parent) {
+        this.parent = parent;
+    }
+
+    public static IngestMetrics forDevice() {
+        return new IngestMetrics(INSTANCE);
+    }
+
+    public static IngestMetrics get() {
+        return INSTANCE;
+    }
+
+    // Per-chunk and per-frame logging, off by default
+    public static boolean isVerbose() {
+        return verbose;
+    }
+
+    public static void setVerbose(boolean enabled) {
+        verbose = enabled;
+    }
+
+    // One read from the socket: its size, the time spent decoding and dispatching it and what it held
+    public void recordChunk(int size, long decodeNanos, long decodedFrames, long malformedFrames) {
+        bytes.addAndGet(size);
+        chunks.incrementAndGet();
+        if (decodedFrames != 0) frames.addAndGet(decodedFrames);
+        if (malformedFrames != 0) malformed.addAndGet(malformedFrames);
+        parseTime.record(decodeNanos / 1000);
+        if (parent != null) parent.recordChunk(size, decodeNanos, decodedFrames, malformedFrames);
+    }
+
+    public void recordAccepted() {
+        accepted.incrementAndGet();
+        if (parent != null) parent.recordAccepted();
+    }
+
+    // An accepted sample outside the clinical range
+    public void recordNotable() {
+        notable.incrementAndGet();
+        if (parent != null) parent.recordNotable();
+    }
+
+    public void recordRejected(RejectReason reason) {
+        rejected.incrementAndGet(reason.ordinal());
+        if (parent != null) parent.recordRejected(reason);
+    }
+
+    // From the sample being read off the socket to it being shown
+    public void recordSocketToUi(long micros) {
+        socketToUi.record(micros);
+        if (parent != null) parent.recordSocketToUi(micros);
+    }
+
+    // Samples a subscriber skipped because a newer one replaced them
+    public void recordConflated(long count) {
+        conflated.addAndGet(count);
+        if (parent != null) parent.recordConflated(count);
+    }
+
+    // Samples a subscriber never got because it fell too far behind
+    public void recordDeliveryDropped(long count) {
+        deliveryDropped.addAndGet(count);
+        if (parent != null) parent.recordDeliveryDropped(count);
+    }
+
+    public void recordReconnect(long millis) {
+        reconnects.record(millis * 1000);
+        if (parent != null) parent.recordReconnect(millis);
+    }
+
+    // writer may be null when the storage is not open
+    public Snapshot snapshot(HealthDataWriter writer) {
+        long[] rejectedCounts = new long[rejected.length()];
+        for (int i = 0; i < rejectedCounts.length; i++) {
+            rejectedCounts[i] = rejected.get(i);
+        }
+        return new Snapshot(System.nanoTime(), (System.nanoTime() - startNanos) / 1_000_000,
+                bytes.get(), chunks.get(), frames.get(), malformed.get(), accepted.get(), notable.get(), rejectedCounts,
+                parseTime.summary(), socketToUi.summary(), reconnects.summary(),
+                writer == null ? -1 : writer.getQueueDepth(),
+                writer == null ? -1 : writer.getWritten(),
+                writer == null ? -1 : writer.getDropped(),
+                writer == null ? -1 : writer.getStalled(),
+                conflated.get(), deliveryDropped.get());
+    }
+
+    /**
+     * Immutable copy of the metrics. Rates are computed against an earlier snapshot,
+     * or over the whole uptime when there is none.
+     */
+    public static final class Snapshot {
+        public final long takenAtNanos;
+        public final long uptimeMs;
+        public final long bytes;
+        public final long chunks;
+        public final long frames;
+        public final long malformed;
+        public final long accepted;
+        public final long notable;
+        private final long[] rejected;
+        public final LatencyHistogram.Summary parseTime;
+        public final LatencyHistogram.Summary socketToUi;
+        public final LatencyHistogram.Summary reconnects;
+        public final long queueDepth;
+        public final long written;
+        public final long dropped;
+        public final long stalled;
+        public final long conflated;
+        public final long deliveryDropped;
+
+        Snapshot(long takenAtNanos, long uptimeMs, long bytes, long chunks, long frames, long malformed,
+                 long accepted, long notable, long[] rejected, LatencyHistogram.Summary parseTime,
+                 LatencyHistogram.Summary socketToUi, LatencyHistogram.Summary reconnects,
+                 long queueDepth, long written, long dropped, long stalled, long conflated, long deliveryDropped) {
+            this.takenAtNanos = takenAtNanos;
+            this.uptimeMs = uptimeMs;
+            this.bytes = bytes;
+            this.chunks = chunks;
+            this.frames = frames;
+            this.malformed = malformed;
+            this.accepted = accepted;
+            this.notable = notable;
+            this.rejected = rejected;
+            this.parseTime = parseTime;
+            this.socketToUi = socketToUi;
+            this.reconnects = reconnects;
+            this.queueDepth = queueDepth;
+            this.written = written;
+            this.dropped = dropped;
+            this.stalled = stalled;
+            this.conflated = conflated;
+            this.deliveryDropped = deliveryDropped;
+        }
+
+        public long getRejected(RejectReason reason) {
+            return rejected[reason.ordinal()];
+        }
+
+        public double bytesPerSecond(Snapshot previous) {
+            return rate(bytes, previous == null ? 0 : previous.bytes, previous);
+        }
+
+        public double framesPerSecond(Snapshot previous) {
+            return rate(frames, previous == null ? 0 : previous.frames, previous);
+        }
+
+        private double rate(long value, long previousValue, Snapshot previous) {
+            double seconds = previous == null ? uptimeMs / 1000.0 : (takenAtNanos - previous.takenAtNanos) / 1e9;
+            return seconds <= 0 ? 0 : (value - previousValue) / seconds;
+        }
+
+        public String toText(Snapshot previous) {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format(Locale.US, "uptime          %d s%n", uptimeMs / 1000));
+            text.append(String.format(Locale.US, "bytes           %d (%.0f B/s)%n", bytes, bytesPerSecond(previous)));
+            text.append(String.format(Locale.US, "chunks          %d%n", chunks));
+            text.append(String.format(Locale.US, "frames          %d (%.1f /s)%n", frames, framesPerSecond(previous)));
+            text.append(String.format(Locale.US, "malformed       %d%n", malformed));
+            text.append(String.format(Locale.US, "accepted        %d%n", accepted));
+            text.append(String.format(Locale.US, "notable         %d%n", notable));
+            for (RejectReason reason : RejectReason.values()) {
+                text.append(String.format(Locale.US, "rejected %-12s %d%n", name(reason), getRejected(reason)));
+            }
+            appendHistogram(text, "parse (us)", parseTime, 1);
+            appendHistogram(text, "socket->ui (ms)", socketToUi, 1000);
+            appendHistogram(text, "reconnect (ms)", reconnects, 1000);
+            text.append(String.format(Locale.US, "ui conflated    %d%n", conflated));
+            text.append(String.format(Locale.US, "ui dropped      %d%n", deliveryDropped));
+            text.append(String.format(Locale.US, "queue depth     %d%n", queueDepth));
+            text.append(String.format(Locale.US, "written         %d%n", written));
+            text.append(String.format(Locale.US, "queue stalls    %d%n", stalled));
+            text.append(String.format(Locale.US, "dropped         %d%n", dropped));
+            return text.toString();
+        }
+
+        public String toJson(Snapshot previous) {
+            StringBuilder json = new StringBuilder("{");
+            json.append("\"uptime_ms\":").append(uptimeMs);
+            json.append(",\"bytes\":").append(bytes);
+            json.append(",\"bytes_per_s\":").append(String.format(Locale.US, "%.1f", bytesPerSecond(previous)));
+            json.append(",\"chunks\":").append(chunks);
+            json.append(",\"frames\":").append(frames);
+            json.append(",\"frames_per_s\":").append(String.format(Locale.US, "%.2f", framesPerSecond(previous)));
+            json.append(",\"malformed\":").append(malformed);
+            json.append(",\"accepted\":").append(accepted);
+            json.append(",\"notable\":").append(notable);
+            json.append(",\"rejected\":{");
+            for (RejectReason reason : RejectReason.values()) {
+                if (reason.ordinal() > 0) json.append(',');
+                json.append('"').append(name(reason)).append("\":").append(getRejected(reason));
+            }
+            json.append('}');
+            appendHistogram(json, "parse_us", parseTime);
+            appendHistogram(json, "socket_to_ui_us", socketToUi);
+            appendHistogram(json, "reconnect_us", reconnects);
+            json.append(",\"conflated\":").append(conflated);
+            json.append(",\"delivery_dropped\":").append(deliveryDropped);
+            json.append(",\"queue_depth\":").append(queueDepth);
+            json.append(",\"written\":").append(written);
+            json.append(",\"stalled\":").append(stalled);
+            json.append(",\"dropped\":").append(dropped);
+            return json.append('}').toString();
+        }
+
+        private static String name(RejectReason reason) {
+            return reason.name().toLowerCase(Locale.US);
+        }
+
+        private static void appendHistogram(StringBuilder text, String label, LatencyHistogram.Summary summary, long unit) {
+            text.append(String.format(Locale.US, "%-15s n=%d mean=%d p50=%d p99=%d max=%d%n", label, summary.count,
+                    summary.mean / unit, summary.p50 / unit, summary.p99 / unit, summary.max / unit));
+        }
+
+        private static void appendHistogram(StringBuilder json, String key, LatencyHistogram.Summary summary) {
+            json.append(",\"").append(key).append("\":{\"count\":").append(summary.count)
+                    .append(",\"mean\":").append(summary.mean)
+                    .append(",\"p50\":").append(summary.p50)
+                    .append(",\"p99\":").append(summary.p99)
+                    .append(",\"max\":").append(summary.max).append('}');
+        }
+    }
+}
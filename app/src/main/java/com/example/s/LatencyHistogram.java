@@ -0,0 +1,70 @@
+package com.example.s;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations in microseconds with power-of-two buckets, cheap
+ * enough to record on the ingest thread for every chunk. Percentiles are the upper
+ * bound of the bucket they fall in, so they are accurate to a factor of two.
+ */
+public final class LatencyHistogram {
+
+    private static final int BUCKETS = 40; // Bucket i holds values below 2^i us
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current;
+        while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+            // Retry until the larger value is stored
+        }
+    }
+
+    public Summary summary() {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        long maximum = max.get();
+        return new Summary(total, total == 0 ? 0 : sum.get() / total,
+                percentile(counts, total, 0.5, maximum), percentile(counts, total, 0.99, maximum), maximum);
+    }
+
+    private static long percentile(long[] counts, long total, double fraction, long maximum) {
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) return Math.min(maximum, i == 0 ? 0 : (1L << i) - 1);
+        }
+        return maximum;
+    }
+
+    /** Point-in-time view of a histogram, all values in microseconds. */
+    public static final class Summary {
+        public final long count;
+        public final long mean;
+        public final long p50;
+        public final long p99;
+        public final long max;
+
+        Summary(long count, long mean, long p50, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+    }
+}
@@ -4,14 +4,14 @@ import android.Manifest;
 import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.content.BroadcastReceiver;
-import android.content.Context;
+import android.content.ComponentName;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.util.Log;
 import android.widget.ArrayAdapter;
 import android.widget.ListView;
@@ -25,15 +25,11 @@ import androidx.annotation.RequiresPermission;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import org.json.JSONArray;
-
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends ComponentActivity {
 
@@ -49,13 +45,26 @@ public class MainActivity extends ComponentActivity {
     private TextView receivedDataTextView;
 
     private ArrayList<String> deviceNamesList = new ArrayList<>();
-    private List<String[]> healthDataList = new ArrayList<>();
 
-    private static final String HEALTH_DATA_FILE = "health_data.json";
+    private HealthStorage healthStorage;
+    // One at a time, so the partition of the sensor picked last is the one that ends up shown
+    private final ExecutorService storageOpener = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "HealthStorageOpener");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private String latestEntry; // Last reading shown, persisted when the activity is paused
+
+    private BluetoothForegroundService bluetoothService;
+    private long lastSequence = -1; // Last sample received from the service, to replay what was missed
+    private boolean measureLatency;
+    private String summaryText = ""; // Streaming statistics from the service, refreshed once a second
+    private long summaryAt;
+    private boolean started;
+    private final SampleHub.Subscriber sampleSubscriber = this::onSamples;
 
     private ActivityResultLauncher<String[]> bluetoothPermissionRequestLauncher;
 
-    @SuppressLint("UnspecifiedRegisterReceiverFlag")
     @RequiresPermission(Manifest.permission.BLUETOOTH_CONNECT)
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -106,24 +115,22 @@ public class MainActivity extends ComponentActivity {
                 onItemClick(device); // Call the click listener
         });
 
+        findViewById(R.id.diagnostics_button).setOnClickListener(v ->
+                startActivity(new Intent(MainActivity.this, DiagnosticsActivity.class)));
+
         findViewById(R.id.graph_button).setOnClickListener(v -> {
-            if (!healthDataList.isEmpty()) {
+            if (hasHealthData()) {
                 Intent intent = new Intent(MainActivity.this, GraphActivity.class);
-                intent.putExtra("HEALTH_DATA", new ArrayList<>(healthDataList)); // Pass the health data
                 startActivity(intent);
             } else {
                 Toast.makeText(this, "No health data available to display", Toast.LENGTH_SHORT).show();
             }
         });
 
-        IntentFilter filter = new IntentFilter("com.example.s.BLUETOOTH_DATA");
-        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) // Android 13+
-            registerReceiver(bluetoothDataReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
-        else
-            registerReceiver(bluetoothDataReceiver, filter);
+        // Bind without creating the service: the connection is made once the service is started
+        bindService(new Intent(this, BluetoothForegroundService.class), serviceConnection, 0);
 
-        // Load health data list from file
-        healthDataList = loadHealthDataList();
+        openHealthDataStore();
     }
 
     @SuppressLint("MissingPermission") // Suppress the lint warning as we check the permission in setupBluetooth
@@ -134,16 +141,46 @@ public class MainActivity extends ComponentActivity {
 
             saveLastDevice(device.getAddress());
             startBluetoothService(device.getAddress());
+            openHealthDataStore(); // The history of the sensor now followed
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        storageOpener.shutdown();
         try {
-            unregisterReceiver(bluetoothDataReceiver);
+            unbindService(serviceConnection);
         } catch (IllegalArgumentException e) {
-            e.printStackTrace(); // Receiver not registered
+            e.printStackTrace(); // Service not bound
+        }
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        started = true;
+        subscribeToService();
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        started = false;
+        if (bluetoothService != null) {
+            bluetoothService.unsubscribe(sampleSubscriber);
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (latestEntry != null) {
+            saveHealthData(latestEntry);
+        }
+        // The journal is forced on a timer while the sensor streams; going to the background forces it now
+        if (healthStorage != null) {
+            HealthStorage.requestSync();
         }
     }
 
@@ -157,9 +194,6 @@ public class MainActivity extends ComponentActivity {
             receivedDataTextView.setText(lastHealthData);
         }
 
-        // Reload health data list from file
-        healthDataList = loadHealthDataList();
-
         // Attempt to reconnect to the last known device
         String lastDeviceAddress = loadLastDevice();
         if (lastDeviceAddress != null && !lastDeviceAddress.isEmpty()) {
@@ -277,48 +311,52 @@ public class MainActivity extends ComponentActivity {
         listView.setAdapter(adapter);
     }
 
-    private final BroadcastReceiver bluetoothDataReceiver = new BroadcastReceiver() {
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            String newData = intent.getStringExtra("DATA");
-            Log.d("MainActivity", "Received data in main: " + newData);
-
-            if (newData != null) {
-                // Parse the health data
-                String[] healthData = newData.split(";");
-                if (healthData.length == 4) {
-                    String frequenzaCardiaca = healthData[0];
-                    String saturazione = healthData[1];
-                    String temperatura = healthData[2];
-                    boolean notifica = healthData[3].equals("1");
-
-                    if (Integer.parseInt(temperatura) <= 30 || Integer.parseInt(frequenzaCardiaca) <= 30 || Integer.parseInt(saturazione) <= 30) {
-                        Log.d("MainActivity", "Filtered out data");
-                        return;
-                    }
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            bluetoothService = ((BluetoothForegroundService.LocalBinder) service).getService();
+            subscribeToService();
+        }
 
-                    // Add the parsed data to the list for graphing
-                    healthDataList.add(new String[]{frequenzaCardiaca, saturazione, temperatura, String.valueOf(notifica)});
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // A restarted service numbers its samples from scratch
+            bluetoothService = null;
+            lastSequence = -1;
+        }
+    };
 
-                    // Save the updated health data list to file
-                    saveHealthDataList(healthDataList);
+    private void subscribeToService() {
+        if (bluetoothService != null && started) {
+            measureLatency = false; // The first delivery may replay older samples
+            // The status only shows the newest sample, a burst is conflated into it
+            bluetoothService.subscribe(sampleSubscriber, lastSequence < 0 ? -1 : lastSequence + 1, SampleHub.Policy.LATEST);
+        }
+    }
 
-                    // Update the UI with the latest entry
-                    String latestEntry = "Frequenza Cardiaca: " + frequenzaCardiaca + "\n" +
-                            "Saturazione: " + saturazione + "\n" +
-                            "Temperatura: " + temperatura + "\n" +
-                            "Postura: " + (notifica ? "Incorretta" : "Corretta");
-                    receivedDataTextView.setText(latestEntry);
+    // Called on the main thread with the newest sample received since the previous call
+    private void onSamples(SampleBatch batch, long firstSequence) {
+        lastSequence = firstSequence + batch.size() - 1;
+
+        // Update the UI with the latest entry
+        int last = batch.size() - 1;
+        latestEntry = "Frequenza Cardiaca: " + batch.heartRates[last] + "\n" +
+                "Saturazione: " + batch.saturations[last] + "\n" +
+                "Temperatura: " + SampleBatch.formatTemperature(batch.temperatures[last]) + "\n" +
+                "Postura: " + (batch.badPostures[last] ? "Incorretta" : "Corretta");
+        long now = System.currentTimeMillis();
+        if (now - summaryAt >= 1000 && bluetoothService != null) {
+            Analytics.Summary summary = bluetoothService.getSummary();
+            summaryText = summary != null ? summary.toText() : "";
+            summaryAt = now;
+        }
+        receivedDataTextView.setText(summaryText.isEmpty() ? latestEntry : latestEntry + "\n\n" + summaryText);
 
-                    // Save the latest entry for persistence
-                    saveHealthData(latestEntry);
-                } else
-                    Log.e("BluetoothDataReceiver", "Invalid data format: " + newData);
-            } else {
-                Log.e("BluetoothDataReceiver", "Received null data!");
-            }
+        if (measureLatency) {
+            IngestMetrics.get().recordSocketToUi((System.currentTimeMillis() - batch.timestamps[last]) * 1000);
         }
-    };
+        measureLatency = true;
+    }
 
     private void startBluetoothService(String deviceAddress) {
         Intent serviceIntent = new Intent(this, BluetoothForegroundService.class);
@@ -332,22 +370,15 @@ public class MainActivity extends ComponentActivity {
         SharedPreferences prefs = getSharedPreferences("BluetoothPrefs", MODE_PRIVATE);
         SharedPreferences.Editor editor = prefs.edit();
         editor.putString("LastDevice", deviceAddress);
-        boolean success = editor.commit();
-        if (success)
-            Log.d("MainActivity", "Last device saved successfully.");
-        else
-            Log.e("MainActivity", "Failed to save last device.");
+        editor.apply(); // Written in the background
+        Log.d("MainActivity", "Last device saved.");
     }
 
     private void saveHealthData(String healthData) {
         SharedPreferences prefs = getSharedPreferences("HealthDataPrefs", MODE_PRIVATE);
         SharedPreferences.Editor editor = prefs.edit();
         editor.putString("LastHealthData", healthData);
-        boolean success = editor.commit();
-        if (success)
-            Log.d("MainActivity", "Health data saved successfully.");
-        else
-            Log.e("MainActivity", "Failed to save health data.");
+        editor.apply(); // Written in the background
     }
 
     private String loadHealthData() {
@@ -360,42 +391,40 @@ public class MainActivity extends ComponentActivity {
         return prefs.getString("LastDevice", null);
     }
 
-    // Save the health data list to a file as JSON
-    private void saveHealthDataList(List<String[]> dataList) {
-        JSONArray jsonArray = new JSONArray();
-        for (String[] arr : dataList) {
-            JSONArray inner = new JSONArray();
-            for (String s : arr) inner.put(s);
-            jsonArray.put(inner);
-        }
-        try (FileOutputStream fos = openFileOutput(HEALTH_DATA_FILE, MODE_PRIVATE)) {
-            fos.write(jsonArray.toString().getBytes());
-        } catch (IOException e) {
-            Log.e("MainActivity", "Failed to save health data list", e);
+    // Opens the partition of the followed sensor off the main thread: the last reading saved in
+    // the preferences is already on screen, the newest stored sample replaces it once it is open
+    private void openHealthDataStore() {
+        storageOpener.execute(() -> {
+            try {
+                HealthStorage storage = HealthStorage.forDevice(this, loadLastDevice());
+                runOnUiThread(() -> onHealthDataStoreOpened(storage));
+            } catch (IOException e) {
+                Log.e("MainActivity", "Failed to open health data store", e);
+            }
+        });
+    }
+
+    private void onHealthDataStoreOpened(HealthStorage storage) {
+        healthStorage = storage;
+        if (isDestroyed() || latestEntry != null) return; // Live samples are newer
+        HistoryRing recent = storage.getRecent();
+        synchronized (recent) {
+            if (recent.isEmpty()) return;
+            int last = recent.size() - 1;
+            latestEntry = "Frequenza Cardiaca: " + recent.heartRateAt(last) + "\n" +
+                    "Saturazione: " + recent.saturationAt(last) + "\n" +
+                    "Temperatura: " + SampleBatch.formatTemperature(recent.temperatureAt(last)) + "\n" +
+                    "Postura: " + (recent.isBadPostureAt(last) ? "Incorretta" : "Corretta");
         }
+        receivedDataTextView.setText(latestEntry);
     }
 
-    // Load the health data list from a file
-    private List<String[]> loadHealthDataList() {
-        List<String[]> list = new ArrayList<>();
-        try (FileInputStream fis = openFileInput(HEALTH_DATA_FILE)) {
-            byte[] bytes = new byte[fis.available()];
-            fis.read(bytes);
-            String json = new String(bytes);
-            JSONArray jsonArray = new JSONArray(json);
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONArray inner = jsonArray.getJSONArray(i);
-                String[] arr = new String[inner.length()];
-                for (int j = 0; j < inner.length(); j++) {
-                    arr[j] = inner.getString(j);
-                }
-                list.add(arr);
-            }
-        } catch (FileNotFoundException e) {
-            Log.d("MainActivity", "No previous health data list found.");
-        } catch (IOException | org.json.JSONException e) {
-            Log.e("MainActivity", "Failed to load health data list", e);
+    // The recent history is filled by the storage writer, already parsed; false while the store is opening
+    private boolean hasHealthData() {
+        if (healthStorage == null) return false;
+        HistoryRing recent = healthStorage.getRecent();
+        synchronized (recent) {
+            return !recent.isEmpty();
         }
-        return list;
     }
 }
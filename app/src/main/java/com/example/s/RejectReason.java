@@ -0,0 +1,12 @@
+package com.example.s;
+
+/**
+ * Why a decoded frame was kept out of the history.
+ */
+public enum RejectReason {
+    CALIBRATION, // Temperature 8, sent by the device while it calibrates
+    ZERO_READING, // Heart rate or saturation 0, no finger on the sensor
+    OUT_OF_RANGE, // Outside what the body can produce, the sensor is not reading
+    ARTIFACT, // Spike the following samples do not confirm
+    FLATLINE // Heart rate exactly flat for a minute, a stuck sensor
+}
@@ -0,0 +1,271 @@
+package com.example.s;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A simulated sensor: plays a recording back through the same Connection interface
+ * as the Bluetooth socket, so the decoder, filters, alerts and storage can be driven
+ * without a phone or a device. Playback runs at a multiple of real time or as fast as
+ * the reader consumes it, and can split frames across reads, corrupt bytes and drop
+ * the link every so many frames. Each connection resumes where the previous one was
+ * dropped, like a sensor that kept measuring; once the recording is over connect()
+ * fails. Randomness comes from a seed so a failing run can be repeated.
+ */
+public final class ReplayTransport implements ConnectionManager.ConnectionFactory {
+
+    public static final double AS_FAST_AS_POSSIBLE = 0;
+
+    /** Frames with the time each one was received, in ms from the start of the recording. */
+    public static final class Recording {
+        final long[] offsets;
+        final byte[][] frames;
+
+        private Recording(long[] offsets, byte[][] frames) {
+            this.offsets = offsets;
+            this.frames = frames;
+        }
+
+        public int size() {
+            return frames.length;
+        }
+
+        /**
+         * One frame per line, "HR;SpO2;TEMP;FLAG;%" with or without the final "%",
+         * optionally preceded by the elapsed milliseconds and a space. Lines without a
+         * time are spaced periodMs apart.
+         */
+        public static Recording fromLines(Reader reader, long periodMs) throws IOException {
+            List<Long> offsets = new ArrayList<>();
+            List<byte[]> frames = new ArrayList<>();
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            long offset = 0;
+            while ((line = lines.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) continue;
+                int space = line.indexOf(' ');
+                if (space > 0) {
+                    offset = Long.parseLong(line.substring(0, space));
+                    line = line.substring(space + 1);
+                } else if (!frames.isEmpty()) {
+                    offset += periodMs;
+                }
+                if (!line.endsWith("%")) line += ";%";
+                offsets.add(offset);
+                frames.add(line.getBytes(StandardCharsets.US_ASCII));
+            }
+            long[] offsetArray = new long[offsets.size()];
+            for (int i = 0; i < offsetArray.length; i++) {
+                offsetArray[i] = offsets.get(i);
+            }
+            return new Recording(offsetArray, frames.toArray(new byte[0][]));
+        }
+
+        // Raw bytes as read from the socket, cut after every "%" and spaced periodMs apart
+        public static Recording fromCapture(byte[] capture, long periodMs) {
+            List<byte[]> frames = new ArrayList<>();
+            int start = 0;
+            for (int i = 0; i < capture.length; i++) {
+                if (capture[i] == '%') {
+                    frames.add(Arrays.copyOfRange(capture, start, i + 1));
+                    start = i + 1;
+                }
+            }
+            if (start < capture.length) frames.add(Arrays.copyOfRange(capture, start, capture.length));
+            long[] offsets = new long[frames.size()];
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] = i * periodMs;
+            }
+            return new Recording(offsets, frames.toArray(new byte[0][]));
+        }
+    }
+
+    private final Recording recording;
+    private double speed = 1;
+    private int minFragment;
+    private int maxFragment; // 0: no fragmentation, a read takes whatever is due
+    private double noise;
+    private int disconnectEvery; // Frames per connection, 0 for never
+    private Random random = new Random(0);
+
+    // Position in the recording, carried over from one connection to the next
+    private volatile int next; // Only moved by the connection thread
+    private long connections;
+    private long disconnects;
+    private final ByteArrayOutputStream acks = new ByteArrayOutputStream();
+
+    public ReplayTransport(Recording recording) {
+        this.recording = recording;
+    }
+
+    // 1 for real time, 100 for a hundred times faster, AS_FAST_AS_POSSIBLE to ignore the timing
+    public ReplayTransport speed(double speed) {
+        this.speed = speed;
+        return this;
+    }
+
+    // Every frame is delivered in reads of min to max bytes
+    public ReplayTransport fragmentation(int min, int max) {
+        if (min <= 0 || max < min) throw new IllegalArgumentException("Need 0 < min <= max");
+        this.minFragment = min;
+        this.maxFragment = max;
+        return this;
+    }
+
+    // Probability of each byte being replaced with a random one
+    public ReplayTransport noise(double probability) {
+        this.noise = probability;
+        return this;
+    }
+
+    public ReplayTransport disconnectEvery(int frames) {
+        this.disconnectEvery = frames;
+        return this;
+    }
+
+    public ReplayTransport seed(long seed) {
+        this.random = new Random(seed);
+        return this;
+    }
+
+    public boolean isFinished() {
+        return next == recording.size();
+    }
+
+    public synchronized long getConnections() {
+        return connections;
+    }
+
+    public synchronized long getDisconnects() {
+        return disconnects;
+    }
+
+    // Bytes the app wrote back to the sensor
+    public synchronized byte[] getAcks() {
+        return acks.toByteArray();
+    }
+
+    @Override
+    public synchronized ConnectionManager.Connection connect() throws IOException {
+        if (isFinished()) throw new IOException("Recording finished");
+        connections++;
+        return new ReplayConnection();
+    }
+
+    private synchronized void onDisconnect() {
+        disconnects++;
+    }
+
+    private final class ReplayConnection implements ConnectionManager.Connection {
+        private final long startNanos = System.nanoTime();
+        private final long startOffset = recording.offsets[next];
+        private int sent; // Frames completed on this connection
+        private int position; // Next byte of the current frame
+        private volatile boolean closed;
+
+        private final InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (closed) throw new IOException("Connection closed");
+                if (next == recording.size()) return -1; // The device closed the link
+                if (disconnectEvery > 0 && sent == disconnectEvery) {
+                    onDisconnect();
+                    throw new IOException("Simulated disconnect");
+                }
+                waitUntilDue(next);
+
+                int limit = maxFragment == 0 ? len
+                        : Math.min(len, minFragment + random.nextInt(maxFragment - minFragment + 1));
+                int count = 0;
+                while (count < limit && next < recording.size()) {
+                    byte[] frame = recording.frames[next];
+                    int n = Math.min(limit - count, frame.length - position);
+                    System.arraycopy(frame, position, b, off + count, n);
+                    count += n;
+                    position += n;
+                    if (position < frame.length) break;
+                    position = 0;
+                    next++;
+                    sent++;
+                    // Keep going only with frames that have already arrived, on this connection
+                    if ((disconnectEvery > 0 && sent == disconnectEvery)
+                            || (next < recording.size() && dueInNanos(next) > 0)) break;
+                }
+                if (noise > 0) {
+                    for (int i = off; i < off + count; i++) {
+                        if (random.nextDouble() < noise) b[i] = (byte) random.nextInt(256);
+                    }
+                }
+                return count;
+            }
+        };
+
+        private final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                synchronized (ReplayTransport.this) {
+                    acks.write(b);
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                synchronized (ReplayTransport.this) {
+                    acks.write(b, off, len);
+                }
+            }
+        };
+
+        private long dueInNanos(int frame) {
+            if (speed == AS_FAST_AS_POSSIBLE) return 0;
+            long due = startNanos + (long) ((recording.offsets[frame] - startOffset) * 1_000_000L / speed);
+            return due - System.nanoTime();
+        }
+
+        private void waitUntilDue(int frame) throws IOException {
+            long wait = dueInNanos(frame);
+            if (wait <= 0) return;
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted", e);
+            }
+            if (closed) throw new IOException("Connection closed");
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.example.s;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Aggregate of the samples falling in one time bucket: count, min, max and sum per
+ * metric plus the number of bad-posture samples. Stored as a fixed 40-byte record:
+ *
+ * <pre>
+ *  0  long  bucket start (ms)
+ *  8  int   count
+ * 12  short heart rate min, short max, int sum
+ * 20  short saturation min, short max, int sum
+ * 28  short temperature min, short max, int sum (tenths of a degree)
+ * 36  int   bad posture count
+ * </pre>
+ */
+public final class Rollup {
+
+    public static final int RECORD_SIZE = 40;
+
+    public long start;
+    public int count;
+    public int heartRateMin, heartRateMax, heartRateSum;
+    public int saturationMin, saturationMax, saturationSum;
+    public int temperatureMin, temperatureMax, temperatureSum;
+    public int badPostureCount;
+
+    public void reset(long start) {
+        this.start = start;
+        count = 0;
+        heartRateMin = saturationMin = temperatureMin = Integer.MAX_VALUE;
+        heartRateMax = saturationMax = temperatureMax = Integer.MIN_VALUE;
+        heartRateSum = saturationSum = temperatureSum = 0;
+        badPostureCount = 0;
+    }
+
+    public void add(int heartRate, int saturation, int temperature, boolean badPosture) {
+        count++;
+        heartRateMin = Math.min(heartRateMin, heartRate);
+        heartRateMax = Math.max(heartRateMax, heartRate);
+        heartRateSum += heartRate;
+        saturationMin = Math.min(saturationMin, saturation);
+        saturationMax = Math.max(saturationMax, saturation);
+        saturationSum += saturation;
+        temperatureMin = Math.min(temperatureMin, temperature);
+        temperatureMax = Math.max(temperatureMax, temperature);
+        temperatureSum += temperature;
+        if (badPosture) badPostureCount++;
+    }
+
+    public float getHeartRateMean() {
+        return count == 0 ? 0 : (float) heartRateSum / count;
+    }
+
+    public float getSaturationMean() {
+        return count == 0 ? 0 : (float) saturationSum / count;
+    }
+
+    public float getTemperatureMean() {
+        return count == 0 ? 0 : (float) temperatureSum / count;
+    }
+
+    void writeTo(ByteBuffer buffer) {
+        buffer.putLong(start).putInt(count)
+                .putShort((short) heartRateMin).putShort((short) heartRateMax).putInt(heartRateSum)
+                .putShort((short) saturationMin).putShort((short) saturationMax).putInt(saturationSum)
+                .putShort((short) temperatureMin).putShort((short) temperatureMax).putInt(temperatureSum)
+                .putInt(badPostureCount);
+    }
+
+    void readFrom(ByteBuffer buffer) {
+        start = buffer.getLong();
+        count = buffer.getInt();
+        heartRateMin = buffer.getShort();
+        heartRateMax = buffer.getShort();
+        heartRateSum = buffer.getInt();
+        saturationMin = buffer.getShort();
+        saturationMax = buffer.getShort();
+        saturationSum = buffer.getInt();
+        temperatureMin = buffer.getShort();
+        temperatureMax = buffer.getShort();
+        temperatureSum = buffer.getInt();
+        badPostureCount = buffer.getInt();
+    }
+}
@@ -0,0 +1,126 @@
+package com.example.s;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only file of Rollup records for one tier, ordered by bucket start.
+ */
+public final class RollupStore implements Closeable {
+
+    private static final int READ_BATCH = 128; // records per read, 5 KB
+
+    public interface Visitor {
+        // The rollup instance is reused between calls
+        void visit(Rollup rollup);
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(Rollup.RECORD_SIZE);
+    private volatile long count;
+
+    public RollupStore(File path) throws IOException {
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        long length = channel.size();
+        // Drop a partially written record left by a crash
+        if (length % Rollup.RECORD_SIZE != 0) {
+            length -= length % Rollup.RECORD_SIZE;
+            channel.truncate(length);
+        }
+        count = length / Rollup.RECORD_SIZE;
+    }
+
+    public synchronized void append(Rollup rollup) throws IOException {
+        writeBuffer.clear();
+        rollup.writeTo(writeBuffer);
+        writeBuffer.flip();
+        long position = count * Rollup.RECORD_SIZE;
+        while (writeBuffer.hasRemaining()) {
+            position += channel.write(writeBuffer, position);
+        }
+        count++;
+    }
+
+    public void force() throws IOException {
+        channel.force(false);
+    }
+
+    // Removes every record, used when rebuilding from the raw data
+    public synchronized void clear() throws IOException {
+        channel.truncate(0);
+        count = 0;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    // Visits the records with index in [from, to), oldest first
+    public void read(long from, long to, Visitor visitor) throws IOException {
+        to = Math.min(to, count);
+        if (from < 0) from = 0;
+        if (from >= to) return;
+
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BATCH * Rollup.RECORD_SIZE);
+        Rollup rollup = new Rollup();
+        long index = from;
+        while (index < to) {
+            int records = (int) Math.min(READ_BATCH, to - index);
+            buffer.clear();
+            buffer.limit(records * Rollup.RECORD_SIZE);
+            long position = index * Rollup.RECORD_SIZE;
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position + buffer.position());
+                if (read < 0) throw new IOException("Unexpected end of rollup store");
+            }
+            buffer.flip();
+            for (int i = 0; i < records; i++) {
+                rollup.readFrom(buffer);
+                visitor.visit(rollup);
+            }
+            index += records;
+        }
+    }
+
+    // Start of the last stored bucket, or Long.MIN_VALUE if the store is empty
+    public long lastStart() throws IOException {
+        long records = count;
+        return records == 0 ? Long.MIN_VALUE : startAt(records - 1);
+    }
+
+    // Bucket start of a single record
+    public long startAt(long index) throws IOException {
+        if (index < 0 || index >= count) throw new IndexOutOfBoundsException("No rollup " + index);
+        ByteBuffer buffer = ByteBuffer.allocate(8);
+        long position = index * Rollup.RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of rollup store");
+            }
+        }
+        return buffer.getLong(0);
+    }
+
+    // Index of the first bucket starting at or after the given time, size() if none
+    public long indexAtOrAfter(long start) throws IOException {
+        long low = 0;
+        long high = count;
+        while (low < high) {
+            long mid = (low + high) >>> 1;
+            if (startAt(mid) < start) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.s;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Multi-resolution rollups (1 s / 1 min / 1 h) maintained incrementally as samples are
+ * persisted. Each tier keeps its open bucket in memory and appends it to its own
+ * RollupStore once a sample for a later bucket arrives, so long time ranges can be
+ * plotted from a few thousand pre-aggregated points instead of every raw sample.
+ * The open buckets live in memory. A periodic snapshot saves them together with the
+ * number of raw samples they count, so after a restart only the raw samples newer than
+ * the snapshot are replayed; without a usable snapshot the open buckets are recomputed
+ * from the raw samples newer than the last stored bucket (see catchUp).
+ */
+public final class Rollups implements Closeable {
+
+    public static final long SECOND = 1000;
+    public static final long MINUTE = 60 * SECOND;
+    public static final long HOUR = 60 * MINUTE;
+
+    private static final long[] WIDTHS = {SECOND, MINUTE, HOUR};
+    private static final String[] SUFFIXES = {"1s", "1m", "1h"};
+
+    // Snapshot: version, raw sample count, timestamp of the last one, then per tier the
+    // end of its stored buckets, whether a bucket is open and the bucket; CRC-32 last
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_TIER = 8 + 1 + Rollup.RECORD_SIZE;
+    private static final int SNAPSHOT_SIZE = 4 + 8 + 8 + WIDTHS.length * SNAPSHOT_TIER + 4;
+
+    private final Tier[] tiers = new Tier[WIDTHS.length];
+    private final File snapshotFile;
+
+    public Rollups(File directory, String prefix) throws IOException {
+        for (int i = 0; i < WIDTHS.length; i++) {
+            tiers[i] = new Tier(WIDTHS[i], new RollupStore(new File(directory, prefix + "_" + SUFFIXES[i] + ".bin")));
+        }
+        snapshotFile = new File(directory, prefix + ".snap");
+    }
+
+    public void add(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) throws IOException {
+        for (Tier tier : tiers) {
+            tier.add(timestamp, heartRate, saturation, temperature, badPosture);
+        }
+    }
+
+    public void add(SampleBatch batch) throws IOException {
+        for (int i = 0; i < batch.size(); i++) {
+            add(batch.timestamps[i], batch.heartRates[i], batch.saturations[i], batch.temperatures[i], batch.badPostures[i]);
+        }
+    }
+
+    // Feeds the raw samples not yet covered by every tier, e.g. after a restart: from the
+    // snapshot if there is a usable one, otherwise from the oldest open bucket
+    public void catchUp(HealthDataStore raw) throws IOException {
+        long from = restoreSnapshot(raw);
+        if (from < 0) {
+            long end = Long.MAX_VALUE;
+            for (Tier tier : tiers) {
+                end = Math.min(end, tier.persistedEnd);
+            }
+            from = raw.indexAtOrAfter(end);
+        }
+        feed(raw, from);
+    }
+
+    /**
+     * Saves the open buckets, which must count exactly the raw samples stored so far:
+     * call it right after adding the last appended batch. The tier stores are forced
+     * first, so the snapshot never counts on a bucket that is not on disk; the snapshot
+     * itself is written to a temporary file, forced and renamed over the previous one, so
+     * a crash leaves either the old snapshot or the new one.
+     */
+    public void snapshot(HealthDataStore raw) throws IOException {
+        long count = raw.size();
+        if (count == 0) return;
+        ByteBuffer buffer = ByteBuffer.allocate(SNAPSHOT_SIZE);
+        buffer.putInt(SNAPSHOT_VERSION).putLong(count).putLong(raw.timestampAt(count - 1));
+        for (Tier tier : tiers) {
+            tier.store.force();
+            buffer.putLong(tier.persistedEnd).put((byte) (tier.open ? 1 : 0));
+            tier.current.writeTo(buffer);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+
+        File temporary = new File(snapshotFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporary)) {
+            out.write(buffer.array());
+            out.getFD().sync();
+        }
+        if (!temporary.renameTo(snapshotFile)) {
+            throw new IOException("Cannot replace " + snapshotFile);
+        }
+    }
+
+    // Puts the open buckets of the snapshot back and returns the index of the first raw
+    // sample they do not count, or -1 if there is no snapshot that matches the stores
+    private long restoreSnapshot(HealthDataStore raw) throws IOException {
+        if (snapshotFile.length() != SNAPSHOT_SIZE) return -1;
+        ByteBuffer buffer = ByteBuffer.allocate(SNAPSHOT_SIZE);
+        try (RandomAccessFile in = new RandomAccessFile(snapshotFile, "r")) {
+            in.readFully(buffer.array());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, SNAPSHOT_SIZE - 4);
+        if (buffer.getInt(SNAPSHOT_SIZE - 4) != (int) crc.getValue()) return -1;
+        if (buffer.getInt() != SNAPSHOT_VERSION) return -1;
+        long count = buffer.getLong();
+        long lastTimestamp = buffer.getLong();
+        // The raw samples it counts must all be there, e.g. not lost with an unsynced journal
+        if (count <= 0 || count > raw.size() || raw.timestampAt(count - 1) != lastTimestamp) return -1;
+        for (int i = 0; i < tiers.length; i++) {
+            // A stored bucket the snapshot counts on is missing
+            if (tiers[i].persistedEnd < buffer.getLong(20 + i * SNAPSHOT_TIER)) return -1;
+        }
+        for (int i = 0; i < tiers.length; i++) {
+            Tier tier = tiers[i];
+            buffer.position(20 + i * SNAPSHOT_TIER);
+            long persistedEnd = buffer.getLong();
+            boolean open = buffer.get() == 1;
+            // A tier that stored more buckets since then has nothing open from before the snapshot
+            if (open && persistedEnd == tier.persistedEnd) {
+                tier.current.readFrom(buffer);
+                tier.open = true;
+            }
+        }
+        return count;
+    }
+
+    // Recomputes every tier from scratch out of the raw samples
+    public void rebuild(HealthDataStore raw) throws IOException {
+        if (snapshotFile.exists() && !snapshotFile.delete()) throw new IOException("Cannot delete " + snapshotFile);
+        for (Tier tier : tiers) {
+            tier.store.clear();
+            tier.open = false;
+            tier.persistedEnd = Long.MIN_VALUE;
+        }
+        feed(raw, 0);
+    }
+
+    // The stored buckets of the tier with the given width (SECOND, MINUTE or HOUR)
+    public RollupStore getStore(long width) {
+        for (Tier tier : tiers) {
+            if (tier.width == width) return tier.store;
+        }
+        throw new IllegalArgumentException("No rollup tier of " + width + " ms");
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Tier tier : tiers) {
+            tier.store.close();
+        }
+    }
+
+    private void feed(HealthDataStore raw, long from) throws IOException {
+        try {
+            raw.read(from, raw.size(), (timestamp, heartRate, saturation, temperature, badPosture) -> {
+                try {
+                    add(timestamp, heartRate, saturation, temperature, badPosture);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static final class Tier {
+        final long width;
+        final RollupStore store;
+        final Rollup current = new Rollup();
+        boolean open;
+        long persistedEnd; // End of the last stored bucket, older samples are already counted
+
+        Tier(long width, RollupStore store) throws IOException {
+            this.width = width;
+            this.store = store;
+            long lastStart = store.lastStart();
+            persistedEnd = lastStart == Long.MIN_VALUE ? Long.MIN_VALUE : lastStart + width;
+        }
+
+        void add(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) throws IOException {
+            if (timestamp < persistedEnd) return;
+            long bucket = timestamp - Math.floorMod(timestamp, width);
+            if (!open) {
+                current.reset(bucket);
+                open = true;
+            } else if (bucket > current.start) {
+                store.append(current);
+                persistedEnd = current.start + width;
+                current.reset(bucket);
+            }
+            // A sample older than the open bucket (clock moved backwards) is counted in it
+            current.add(heartRate, saturation, temperature, badPosture);
+        }
+    }
+}
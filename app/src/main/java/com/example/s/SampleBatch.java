@@ -0,0 +1,84 @@
+package com.example.s;
+
+/**
+ * Fixed-capacity batch of samples kept as parallel primitive arrays, reused
+ * instead of allocating an object per sample.
+ */
+public final class SampleBatch {
+
+    public final long[] timestamps;
+    public final int[] heartRates;
+    public final int[] saturations;
+    public final int[] temperatures; // tenths of a degree
+    public final boolean[] badPostures;
+    public final short[] sources; // Storage partition each sample goes to, 0 for the primary one
+
+    private int size;
+
+    public SampleBatch(int capacity) {
+        timestamps = new long[capacity];
+        heartRates = new int[capacity];
+        saturations = new int[capacity];
+        temperatures = new int[capacity];
+        badPostures = new boolean[capacity];
+        sources = new short[capacity];
+    }
+
+    // Returns false when the batch is full
+    public boolean add(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        return add(0, timestamp, heartRate, saturation, temperature, badPosture);
+    }
+
+    public boolean add(int source, long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        if (size == timestamps.length) return false;
+        sources[size] = (short) source;
+        timestamps[size] = timestamp;
+        heartRates[size] = heartRate;
+        saturations[size] = saturation;
+        temperatures[size] = temperature;
+        badPostures[size] = badPosture;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return timestamps.length;
+    }
+
+    public boolean isFull() {
+        return size == timestamps.length;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    // Restamps every sample older than the floor or than the sample before it with that
+    // newer time, so the timestamps never decrease; returns how many were restamped
+    public int keepInOrder(long floor) {
+        int restamped = 0;
+        for (int i = 0; i < size; i++) {
+            if (timestamps[i] < floor) {
+                timestamps[i] = floor;
+                restamped++;
+            } else {
+                floor = timestamps[i];
+            }
+        }
+        return restamped;
+    }
+
+    // For a decoder that filled the arrays directly
+    void setSize(int size) {
+        this.size = size;
+    }
+
+    // Formats a temperature in tenths of a degree, "36" or "36.5"
+    public static String formatTemperature(int temperature) {
+        return temperature % 10 == 0 ? String.valueOf(temperature / 10) : String.valueOf(temperature / 10f);
+    }
+}
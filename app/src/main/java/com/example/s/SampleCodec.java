@@ -0,0 +1,242 @@
+package com.example.s;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lossless columnar encoding of a batch of samples into one self-contained block.
+ * Each column is written on its own after the sample count: timestamps as the first
+ * value, the first delta and then delta-of-deltas; heart rate, saturation and
+ * temperature as zigzag deltas from the previous sample; posture as run lengths. The
+ * zigzag values go through a variable-length bit code whose short width is picked per
+ * column and block, so a column that does not change costs one bit per sample:
+ *
+ * <pre>
+ *   0               value 0
+ *   10  + w bits    value 1 .. 2^w
+ *   110 + 16 bits   value 1 .. 2^16
+ *   111 + 64 bits   anything
+ * </pre>
+ *
+ * The vitals are integers (temperature in tenths of a degree), so there is no floating
+ * point column. Not thread-safe: an encoder reuses its buffers.
+ */
+public final class SampleCodec {
+
+    private static final int VERSION = 1;
+    private static final int MAX_WIDTH = 16;
+
+    private final BitWriter out = new BitWriter();
+    private long[] values = new long[0];
+
+    // Encodes the whole batch, returns the length in bytes of the block now in buffer()
+    public int encode(SampleBatch batch) {
+        int count = batch.size();
+        if (values.length < count) values = new long[count];
+        out.reset();
+        out.write(VERSION, 8);
+        out.write(count, 32);
+        if (count == 0) return out.finish();
+
+        out.write(batch.timestamps[0], 64);
+        long previousDelta = 0;
+        for (int i = 1; i < count; i++) {
+            long delta = batch.timestamps[i] - batch.timestamps[i - 1];
+            values[i - 1] = zigzag(delta - previousDelta);
+            previousDelta = delta;
+        }
+        writeColumn(values, count - 1);
+        writeDeltas(batch.heartRates, count);
+        writeDeltas(batch.saturations, count);
+        writeDeltas(batch.temperatures, count);
+
+        // Posture: the first value, then the length of every run of equal values
+        out.write(batch.badPostures[0] ? 1 : 0, 1);
+        int runs = 0;
+        int runStart = 0;
+        for (int i = 1; i <= count; i++) {
+            if (i == count || batch.badPostures[i] != batch.badPostures[runStart]) {
+                values[runs++] = i - runStart - 1;
+                runStart = i;
+            }
+        }
+        writeColumn(values, runs);
+        return out.finish();
+    }
+
+    // The encoded block, valid up to the length returned by encode
+    public byte[] buffer() {
+        return out.buffer;
+    }
+
+    // Replaces the content of the batch with the samples of the block
+    public static void decode(byte[] block, int offset, int length, SampleBatch batch) throws IOException {
+        BitReader in = new BitReader(block, offset, length);
+        if (in.read(8) != VERSION) throw new IOException("Unknown sample block version");
+        long count = in.read(32);
+        if (count > batch.capacity()) throw new IOException("Sample block of " + count + " samples does not fit");
+        batch.clear();
+        if (count == 0) return;
+        int n = (int) count;
+
+        long[] timestamps = batch.timestamps;
+        timestamps[0] = in.read(64);
+        int width = (int) in.read(5);
+        long delta = 0;
+        for (int i = 1; i < n; i++) {
+            delta += unzigzag(in.readCode(width));
+            timestamps[i] = timestamps[i - 1] + delta;
+        }
+        readDeltas(in, batch.heartRates, n);
+        readDeltas(in, batch.saturations, n);
+        readDeltas(in, batch.temperatures, n);
+
+        boolean badPosture = in.read(1) == 1;
+        width = (int) in.read(5);
+        for (int i = 0; i < n; ) {
+            long run = in.readCode(width) + 1;
+            if (run <= 0 || run > n - i) throw new IOException("Corrupt posture runs");
+            Arrays.fill(batch.badPostures, i, i + (int) run, badPosture);
+            i += run;
+            badPosture = !badPosture;
+        }
+        batch.setSize(n);
+    }
+
+    private void writeDeltas(int[] column, int count) {
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            values[i] = zigzag((long) column[i] - previous);
+            previous = column[i];
+        }
+        writeColumn(values, count);
+    }
+
+    private static void readDeltas(BitReader in, int[] column, int count) throws IOException {
+        int width = (int) in.read(5);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            previous = (int) (previous + unzigzag(in.readCode(width)));
+            column[i] = previous;
+        }
+    }
+
+    // Picks the short width that makes the column smallest, then writes it and the codes
+    private void writeColumn(long[] column, int count) {
+        int[] lengths = new int[65]; // Samples by bits needed for value - 1
+        int zeros = 0;
+        for (int i = 0; i < count; i++) {
+            if (column[i] == 0) zeros++;
+            else lengths[64 - Long.numberOfLeadingZeros(column[i] - 1)]++;
+        }
+        int width = 0;
+        long best = Long.MAX_VALUE;
+        for (int w = 0; w <= MAX_WIDTH; w++) {
+            long bits = zeros;
+            for (int b = 0; b <= 64; b++) {
+                bits += (long) lengths[b] * (b <= w ? 2 + w : b <= 16 ? 3 + 16 : 3 + 64);
+            }
+            if (bits < best) {
+                best = bits;
+                width = w;
+            }
+        }
+        out.write(width, 5);
+        for (int i = 0; i < count; i++) {
+            out.writeCode(column[i], width);
+        }
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static final class BitWriter {
+        byte[] buffer = new byte[256];
+        private int position;
+        private long pending;
+        private int pendingBits;
+
+        void reset() {
+            position = 0;
+            pending = 0;
+            pendingBits = 0;
+        }
+
+        void writeCode(long value, int width) {
+            if (value == 0) {
+                write(0, 1);
+            } else if (value > 0 && value - 1 < 1L << width) {
+                write(0b10, 2);
+                write(value - 1, width);
+            } else if (value > 0 && value - 1 < 1L << 16) {
+                write(0b110, 3);
+                write(value - 1, 16);
+            } else {
+                write(0b111, 3);
+                write(value - 1, 64);
+            }
+        }
+
+        void write(long value, int bits) {
+            if (bits > 32) {
+                write(value >>> 32, bits - 32);
+                write(value, 32);
+                return;
+            }
+            if (bits == 0) return;
+            pending = (pending << bits) | (value & ((1L << bits) - 1));
+            pendingBits += bits;
+            while (pendingBits >= 8) {
+                if (position == buffer.length) buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffer[position++] = (byte) (pending >>> (pendingBits - 8));
+                pendingBits -= 8;
+            }
+        }
+
+        // Pads the last byte, returns the length
+        int finish() {
+            if (pendingBits > 0) write(0, 8 - pendingBits);
+            return position;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] buffer;
+        private int position;
+        private final int end;
+        private long pending;
+        private int pendingBits;
+
+        BitReader(byte[] buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        long readCode(int width) throws IOException {
+            if (read(1) == 0) return 0;
+            if (read(1) == 0) return read(width) + 1;
+            return read(1) == 0 ? read(16) + 1 : read(64) + 1;
+        }
+
+        long read(int bits) throws IOException {
+            if (bits > 32) {
+                long high = read(bits - 32);
+                return (high << 32) | read(32);
+            }
+            if (bits == 0) return 0;
+            while (pendingBits < bits) {
+                if (position == end) throw new IOException("Truncated sample block");
+                pending = (pending << 8) | (buffer[position++] & 0xFF);
+                pendingBits += 8;
+            }
+            pendingBits -= bits;
+            return (pending >>> pendingBits) & ((1L << bits) - 1);
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package com.example.s;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * In-process fan-out of the validated samples to subscribers. Samples are kept in a
+ * ring of primitive arrays and numbered with a sequence; each subscriber gets the
+ * samples published since its last delivery as one SampleBatch on its executor, so a
+ * burst of samples costs one callback instead of one Intent per sample. A subscriber
+ * can resubscribe from a sequence to replay what it missed, as long as it is still
+ * in the ring. While paused, e.g. with the screen off, samples are only kept in the
+ * ring; resuming hands each subscriber what it missed right away. Each subscriber
+ * also picks how much of a backlog it wants (see Policy), so a burst from the sensor
+ * costs a slow consumer a bounded amount of work; what it skips is counted.
+ */
+public final class SampleHub {
+
+    public interface Subscriber {
+        // The batch is reused after the call returns, copy what needs to be kept
+        void onSamples(SampleBatch batch, long firstSequence);
+    }
+
+    /** How much of its backlog a subscriber gets when it falls behind the publisher. */
+    public static final class Policy {
+
+        /** Everything the ring still holds; only samples overwritten before delivery are dropped. */
+        public static final Policy ALL = new Policy(Integer.MAX_VALUE, false);
+
+        /** Only the newest sample, for a status that shows the current value. */
+        public static final Policy LATEST = new Policy(1, true);
+
+        /** At most the newest limit samples, e.g. what a chart window can show. */
+        public static Policy dropOldest(int limit) {
+            if (limit <= 0) throw new IllegalArgumentException("limit must be positive");
+            return new Policy(limit, false);
+        }
+
+        final int limit;
+        final boolean conflates; // Skipped samples are superseded rather than lost
+
+        private Policy(int limit, boolean conflates) {
+            this.limit = limit;
+            this.conflates = conflates;
+        }
+    }
+
+    private final Object lock = new Object();
+    private final IngestMetrics metrics;
+    private final int capacity;
+    private final int batchCapacity;
+    private final long[] timestamps;
+    private final int[] heartRates;
+    private final int[] saturations;
+    private final int[] temperatures;
+    private final boolean[] badPostures;
+    private final List<Subscription> subscriptions = new ArrayList<>();
+
+    private long nextSequence; // Sequence of the next sample to be published
+    private boolean paused;
+
+    public SampleHub(int capacity, int batchCapacity) {
+        this(capacity, batchCapacity, new IngestMetrics());
+    }
+
+    // Conflated and dropped samples are counted in metrics
+    public SampleHub(int capacity, int batchCapacity, IngestMetrics metrics) {
+        this.metrics = metrics;
+        this.capacity = capacity;
+        this.batchCapacity = batchCapacity;
+        timestamps = new long[capacity];
+        heartRates = new int[capacity];
+        saturations = new int[capacity];
+        temperatures = new int[capacity];
+        badPostures = new boolean[capacity];
+    }
+
+    public long publish(long timestamp, int heartRate, int saturation, int temperature, boolean badPosture) {
+        synchronized (lock) {
+            long sequence = nextSequence++;
+            int index = (int) (sequence % capacity);
+            timestamps[index] = timestamp;
+            heartRates[index] = heartRate;
+            saturations[index] = saturation;
+            temperatures[index] = temperature;
+            badPostures[index] = badPosture;
+
+            if (paused) return sequence;
+            for (int i = 0; i < subscriptions.size(); i++) {
+                subscriptions.get(i).schedule();
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Registers the subscriber, delivering on the given executor. With fromSequence >= 0
+     * the samples from that sequence on are replayed first (or from the oldest one still
+     * kept); a negative fromSequence only delivers samples published from now on.
+     */
+    public void subscribe(Subscriber subscriber, Executor executor, long fromSequence) {
+        subscribe(subscriber, executor, fromSequence, Policy.ALL);
+    }
+
+    public void subscribe(Subscriber subscriber, Executor executor, long fromSequence, Policy policy) {
+        synchronized (lock) {
+            unsubscribe(subscriber);
+            long oldest = Math.max(0, nextSequence - capacity);
+            long start = fromSequence < 0 || fromSequence > nextSequence ? nextSequence : Math.max(fromSequence, oldest);
+            Subscription subscription = new Subscription(subscriber, executor, policy, start);
+            subscriptions.add(subscription);
+            if (start < nextSequence && !paused) {
+                subscription.schedule();
+            }
+        }
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        synchronized (lock) {
+            for (int i = 0; i < subscriptions.size(); i++) {
+                if (subscriptions.get(i).subscriber == subscriber) {
+                    subscriptions.remove(i).active = false;
+                    return;
+                }
+            }
+        }
+    }
+
+    public void setPaused(boolean paused) {
+        synchronized (lock) {
+            if (this.paused == paused) return;
+            this.paused = paused;
+            if (paused) return;
+            for (int i = 0; i < subscriptions.size(); i++) {
+                Subscription subscription = subscriptions.get(i);
+                if (subscription.next < nextSequence) subscription.schedule();
+            }
+        }
+    }
+
+    public int getSubscriberCount() {
+        synchronized (lock) {
+            return subscriptions.size();
+        }
+    }
+
+    // Sequence of the last published sample, -1 if none
+    public long getLatestSequence() {
+        synchronized (lock) {
+            return nextSequence - 1;
+        }
+    }
+
+    private final class Subscription implements Runnable {
+        final Subscriber subscriber;
+        final Executor executor;
+        final Policy policy;
+        final SampleBatch batch = new SampleBatch(batchCapacity);
+        long next;
+        boolean scheduled;
+        boolean active = true;
+
+        Subscription(Subscriber subscriber, Executor executor, Policy policy, long next) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.policy = policy;
+            this.next = next;
+        }
+
+        // Called with the lock held; samples published before run() are coalesced
+        void schedule() {
+            if (scheduled) return;
+            scheduled = true;
+            executor.execute(this);
+        }
+
+        // One batch per task: on the main thread the looper gets to lay out and draw
+        // between deliveries, however long the subscriber takes and however fast samples come
+        @Override
+        public void run() {
+            long first;
+            synchronized (lock) {
+                if (!active || next >= nextSequence) {
+                    scheduled = false;
+                    return;
+                }
+                // A subscriber that fell behind skips what was overwritten or what its policy does not want
+                first = Math.max(next, nextSequence - Math.min(capacity, policy.limit));
+                if (first > next) {
+                    if (policy.conflates) metrics.recordConflated(first - next);
+                    else metrics.recordDeliveryDropped(first - next);
+                }
+                long end = Math.min(nextSequence, first + batchCapacity);
+                batch.clear();
+                for (long sequence = first; sequence < end; sequence++) {
+                    int index = (int) (sequence % capacity);
+                    batch.add(timestamps[index], heartRates[index], saturations[index],
+                            temperatures[index], badPostures[index]);
+                }
+                next = end;
+            }
+            subscriber.onSamples(batch, first);
+            synchronized (lock) {
+                // Still scheduled: what was published meanwhile goes in the next task
+                if (active && !paused && next < nextSequence) {
+                    executor.execute(this);
+                } else {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.s;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The live device sessions, one per address. Starting a device that already has a
+ * live session does nothing, so repeated start requests (every onResume sends one)
+ * cannot open a second reader on the same socket; a session that gave up or was
+ * stopped is replaced on the next start.
+ */
+public final class SessionManager {
+
+    public interface SessionFactory {
+        DeviceSession create(String address);
+    }
+
+    public enum StartResult { STARTED, ALREADY_RUNNING, TOO_MANY_DEVICES }
+
+    private final SessionFactory factory;
+    private final int maxSessions;
+    private final Map<String, DeviceSession> sessions = new LinkedHashMap<>(); // Guarded by this
+
+    public SessionManager(SessionFactory factory, int maxSessions) {
+        this.factory = factory;
+        this.maxSessions = maxSessions;
+    }
+
+    public StartResult start(String address) {
+        DeviceSession session;
+        synchronized (this) {
+            DeviceSession existing = sessions.get(address);
+            if (existing != null && !existing.isStopped()) return StartResult.ALREADY_RUNNING;
+            if (existing == null && liveCount() >= maxSessions) return StartResult.TOO_MANY_DEVICES;
+            session = factory.create(address);
+            sessions.put(address, session);
+        }
+        session.start(); // Outside the lock: start() calls back into the listener
+        return StartResult.STARTED;
+    }
+
+    // Returns false if there was no session for the address
+    public boolean stop(String address) {
+        DeviceSession session;
+        synchronized (this) {
+            session = sessions.remove(address);
+        }
+        if (session == null) return false;
+        session.stop();
+        return true;
+    }
+
+    public void stopAll() {
+        List<DeviceSession> stopped;
+        synchronized (this) {
+            stopped = new ArrayList<>(sessions.values());
+            sessions.clear();
+        }
+        for (DeviceSession session : stopped) {
+            session.stop();
+        }
+    }
+
+    // Forgets a session that stopped by itself, unless a newer one already replaced it
+    public synchronized void remove(DeviceSession session) {
+        sessions.remove(session.getAddress(), session);
+    }
+
+    public synchronized DeviceSession get(String address) {
+        return sessions.get(address);
+    }
+
+    public synchronized List<DeviceSession> getSessions() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    // Sessions that are connected or trying to connect
+    public synchronized int liveCount() {
+        int count = 0;
+        for (DeviceSession session : sessions.values()) {
+            if (!session.isStopped()) count++;
+        }
+        return count;
+    }
+}
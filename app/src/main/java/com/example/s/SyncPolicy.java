@@ -0,0 +1,39 @@
+package com.example.s;
+
+/**
+ * When the health data store forces the journal of its unsealed samples (the ".tail"
+ * file) to disk. Sealed blocks are always forced before their samples leave the journal,
+ * so the policy only decides how many of the newest samples a power cut can take, and
+ * how many fsyncs the writer pays for that.
+ */
+public final class SyncPolicy {
+
+    /** Forced after every appended batch: nothing written is lost, one fsync per batch. */
+    public static final SyncPolicy PER_BATCH = new SyncPolicy(0);
+
+    /** Forced only by an explicit flush, e.g. when the app goes to the background. */
+    public static final SyncPolicy ON_PAUSE = new SyncPolicy(Long.MAX_VALUE);
+
+    /** Forced by the first batch appended at least intervalMs after the previous sync. */
+    public static SyncPolicy every(long intervalMs) {
+        if (intervalMs <= 0) throw new IllegalArgumentException("intervalMs must be positive");
+        return new SyncPolicy(intervalMs);
+    }
+
+    private final long intervalMs;
+
+    private SyncPolicy(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    boolean isDue(long sinceLastSyncMs) {
+        return sinceLastSyncMs >= intervalMs;
+    }
+
+    @Override
+    public String toString() {
+        if (intervalMs == 0) return "per batch";
+        if (intervalMs == Long.MAX_VALUE) return "on pause";
+        return "every " + intervalMs + " ms";
+    }
+}
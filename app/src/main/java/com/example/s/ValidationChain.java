@@ -0,0 +1,56 @@
+package com.example.s;
+
+/**
+ * The checks every decoded frame goes through, once, on the reader thread, before it
+ * reaches the history, the analytics and the screens. Rules run in the order they were
+ * added and the first one that rejects the frame gives the reason. Not thread-safe:
+ * stateful rules such as the anomaly detector belong to one session.
+ */
+public final class ValidationChain {
+
+    /** A check on the raw values, true when the frame must be rejected. */
+    public interface Predicate {
+        boolean test(int heartRate, int saturation, int temperature);
+    }
+
+    /** A check that picks its own reason, or returns null to let the frame through. */
+    public interface Rule {
+        RejectReason check(long timestamp, int heartRate, int saturation, int temperature);
+    }
+
+    private Rule[] rules = new Rule[0];
+
+    public ValidationChain reject(RejectReason reason, Predicate predicate) {
+        return then((timestamp, heartRate, saturation, temperature) ->
+                predicate.test(heartRate, saturation, temperature) ? reason : null);
+    }
+
+    public ValidationChain then(Rule rule) {
+        Rule[] grown = new Rule[rules.length + 1];
+        System.arraycopy(rules, 0, grown, 0, rules.length);
+        grown[rules.length] = rule;
+        rules = grown;
+        return this;
+    }
+
+    public int size() {
+        return rules.length;
+    }
+
+    // null when every rule accepts the frame
+    public RejectReason validate(long timestamp, int heartRate, int saturation, int temperature) {
+        for (Rule rule : rules) {
+            RejectReason reason = rule.check(timestamp, heartRate, saturation, temperature);
+            if (reason != null) return reason;
+        }
+        return null;
+    }
+
+    // Markers of the device itself, then the session's detector for impossible values and artifacts
+    public static ValidationChain standard(AnomalyDetector detector) {
+        return new ValidationChain()
+                .reject(RejectReason.CALIBRATION, (heartRate, saturation, temperature) -> temperature == 80)
+                .reject(RejectReason.ZERO_READING, (heartRate, saturation, temperature) -> heartRate == 0 || saturation == 0)
+                .then(detector::check);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.s;
+
+/**
+ * Incremental statistics of one integer metric over a sliding time window, plus two
+ * exponentially weighted moving averages. The sensor values are small integers, so
+ * the window keeps an exact histogram next to a ring of its samples: adding a sample
+ * or evicting one is O(1) and allocation-free, and percentiles, min and max are read
+ * from the histogram in O(range) when a summary is taken. Not thread-safe.
+ */
+public final class WindowedStats {
+
+    private final long windowMs;
+    private final int minValue;
+    private final int[] histogram;
+    private final double fastTauMs;
+    private final double slowTauMs;
+
+    // Samples in the window, oldest at head
+    private final long[] timestamps;
+    private final int[] values;
+    private int head;
+    private int size;
+    private long sum;
+
+    private double fast = Double.NaN;
+    private double slow = Double.NaN;
+    private long lastTimestamp;
+
+    /**
+     * Values outside [minValue, maxValue] are clamped. At most capacity samples are
+     * kept: at a higher rate than capacity per window the window gets shorter.
+     */
+    public WindowedStats(long windowMs, int capacity, int minValue, int maxValue, long fastTauMs, long slowTauMs) {
+        this.windowMs = windowMs;
+        this.minValue = minValue;
+        this.histogram = new int[maxValue - minValue + 1];
+        this.fastTauMs = fastTauMs;
+        this.slowTauMs = slowTauMs;
+        this.timestamps = new long[capacity];
+        this.values = new int[capacity];
+    }
+
+    public void add(long timestamp, int value) {
+        expire(timestamp);
+        if (size == values.length) removeOldest();
+        int clamped = Math.max(minValue, Math.min(minValue + histogram.length - 1, value));
+        int tail = (head + size) % values.length;
+        timestamps[tail] = timestamp;
+        values[tail] = clamped;
+        size++;
+        sum += clamped;
+        histogram[clamped - minValue]++;
+
+        // Time-aware EWMA, so gaps in the stream weigh as much as the time they lasted
+        if (Double.isNaN(fast)) {
+            fast = clamped;
+            slow = clamped;
+        } else {
+            long elapsed = Math.max(0, timestamp - lastTimestamp);
+            fast += (clamped - fast) * (1 - Math.exp(-elapsed / fastTauMs));
+            slow += (clamped - slow) * (1 - Math.exp(-elapsed / slowTauMs));
+        }
+        lastTimestamp = timestamp;
+    }
+
+    // Drops the samples that left the window by now, also when no new sample arrives
+    public void expire(long now) {
+        long oldest = now - windowMs;
+        while (size > 0 && timestamps[head] <= oldest) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        int value = values[head];
+        sum -= value;
+        histogram[value - minValue]--;
+        head = (head + 1) % values.length;
+        size--;
+    }
+
+    public int count() {
+        return size;
+    }
+
+    // NaN when the window is empty
+    public double mean() {
+        return size == 0 ? Double.NaN : (double) sum / size;
+    }
+
+    public int min() {
+        return percentile(0);
+    }
+
+    public int max() {
+        return percentile(1);
+    }
+
+    // Nearest-rank percentile of the window, fraction in [0, 1]; Integer.MIN_VALUE when empty
+    public int percentile(double fraction) {
+        if (size == 0) return Integer.MIN_VALUE;
+        long rank = Math.max(1, (long) Math.ceil(fraction * size));
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) return minValue + i;
+        }
+        return minValue + histogram.length - 1;
+    }
+
+    // The EWMAs keep their value when the window empties, NaN before the first sample
+    public double fastAverage() {
+        return fast;
+    }
+
+    public double slowAverage() {
+        return slow;
+    }
+}
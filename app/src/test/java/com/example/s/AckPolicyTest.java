@@ -0,0 +1,244 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AckPolicyTest {
+
+    private static final byte[] FRAME = "72;98;365;0;%".getBytes(StandardCharsets.US_ASCII);
+    private static final long ONE_WAY_LATENCY_NANOS = 2_000_000; // Roughly an RFCOMM hop
+
+    // Counts the ack bytes and writes
+    private static class AckCounter extends OutputStream {
+        int bytes;
+        int writes;
+
+        @Override
+        public synchronized void write(int b) {
+            bytes++;
+            writes++;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                assertEquals('*', b[i]);
+            }
+            bytes += len;
+            writes++;
+        }
+
+        synchronized int bytes() {
+            return bytes;
+        }
+    }
+
+    @Test
+    public void perReadAcksEveryRead() throws IOException {
+        AckCounter out = new AckCounter();
+        AckPolicy policy = new AckPolicy.PerRead();
+        policy.onConnected(out);
+        assertEquals(0, out.bytes);
+        policy.onChunk(out, 1);
+        policy.onChunk(out, 0); // Partial frame, still acked as before
+        assertEquals(2, out.bytes);
+    }
+
+    @Test
+    public void everyNFramesAcksInBatches() throws IOException {
+        AckCounter out = new AckCounter();
+        AckPolicy policy = new AckPolicy.EveryNFrames(4);
+        policy.onConnected(out);
+        assertEquals(4, out.bytes);
+        policy.onChunk(out, 3);
+        assertEquals(4, out.bytes);
+        policy.onChunk(out, 6);
+        assertEquals(12, out.bytes); // 8 of the 9 acked, one write
+        assertEquals(2, out.writes);
+        policy.onChunk(out, 3);
+        assertEquals(16, out.bytes);
+    }
+
+    @Test
+    public void creditTopsUpAtHalfWindow() throws IOException {
+        AckCounter out = new AckCounter();
+        AckPolicy policy = new AckPolicy.Credit(8);
+        policy.onConnected(out);
+        assertEquals(8, out.bytes);
+        policy.onChunk(out, 3);
+        assertEquals(8, out.bytes);
+        policy.onChunk(out, 1);
+        assertEquals(12, out.bytes); // Back to 8 outstanding
+        policy.onChunk(out, 20); // More than granted cannot go below zero
+        assertEquals(20, out.bytes);
+        assertEquals(3, out.writes);
+    }
+
+    @Test
+    public void timedAcksFromTheTimer() throws Exception {
+        AckCounter out = new AckCounter();
+        AckPolicy policy = new AckPolicy.Timed(20, 8);
+        policy.onConnected(out);
+        assertEquals(8, out.bytes());
+        policy.onChunk(out, 5);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (out.bytes() < 13 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(13, out.bytes());
+        policy.onDisconnected();
+    }
+
+    @Test
+    public void ackBytesComeFromTheSharedArray() throws IOException {
+        AckCounter out = new AckCounter();
+        AckPolicy.writeAcks(out, AckPolicy.ACKS.length * 2 + 3);
+        assertEquals(AckPolicy.ACKS.length * 2 + 3, out.bytes);
+        assertEquals(3, out.writes);
+    }
+
+    // One direction of a link: each write arrives whole after a fixed latency
+    private static class LatencyLink {
+        private final BlockingQueue<Object[]> queue = new LinkedBlockingQueue<>();
+        private volatile boolean closed;
+
+        final OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                byte[] copy = new byte[len];
+                System.arraycopy(b, off, copy, 0, len);
+                queue.add(new Object[]{copy, System.nanoTime() + ONE_WAY_LATENCY_NANOS});
+            }
+        };
+
+        final InputStream in = new InputStream() {
+            private byte[] current;
+            private int position;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0];
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                try {
+                    while (current == null || position == current.length) {
+                        if (closed) return -1;
+                        Object[] delivery = queue.poll(10, TimeUnit.MILLISECONDS);
+                        if (delivery == null) continue;
+                        long wait = (Long) delivery[1] - System.nanoTime();
+                        if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+                        current = (byte[]) delivery[0];
+                        position = 0;
+                    }
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                int n = Math.min(len, current.length - position);
+                System.arraycopy(current, position, b, off, n);
+                position += n;
+                return n;
+            }
+        };
+
+        void close() {
+            closed = true;
+        }
+    }
+
+    // Sensor firmware: sends one frame for each ack byte received, as fast as the link allows
+    private static double framesPerSecond(AckPolicy policy, long durationMs) throws Exception {
+        LatencyLink toSensor = new LatencyLink();
+        LatencyLink toApp = new LatencyLink();
+        AtomicInteger credits = new AtomicInteger();
+        Object creditLock = new Object();
+
+        Thread ackReader = new Thread(() -> {
+            byte[] acks = new byte[256];
+            try {
+                int n;
+                while ((n = toSensor.in.read(acks, 0, acks.length)) > 0) {
+                    credits.addAndGet(n);
+                    synchronized (creditLock) {
+                        creditLock.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                // Link closed
+            }
+        });
+        Thread sender = new Thread(() -> {
+            try {
+                toApp.out.write(FRAME); // The first frame goes out unasked
+                while (!toApp.closed) {
+                    synchronized (creditLock) {
+                        while (credits.get() == 0 && !toApp.closed) creditLock.wait(10);
+                    }
+                    if (credits.get() > 0) {
+                        credits.decrementAndGet();
+                        toApp.out.write(FRAME);
+                    }
+                }
+            } catch (InterruptedException | IOException e) {
+                // Stopped
+            }
+        });
+        ackReader.start();
+        sender.start();
+
+        // Same loop as the service: decode each read, then let the policy ack it
+        FrameDecoder decoder = new FrameDecoder((heartRate, saturation, temperature, badPosture) -> { });
+        byte[] buffer = new byte[4096];
+        policy.onConnected(toSensor.out);
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        while (System.nanoTime() < end) {
+            int bytes = toApp.in.read(buffer, 0, buffer.length);
+            if (bytes <= 0) break;
+            long before = decoder.getFramesDecoded() + decoder.getFramesMalformed();
+            decoder.feed(buffer, 0, bytes);
+            policy.onChunk(toSensor.out, (int) (decoder.getFramesDecoded() + decoder.getFramesMalformed() - before));
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        policy.onDisconnected();
+        toApp.close();
+        toSensor.close();
+        sender.join(1000);
+        ackReader.join(1000);
+        assertEquals(0, decoder.getFramesMalformed());
+        return decoder.getFramesDecoded() / seconds;
+    }
+
+    @Test
+    public void benchmarkFramesPerSecondPerPolicy() throws Exception {
+        double perRead = framesPerSecond(new AckPolicy.PerRead(), 500);
+        double everyN = framesPerSecond(new AckPolicy.EveryNFrames(16), 500);
+        double timed = framesPerSecond(new AckPolicy.Timed(10, 64), 500);
+        double credit = framesPerSecond(new AckPolicy.Credit(16), 500);
+        System.out.printf("2 ms one-way latency, frames/s: per-read %.0f, every-16 %.0f, timed-10ms/64 %.0f, credit-16 %.0f%n",
+                perRead, everyN, timed, credit);
+
+        // Stop-and-wait is bound by the round trip, about 250 frames/s here
+        Benchmarks.check("per-read " + perRead + " frames/s", perRead < 400);
+        Benchmarks.check("every-16 " + everyN + " frames/s", everyN > perRead * 3);
+        Benchmarks.check("timed " + timed + " frames/s", timed > perRead * 3);
+        Benchmarks.check("credit " + credit + " frames/s", credit > perRead * 3);
+    }
+}
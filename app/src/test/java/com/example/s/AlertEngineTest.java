@@ -0,0 +1,157 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AlertEngineTest {
+
+    private static final AlertRule POSTURE = new AlertRule("posture", 5000, 3000, 60_000);
+    private static final long PERIOD_MS = 250; // The device sends about four frames a second
+
+    private static class Recorder implements AlertEngine.Listener {
+        final List<String> events = new ArrayList<>();
+        int audible;
+        int silent;
+        int cleared;
+
+        @Override
+        public void onRaised(AlertRule rule, int episodes, boolean audible) {
+            if (audible) this.audible++;
+            else silent++;
+            events.add((audible ? "alert " : "update ") + episodes);
+        }
+
+        @Override
+        public void onCleared(AlertRule rule) {
+            cleared++;
+            events.add("clear");
+        }
+    }
+
+    // Appends "elapsed_ms frame" lines for the given stretch of time, the way the frames were logged
+    private static long record(StringBuilder recording, long from, long durationMs, boolean badPosture) {
+        for (long t = from; t < from + durationMs; t += PERIOD_MS) {
+            recording.append(t).append(' ').append("74;97;36.4;").append(badPosture ? 1 : 0).append(";%\n");
+        }
+        return from + durationMs;
+    }
+
+    // Feeds a recording through the frame decoder into the engine
+    private static Recorder replay(String recording) {
+        Recorder recorder = new Recorder();
+        AlertEngine engine = new AlertEngine(recorder, POSTURE);
+        long[] now = new long[1];
+        FrameDecoder decoder = new FrameDecoder((heartRate, saturation, temperature, badPosture) ->
+                engine.update(POSTURE, badPosture, now[0]));
+        for (String line : recording.split("\n")) {
+            if (line.isEmpty()) continue;
+            int space = line.indexOf(' ');
+            now[0] = Long.parseLong(line.substring(0, space));
+            byte[] frame = line.substring(space + 1).getBytes(StandardCharsets.US_ASCII);
+            decoder.feed(frame, 0, frame.length);
+        }
+        return recorder;
+    }
+
+    @Test
+    public void aMinuteOfSlouchingIsOneAlert() {
+        StringBuilder recording = new StringBuilder();
+        long t = record(recording, 0, 10_000, false);
+        t = record(recording, t, 60_000, true);
+        Recorder recorder = replay(recording.toString());
+
+        // 240 bad frames used to mean 240 vibrating notifications
+        assertEquals(1, recorder.audible);
+        assertEquals(0, recorder.silent);
+        assertEquals(List.of("alert 1"), recorder.events);
+    }
+
+    @Test
+    public void firesOnlyAfterTheDelay() {
+        Recorder recorder = new Recorder();
+        AlertEngine engine = new AlertEngine(recorder, POSTURE);
+        for (long t = 0; t < 5000; t += PERIOD_MS) {
+            engine.update(POSTURE, true, t);
+        }
+        assertEquals(0, recorder.audible);
+        engine.update(POSTURE, true, 5000);
+        assertEquals(1, recorder.audible);
+        assertTrue(engine.isRaised(POSTURE));
+    }
+
+    @Test
+    public void shortBlipsNeverAlert() {
+        StringBuilder recording = new StringBuilder();
+        long t = 0;
+        for (int i = 0; i < 30; i++) {
+            t = record(recording, t, 4000, true);
+            t = record(recording, t, 1000, false);
+        }
+        Recorder recorder = replay(recording.toString());
+        assertTrue(recorder.events.isEmpty());
+    }
+
+    @Test
+    public void briefCorrectionsDoNotClearARaisedAlert() {
+        StringBuilder recording = new StringBuilder();
+        long t = record(recording, 0, 10_000, true);
+        for (int i = 0; i < 10; i++) {
+            t = record(recording, t, 2000, false); // Shorter than the 3 s clear delay
+            t = record(recording, t, 6000, true);
+        }
+        Recorder recorder = replay(recording.toString());
+        assertEquals(List.of("alert 1"), recorder.events);
+    }
+
+    @Test
+    public void repeatsWithinTheIntervalAreMerged() {
+        StringBuilder recording = new StringBuilder();
+        long t = record(recording, 0, 10_000, true); // Alert at 5 s
+        t = record(recording, t, 5000, false); // Cleared
+        t = record(recording, t, 10_000, true); // Second episode at 30 s: silent update
+        t = record(recording, t, 5000, false);
+        t = record(recording, t, 10_000, true); // Third at 50 s: silent update
+        t = record(recording, t, 20_000, false);
+        record(recording, t, 10_000, true); // Fourth at 90 s, a minute after the first: audible again
+        Recorder recorder = replay(recording.toString());
+
+        assertEquals(List.of("alert 1", "clear", "update 2", "clear", "update 3", "clear", "alert 1"),
+                recorder.events);
+        assertEquals(2, recorder.audible);
+        assertEquals(2, recorder.silent);
+    }
+
+    @Test
+    public void rulesAreIndependent() {
+        AlertRule quick = new AlertRule("quick", 0, 0, 0);
+        Recorder recorder = new Recorder();
+        AlertEngine engine = new AlertEngine(recorder, POSTURE, quick);
+        engine.update(quick, true, 0);
+        engine.update(POSTURE, true, 0);
+        engine.update(quick, false, 1);
+        engine.update(quick, true, 2);
+        assertEquals(List.of("alert 1", "clear", "alert 1"), recorder.events);
+        assertFalse(engine.isRaised(POSTURE));
+        assertEquals(2, engine.getAudibleAlerts());
+    }
+
+    @Test
+    public void resetForgetsRunsAcrossAGap() {
+        Recorder recorder = new Recorder();
+        AlertEngine engine = new AlertEngine(recorder, POSTURE);
+        engine.update(POSTURE, true, 0);
+        engine.update(POSTURE, true, 3000);
+        engine.reset(); // Reconnected
+        engine.update(POSTURE, true, 60_000);
+        assertEquals(0, recorder.audible);
+        engine.update(POSTURE, true, 65_000);
+        assertEquals(1, recorder.audible);
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+public class AnalyticsTest {
+
+    // Recomputes everything from the full list of samples, the way a rescan of the history would
+    private static int[] offlineWindow(List<long[]> samples, long now, long windowMs, int capacity, int min, int max) {
+        List<Integer> values = new ArrayList<>();
+        for (long[] sample : samples) {
+            if (sample[0] > now - windowMs) values.add((int) Math.max(min, Math.min(max, sample[1])));
+        }
+        List<Integer> kept = values.subList(Math.max(0, values.size() - capacity), values.size());
+        int[] sorted = new int[kept.size()];
+        for (int i = 0; i < sorted.length; i++) sorted[i] = kept.get(i);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private static int nearestRank(int[] sorted, double fraction) {
+        return sorted[(int) Math.max(1, Math.ceil(fraction * sorted.length)) - 1];
+    }
+
+    @Test
+    public void matchesAnOfflineComputation() {
+        long windowMs = 60_000;
+        int capacity = 200;
+        WindowedStats stats = new WindowedStats(windowMs, capacity, 30, 220, 5_000, 60_000);
+        List<long[]> samples = new ArrayList<>();
+        Random random = new Random(11);
+        long timestamp = 1_700_000_000_000L;
+        double fast = Double.NaN, slow = Double.NaN;
+        long last = 0;
+
+        for (int i = 0; i < 20_000; i++) {
+            // Mostly 4 Hz, sometimes a gap of up to two minutes; a few values outside the range
+            timestamp += random.nextInt(100) == 0 ? random.nextInt(120_000) : 150 + random.nextInt(200);
+            int value = random.nextInt(50) == 0 ? random.nextInt(300) : 60 + random.nextInt(40);
+            stats.add(timestamp, value);
+            samples.add(new long[]{timestamp, value});
+
+            int clamped = Math.max(30, Math.min(220, value));
+            if (Double.isNaN(fast)) {
+                fast = clamped;
+                slow = clamped;
+            } else {
+                fast += (clamped - fast) * (1 - Math.exp(-(timestamp - last) / 5_000.0));
+                slow += (clamped - slow) * (1 - Math.exp(-(timestamp - last) / 60_000.0));
+            }
+            last = timestamp;
+
+            if (i % 997 == 0) {
+                int[] sorted = offlineWindow(samples, timestamp, windowMs, capacity, 30, 220);
+                assertEquals(sorted.length, stats.count());
+                assertEquals(Arrays.stream(sorted).average().getAsDouble(), stats.mean(), 1e-9);
+                assertEquals(sorted[0], stats.min());
+                assertEquals(sorted[sorted.length - 1], stats.max());
+                for (double fraction : new double[]{0.1, 0.5, 0.9, 0.99}) {
+                    assertEquals(nearestRank(sorted, fraction), stats.percentile(fraction));
+                }
+                assertEquals(fast, stats.fastAverage(), 1e-6);
+                assertEquals(slow, stats.slowAverage(), 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void windowEmptiesWithoutNewSamples() {
+        WindowedStats stats = new WindowedStats(1000, 100, 0, 100, 1000, 1000);
+        stats.add(0, 50);
+        stats.add(500, 70);
+        stats.expire(1200);
+        assertEquals(1, stats.count());
+        assertEquals(70, stats.min());
+        stats.expire(1500);
+        assertEquals(0, stats.count());
+        assertTrue(Double.isNaN(stats.mean()));
+        assertEquals(Integer.MIN_VALUE, stats.percentile(0.5));
+        assertTrue(stats.fastAverage() > 50); // The averages outlive the window
+    }
+
+    @Test
+    public void summaryOfAnHourAtRest() {
+        Analytics analytics = new Analytics();
+        long start = 1_700_000_000_000L;
+        long now = start;
+        // An hour at 62-70 bpm with a short burst at 120, saturation 97, temperature rising from 36.2
+        for (int i = 0; i < 4 * 3600; i++) {
+            now = start + i * 250L;
+            int heartRate = i >= 8000 && i < 8400 ? 120 : 62 + i % 9;
+            int temperature = 362 + i / 2400;
+            analytics.add(now, heartRate, 97, temperature);
+        }
+        Analytics.Summary summary = analytics.summary(now);
+        assertEquals(4 * 3600, summary.samples);
+        assertEquals(62, summary.restingHeartRate);
+        assertEquals(62, summary.minHeartRate);
+        assertEquals(120, summary.maxHeartRate);
+        assertEquals(97, summary.saturation5Min, 1e-9);
+        assertEquals(36.7, summary.temperature, 0.05);
+        assertTrue(summary.temperatureTrend > 0);
+        String text = summary.toText();
+        assertTrue(text, text.contains("FC a riposo (1 h): 62"));
+        assertTrue(text, text.contains("in aumento"));
+
+        assertEquals("", new Analytics().summary(now).toText());
+    }
+
+    @Test
+    public void steadyStateCostPerSample() {
+        Analytics analytics = new Analytics();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long timestamp = 0;
+        // Fill every window first, so each new sample also evicts one
+        for (int i = 0; i < 100_000; i++) {
+            analytics.add(timestamp += 250, 60 + i % 40, 95 + i % 5, 360 + i % 10);
+        }
+
+        int samples = 1_000_000;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            analytics.add(timestamp += 250, 60 + i % 40, 95 + i % 5, 360 + i % 10);
+        }
+        long perSample = (System.nanoTime() - start) / samples;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println("Analytics: " + perSample + " ns per sample for three metrics");
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        Benchmarks.check(perSample + " ns per sample", perSample < 5000);
+    }
+}
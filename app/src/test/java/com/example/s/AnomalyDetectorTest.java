@@ -0,0 +1,226 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AnomalyDetectorTest {
+
+    private static final long PERIOD_MS = 250;
+
+    // Feeds a minute of a resting patient with a little jitter
+    private static long rest(AnomalyDetector detector, long timestamp) {
+        for (int i = 0; i < 240; i++) {
+            timestamp += PERIOD_MS;
+            assertEquals(AnomalyDetector.Verdict.VALID, detector.classify(timestamp, 68 + i % 5, 97 + i % 2, 364 + i % 3));
+        }
+        return timestamp;
+    }
+
+    @Test
+    public void singleSpikeIsAnArtifact() {
+        AnomalyDetector detector = new AnomalyDetector();
+        long timestamp = rest(detector, 0);
+        assertEquals(AnomalyDetector.Verdict.ARTIFACT, detector.classify(timestamp += PERIOD_MS, 190, 97, 365));
+        assertEquals(AnomalyDetector.Verdict.ARTIFACT, detector.classify(timestamp += PERIOD_MS, 70, 62, 365));
+        assertEquals(AnomalyDetector.SATURATION, detector.getJumps());
+        // The heart rate spike ended when the saturation jumped
+        assertEquals(AnomalyDetector.HEART_RATE, detector.getSpikes());
+        assertEquals(AnomalyDetector.Verdict.VALID, detector.classify(timestamp += PERIOD_MS, 70, 97, 365));
+        assertEquals(AnomalyDetector.SATURATION, detector.getSpikes());
+        // Impossible values are not artifacts but readings of nothing
+        assertEquals(AnomalyDetector.Verdict.OUT_OF_RANGE, detector.classify(timestamp += PERIOD_MS, 70, 97, 20));
+        assertEquals(AnomalyDetector.Verdict.OUT_OF_RANGE, detector.classify(timestamp + PERIOD_MS, 255, 97, 365));
+    }
+
+    @Test
+    public void sustainedChangeIsAcceptedAfterConfirmation() {
+        AnomalyDetector detector = new AnomalyDetector();
+        long timestamp = rest(detector, 0);
+        // The saturation drops to 86 and stays there
+        for (int i = 1; i < AnomalyDetector.CONFIRM_SAMPLES; i++) {
+            assertEquals(AnomalyDetector.Verdict.ARTIFACT, detector.classify(timestamp += PERIOD_MS, 70, 86, 365));
+            assertTrue(detector.isUnconfirmedJump());
+            assertEquals(AnomalyDetector.SATURATION, detector.getJumps());
+        }
+        assertEquals(AnomalyDetector.Verdict.NOTABLE, detector.classify(timestamp += PERIOD_MS, 70, 86, 365));
+        assertEquals(AnomalyDetector.SATURATION, detector.getConfirmed());
+        assertEquals(0, detector.getSpikes());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(AnomalyDetector.Verdict.NOTABLE, detector.classify(timestamp += PERIOD_MS, 70, 86, 365));
+            assertTrue(detector.isSaturationNotable());
+            assertFalse(detector.isHeartRateNotable());
+        }
+    }
+
+    @Test
+    public void flatHeartRateIsAStuckSensor() {
+        AnomalyDetector detector = new AnomalyDetector();
+        long timestamp = 0;
+        for (int i = 0; i < 60_000 / PERIOD_MS; i++) {
+            assertEquals(AnomalyDetector.Verdict.VALID, detector.classify(timestamp += PERIOD_MS, 72, 97, 365));
+        }
+        // Only the heart rate is stuck, so the frame is not counted as an artifact
+        assertEquals(AnomalyDetector.Verdict.STUCK, detector.classify(timestamp += PERIOD_MS, 72, 97, 365));
+        assertEquals(RejectReason.FLATLINE, detector.check(timestamp += PERIOD_MS, 72, 97, 365));
+        assertFalse(detector.isUnconfirmedJump());
+        assertEquals(AnomalyDetector.Verdict.VALID, detector.classify(timestamp + PERIOD_MS, 73, 97, 365));
+    }
+
+    @Test
+    public void lowButRealReadingsAreKept() {
+        // Skin temperature of 33 degrees and a sleeping heart rate of 45 were cut by the old fixed limits
+        AnomalyDetector detector = new AnomalyDetector();
+        long timestamp = 0;
+        for (int i = 0; i < 400; i++) {
+            AnomalyDetector.Verdict verdict = detector.classify(timestamp += PERIOD_MS, 45 + i % 3, 95, 330 + i % 2);
+            assertEquals(AnomalyDetector.Verdict.NOTABLE, verdict);
+            assertTrue(detector.isTemperatureNotable());
+        }
+        assertEquals(AnomalyDetector.Verdict.VALID, detector.classify(timestamp + 2 * AnomalyDetector.GAP_RESET_MS, 45, 95, 365));
+    }
+
+    @Test
+    public void onlyNotableSamplesRaiseTheVitalsAlert() {
+        List<String> alerts = new ArrayList<>();
+        AlertEngine engine = new AlertEngine(new AlertEngine.Listener() {
+            @Override
+            public void onRaised(AlertRule rule, int episodes, boolean audible) {
+                alerts.add(rule.name + " " + episodes);
+            }
+
+            @Override
+            public void onCleared(AlertRule rule) {
+                alerts.add("clear");
+            }
+        }, DeviceSession.VITALS_ALERT);
+        AnomalyDetector detector = new AnomalyDetector();
+        long timestamp = rest(detector, 0);
+
+        // A spike every two seconds for a minute: artifacts, no alert
+        for (int i = 0; i < 240; i++) {
+            timestamp += PERIOD_MS;
+            AnomalyDetector.Verdict verdict = detector.classify(timestamp, i % 8 == 7 ? 200 : 70 + i % 3, 97, 365);
+            if (verdict == AnomalyDetector.Verdict.ARTIFACT) continue;
+            engine.update(DeviceSession.VITALS_ALERT, verdict == AnomalyDetector.Verdict.NOTABLE, timestamp);
+        }
+        assertTrue(alerts.isEmpty());
+
+        // Saturation steadily at 85: confirmed within a second, one alert once it lasted long enough
+        long dropAt = timestamp;
+        for (int i = 0; i < 240; i++) {
+            timestamp += PERIOD_MS;
+            AnomalyDetector.Verdict verdict = detector.classify(timestamp, 70 + i % 3, 85, 365);
+            if (verdict == AnomalyDetector.Verdict.ARTIFACT) continue;
+            engine.update(DeviceSession.VITALS_ALERT, verdict == AnomalyDetector.Verdict.NOTABLE, timestamp);
+            if (alerts.isEmpty()) assertTrue(timestamp - dropAt < DeviceSession.VITALS_ALERT.raiseAfterMs + AnomalyDetector.CONFIRM_SAMPLES * PERIOD_MS);
+        }
+        assertEquals(1, alerts.size());
+        assertEquals("vitals 1", alerts.get(0));
+    }
+
+    @Test
+    public void artifactsNeverReachTheSink() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            // Resting values with a spike every 50 frames
+            lines.append(70 + i % 3).append(';').append(i % 50 == 49 ? 60 : 97).append(";36.5;0;%\n");
+        }
+        List<int[]> stored = new ArrayList<>();
+        IngestMetrics.Snapshot metrics = replay(lines, stored);
+
+        assertEquals(8, metrics.getRejected(RejectReason.ARTIFACT));
+        assertEquals(392, metrics.accepted);
+        assertEquals(0, metrics.notable);
+        assertEquals(392, stored.size());
+        for (int[] sample : stored) assertEquals(97, sample[1]);
+    }
+
+    // The frames that were held back until the new level was confirmed reach the sink too, in order
+    @Test
+    public void confirmedChangeKeepsEveryFrame() throws Exception {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            lines.append(70 + i % 3).append(';').append(i < 200 ? 97 : 86).append(";36.5;0;%\n");
+        }
+        List<int[]> stored = new ArrayList<>();
+        IngestMetrics.Snapshot metrics = replay(lines, stored);
+
+        assertEquals(0, metrics.getRejected(RejectReason.ARTIFACT));
+        assertEquals(400, metrics.accepted);
+        assertEquals(400, stored.size());
+        for (int i = 0; i < 400; i++) {
+            assertEquals(70 + i % 3, stored.get(i)[0]);
+            assertEquals(i < 200 ? 97 : 86, stored.get(i)[1]);
+        }
+    }
+
+    private static IngestMetrics.Snapshot replay(CharSequence lines, List<int[]> stored) throws Exception {
+        ReplayTransport transport = new ReplayTransport(ReplayTransport.Recording.fromLines(new StringReader(lines.toString()), PERIOD_MS))
+                .speed(ReplayTransport.AS_FAST_AS_POSSIBLE);
+        CountDownLatch finished = new CountDownLatch(1);
+        DeviceSession session = new DeviceSession("replay", transport, (timestamp, heartRate, saturation, temperature, posture) -> {
+            synchronized (stored) {
+                stored.add(new int[]{heartRate, saturation});
+            }
+            return true;
+        }, AckPolicy.PerRead::new, new DeviceSession.Listener() {
+            @Override
+            public void onStateChanged(DeviceSession session, ConnectionManager.State state) {
+            }
+
+            @Override
+            public void onAlert(DeviceSession session, AlertRule rule, int episodes, boolean audible) {
+            }
+
+            @Override
+            public void onAlertCleared(DeviceSession session, AlertRule rule) {
+            }
+
+            @Override
+            public void onGaveUp(DeviceSession session) {
+                finished.countDown();
+            }
+        }, 1, 5, 50);
+        session.start();
+        try {
+            assertTrue(finished.await(30, TimeUnit.SECONDS));
+        } finally {
+            session.stop();
+        }
+        synchronized (stored) {
+            return session.getMetrics().snapshot(null);
+        }
+    }
+
+    @Test
+    public void constantCostPerSample() {
+        AnomalyDetector detector = new AnomalyDetector();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long timestamp = rest(detector, 0);
+
+        int samples = 1_000_000;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < samples; i++) {
+            detector.classify(timestamp += PERIOD_MS, 60 + i % 40, 95 + i % 5, 360 + i % 10);
+        }
+        long perSample = (System.nanoTime() - start) / samples;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println("AnomalyDetector: " + perSample + " ns per sample for three metrics");
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        Benchmarks.check(perSample + " ns per sample", perSample < 2000);
+    }
+}
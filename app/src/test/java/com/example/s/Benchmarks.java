@@ -0,0 +1,19 @@
+package com.example.s;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Wall-clock bounds of the benchmarks in the unit tests. They only hold on an idle machine,
+ * so a plain test run prints the numbers; ./gradlew test -Pbenchmarks also checks the bounds.
+ */
+final class Benchmarks {
+
+    static final boolean ENFORCED = Boolean.getBoolean("benchmarks");
+
+    private Benchmarks() {
+    }
+
+    static void check(String message, boolean withinBound) {
+        if (ENFORCED) assertTrue(message, withinBound);
+    }
+}
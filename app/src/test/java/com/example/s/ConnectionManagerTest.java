@@ -0,0 +1,248 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ConnectionManagerTest {
+
+    private ConnectionManager manager;
+
+    @After
+    public void tearDown() {
+        if (manager != null) manager.stop();
+    }
+
+    // A link whose reads block until it is broken or closed
+    private static final class FakeConnection implements ConnectionManager.Connection {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    try {
+                        closed.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new IOException("Connection closed");
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    // Fails the first attempts, then hands out fake connections
+    private static final class FakeFactory implements ConnectionManager.ConnectionFactory {
+        final AtomicInteger calls = new AtomicInteger();
+        final List<Long> callTimes = Collections.synchronizedList(new ArrayList<>());
+        final List<FakeConnection> connections = Collections.synchronizedList(new ArrayList<>());
+        volatile int failuresLeft;
+        final AtomicInteger concurrent = new AtomicInteger();
+        volatile int maxConcurrent;
+
+        @Override
+        public ConnectionManager.Connection connect() throws IOException {
+            calls.incrementAndGet();
+            callTimes.add(System.nanoTime());
+            maxConcurrent = Math.max(maxConcurrent, concurrent.incrementAndGet());
+            try {
+                if (failuresLeft > 0) {
+                    failuresLeft--;
+                    throw new IOException("Device unreachable");
+                }
+                FakeConnection connection = new FakeConnection();
+                connections.add(connection);
+                return connection;
+            } finally {
+                concurrent.decrementAndGet();
+            }
+        }
+    }
+
+    private static final class RecordingCallback implements ConnectionManager.Callback {
+        final Semaphore connected = new Semaphore(0);
+        final CountDownLatch gaveUp = new CountDownLatch(1);
+        final List<ConnectionManager.State> states = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger sessions = new AtomicInteger();
+        volatile int maxSessions;
+
+        @Override
+        public void onConnected(ConnectionManager.Connection connection) throws IOException {
+            maxSessions = Math.max(maxSessions, sessions.incrementAndGet());
+            connected.release();
+            try {
+                connection.getInputStream().read();
+            } finally {
+                sessions.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void onStateChanged(ConnectionManager.State state) {
+            states.add(state);
+        }
+
+        @Override
+        public void onGaveUp() {
+            gaveUp.countDown();
+        }
+    }
+
+    @Test
+    public void backoffIsCappedAndJittered() {
+        for (int attempt = 0; attempt < 40; attempt++) {
+            long base = Math.min(1000, 10L << Math.min(attempt, 30));
+            long low = ConnectionManager.backoffDelay(attempt, 10, 1000, 0);
+            long high = ConnectionManager.backoffDelay(attempt, 10, 1000, 0.999);
+            assertEquals(base / 2, low);
+            assertTrue(high <= base && high >= base - 1);
+        }
+    }
+
+    @Test
+    public void retriesWithBackoffUntilConnected() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        factory.failuresLeft = 4;
+        RecordingCallback callback = new RecordingCallback();
+        manager = new ConnectionManager(factory, callback, 20, 200, 10_000);
+        manager.start();
+
+        assertTrue(callback.connected.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(ConnectionManager.State.CONNECTED, manager.getState());
+        assertEquals(5, factory.calls.get());
+        assertEquals(4, manager.getFailedAttempts());
+        assertEquals(1, factory.maxConcurrent);
+
+        // Gaps grow: at least half of 20, 40, 80, 160 ms
+        for (int i = 1; i < factory.callTimes.size(); i++) {
+            long gapMs = (factory.callTimes.get(i) - factory.callTimes.get(i - 1)) / 1_000_000;
+            long minimum = (20L << (i - 1)) / 2;
+            assertTrue("gap " + i + " was " + gapMs + " ms", gapMs >= minimum);
+        }
+        assertTrue(callback.states.contains(ConnectionManager.State.WAITING));
+    }
+
+    @Test
+    public void reconnectsAfterTheLinkDropsAndRecordsLatency() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        RecordingCallback callback = new RecordingCallback();
+        manager = new ConnectionManager(factory, callback, 20, 200, 10_000);
+        manager.start();
+        assertTrue(callback.connected.tryAcquire(5, TimeUnit.SECONDS));
+        assertEquals(0, manager.getReconnects());
+        assertEquals(-1, manager.getLastReconnectLatencyMs());
+
+        // The device drops the link and is unreachable for two attempts
+        factory.failuresLeft = 2;
+        factory.connections.get(0).close();
+        assertTrue(callback.connected.tryAcquire(5, TimeUnit.SECONDS));
+
+        assertEquals(1, manager.getReconnects());
+        assertTrue(manager.getLastReconnectLatencyMs() >= 0);
+        assertTrue(manager.getMaxReconnectLatencyMs() >= manager.getLastReconnectLatencyMs());
+        assertEquals(1, callback.maxSessions);
+        assertEquals(1, factory.maxConcurrent);
+    }
+
+    @Test
+    public void stopCancelsAPendingRetry() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        factory.failuresLeft = Integer.MAX_VALUE;
+        RecordingCallback callback = new RecordingCallback();
+        manager = new ConnectionManager(factory, callback, 200, 1000, 60_000);
+        manager.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (manager.getState() != ConnectionManager.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(ConnectionManager.State.WAITING, manager.getState());
+        manager.stop();
+        int calls = factory.calls.get();
+        Thread.sleep(400);
+        assertEquals(calls, factory.calls.get());
+        assertEquals(ConnectionManager.State.STOPPED, manager.getState());
+    }
+
+    @Test
+    public void stopClosesTheOpenConnection() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        RecordingCallback callback = new RecordingCallback();
+        manager = new ConnectionManager(factory, callback, 20, 200, 10_000);
+        manager.start();
+        assertTrue(callback.connected.tryAcquire(5, TimeUnit.SECONDS));
+
+        manager.stop();
+        assertTrue(factory.connections.get(0).closed.await(1, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(1, factory.calls.get()); // No reconnect after a requested disconnect
+        assertEquals(0, callback.sessions.get());
+    }
+
+    @Test
+    public void givesUpAfterTheDeadline() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        factory.failuresLeft = Integer.MAX_VALUE;
+        RecordingCallback callback = new RecordingCallback();
+        manager = new ConnectionManager(factory, callback, 10, 40, 300);
+        manager.start();
+
+        assertTrue(callback.gaveUp.await(5, TimeUnit.SECONDS));
+        assertEquals(ConnectionManager.State.STOPPED, manager.getState());
+        assertTrue(factory.calls.get() >= 3);
+    }
+
+    @Test
+    public void flappingLinkBacksOff() throws Exception {
+        FakeFactory factory = new FakeFactory();
+        AtomicInteger sessions = new AtomicInteger();
+        CountDownLatch fiveSessions = new CountDownLatch(5);
+        manager = new ConnectionManager(factory, new ConnectionManager.Callback() {
+            @Override
+            public void onConnected(ConnectionManager.Connection connection) throws IOException {
+                sessions.incrementAndGet();
+                fiveSessions.countDown();
+                throw new IOException("Dropped right away");
+            }
+
+            @Override
+            public void onStateChanged(ConnectionManager.State state) {
+            }
+
+            @Override
+            public void onGaveUp() {
+            }
+        }, 20, 160, 10_000);
+        long start = System.nanoTime();
+        manager.start();
+        assertTrue(fiveSessions.await(5, TimeUnit.SECONDS));
+        // Waits of at least 10 + 20 + 40 + 80 ms between the five sessions
+        assertTrue((System.nanoTime() - start) / 1_000_000 >= 150);
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+public class FrameDecoderTest {
+
+    private static class Recorder implements FrameDecoder.Listener {
+        int count;
+        int heartRate, saturation, temperature;
+        boolean badPosture;
+
+        @Override
+        public void onFrame(int heartRate, int saturation, int temperature, boolean badPosture) {
+            count++;
+            this.heartRate = heartRate;
+            this.saturation = saturation;
+            this.temperature = temperature;
+            this.badPosture = badPosture;
+        }
+    }
+
+    private static void feed(FrameDecoder decoder, String data) {
+        byte[] bytes = data.getBytes(StandardCharsets.US_ASCII);
+        decoder.feed(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void decodesSingleFrame() {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+
+        feed(decoder, "72;98;36;1;%");
+
+        assertEquals(1, recorder.count);
+        assertEquals(72, recorder.heartRate);
+        assertEquals(98, recorder.saturation);
+        assertEquals(360, recorder.temperature);
+        assertTrue(recorder.badPosture);
+    }
+
+    @Test
+    public void keepsPartialFramesAcrossReads() {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+
+        feed(decoder, "\r\n 7");
+        feed(decoder, "2;9");
+        assertEquals(0, recorder.count);
+        feed(decoder, "8;36.5;0%81;97;");
+        assertEquals(1, recorder.count);
+        assertEquals(72, recorder.heartRate);
+        assertEquals(365, recorder.temperature);
+        assertFalse(recorder.badPosture);
+
+        feed(decoder, "37;1;%");
+        assertEquals(2, recorder.count);
+        assertEquals(81, recorder.heartRate);
+        assertEquals(97, recorder.saturation);
+        assertEquals(370, recorder.temperature);
+        assertTrue(recorder.badPosture);
+    }
+
+    @Test
+    public void rejectsMalformedFrames() {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+
+        feed(decoder, "72;98;36%");      // missing field
+        feed(decoder, "72;;36;1;%");     // empty field
+        feed(decoder, "72;9x;36;1;%");   // garbage
+        feed(decoder, "72;98;36;1;5;%"); // extra field
+        feed(decoder, "  %");            // blank, ignored silently
+
+        assertEquals(0, recorder.count);
+        assertEquals(4, decoder.getFramesMalformed());
+
+        // A malformed frame must not leak into the next one
+        feed(decoder, "60;95;35;0;%");
+        assertEquals(1, recorder.count);
+        assertEquals(60, recorder.heartRate);
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+
+        feed(decoder, "72;98;");
+        decoder.reset();
+        feed(decoder, "60;95;35;0;%");
+
+        assertEquals(1, recorder.count);
+        assertEquals(60, recorder.heartRate);
+        assertEquals(0, decoder.getFramesMalformed());
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        byte[] chunk = buildChunk(4096);
+
+        // Warm up so the JIT has compiled the decode loop
+        for (int i = 0; i < 20_000; i++) {
+            decoder.feed(chunk, 0, chunk.length);
+        }
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long framesBefore = decoder.getFramesDecoded();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10_000; i++) {
+            decoder.feed(chunk, 0, chunk.length);
+        }
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        long frames = decoder.getFramesDecoded() - framesBefore;
+
+        assertTrue(frames > 100_000);
+        // Allow a little slack for the measurement itself, far below one byte per frame
+        assertTrue("Allocated " + allocated + " bytes for " + frames + " frames", allocated < 1024);
+    }
+
+    @Test
+    public void throughput() {
+        Recorder recorder = new Recorder();
+        FrameDecoder decoder = new FrameDecoder(recorder);
+        byte[] chunk = buildChunk(4096);
+        int rounds = 50_000;
+
+        for (int i = 0; i < rounds / 5; i++) {
+            decoder.feed(chunk, 0, chunk.length);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            decoder.feed(chunk, 0, chunk.length);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double megabytes = (double) rounds * chunk.length / (1024 * 1024);
+        double seconds = elapsed / 1e9;
+        long frames = (long) rounds * (chunk.length / 14);
+        System.out.printf("FrameDecoder: %.1f MB/s, %.0f frames/s%n", megabytes / seconds, frames / seconds);
+        assertEquals(0, decoder.getFramesMalformed());
+    }
+
+    // Fills at most maxSize bytes with whole 14-byte frames
+    private static byte[] buildChunk(int maxSize) {
+        byte[] frame = "72;98;36;1;%\r\n".getBytes(StandardCharsets.US_ASCII);
+        byte[] chunk = new byte[maxSize - maxSize % frame.length];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = frame[i % frame.length];
+        }
+        return chunk;
+    }
+}
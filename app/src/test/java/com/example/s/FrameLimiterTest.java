@@ -0,0 +1,77 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+public class FrameLimiterTest {
+
+    private static final long FRAME_MS = 34; // 30 fps, rounded to stay under
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void firstUpdateDrawsRightAwayAndTheRestAreCoalesced() {
+        FrameLimiter limiter = new FrameLimiter(FRAME_MS);
+        assertEquals(0, limiter.request(1000));
+        assertEquals(-1, limiter.request(1001)); // Picked up by the scheduled redraw
+        limiter.onFrame(1002);
+        assertEquals(FRAME_MS - 8, limiter.request(1010));
+        limiter.cancel();
+        assertEquals(0, limiter.request(1002 + FRAME_MS + 5));
+    }
+
+    // 50 Hz into a live window for three hours: at most 30 redraws a second, every
+    // sample drawn within a frame, and nothing allocated along the way
+    @Test
+    public void fiftyHertzForHours() {
+        FrameLimiter limiter = new FrameLimiter(FRAME_MS);
+        HistoryRing window = new HistoryRing(60 * 50);
+        SampleBatch batch = new SampleBatch(1);
+        long hours = 3;
+        long samples = hours * 60 * 60 * 50;
+        long frames = 0;
+        long lastFrame = Long.MIN_VALUE;
+        long minGap = Long.MAX_VALUE;
+        long oldestUndrawn = -1; // Arrival of the first sample no frame has shown yet
+        long maxLatency = 0;
+        long dueAt = -1;
+
+        long before = allocatedBytes();
+        for (long i = 0; i < samples; i++) {
+            long now = i * 20;
+            if (dueAt >= 0 && dueAt <= now) {
+                limiter.onFrame(dueAt);
+                frames++;
+                if (lastFrame != Long.MIN_VALUE) minGap = Math.min(minGap, dueAt - lastFrame);
+                lastFrame = dueAt;
+                maxLatency = Math.max(maxLatency, dueAt - oldestUndrawn);
+                oldestUndrawn = -1;
+                dueAt = -1;
+            }
+            batch.clear();
+            batch.add(now, 60 + (int) (i % 40), 97, 365, false);
+            window.add(batch);
+            if (oldestUndrawn < 0) oldestUndrawn = now;
+            long delay = limiter.request(now);
+            if (delay >= 0) dueAt = now + delay;
+        }
+        long allocated = allocatedBytes() - before;
+
+        double seconds = samples / 50.0;
+        System.out.printf("FrameLimiter: %d samples, %.1f frames/s, min gap %d ms, max latency %d ms, %d bytes allocated%n",
+                samples, frames / seconds, minGap, maxLatency, allocated);
+        assertTrue(minGap >= FRAME_MS);
+        assertTrue(frames / seconds <= 30);
+        assertTrue(maxLatency <= FRAME_MS);
+        assertEquals(window.capacity(), window.size());
+        assertTrue("Allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+}
@@ -0,0 +1,528 @@
+package com.example.s;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+public class HealthDataStoreTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("health_data", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+        tail().delete();
+    }
+
+    private File tail() {
+        return new File(file.getPath() + ".tail");
+    }
+
+    private static List<long[]> readAll(HealthDataStore store, long from, long to) throws IOException {
+        List<long[]> records = new ArrayList<>();
+        store.read(from, to, (timestamp, heartRate, saturation, temperature, badPosture) ->
+                records.add(new long[]{timestamp, heartRate, saturation, temperature, badPosture ? 1 : 0}));
+        return records;
+    }
+
+    @Test
+    public void appendAndReadBack() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            store.append(1000L, 72, 98, 365, false);
+            store.append(2000L, 180, 255, -50, true);
+
+            assertEquals(2, store.size());
+            assertEquals(HealthDataStore.TAIL_HEADER + 2 * HealthDataStore.RECORD_SIZE, tail().length());
+
+            List<long[]> records = readAll(store, 0, store.size());
+            assertEquals(2, records.size());
+            assertEquals(1000L, records.get(0)[0]);
+            assertEquals(72, records.get(0)[1]);
+            assertEquals(98, records.get(0)[2]);
+            assertEquals(365, records.get(0)[3]);
+            assertEquals(0, records.get(0)[4]);
+            assertEquals(180, records.get(1)[1]);
+            assertEquals(255, records.get(1)[2]); // saturation is stored unsigned
+            assertEquals(-50, records.get(1)[3]);
+            assertEquals(1, records.get(1)[4]);
+        }
+    }
+
+    @Test
+    public void readsRangesAcrossBatches() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            for (int i = 0; i < 1000; i++) {
+                store.append(i, 60 + i % 50, 95, 360, i % 7 == 0);
+            }
+
+            List<long[]> records = readAll(store, 250, 800);
+            assertEquals(550, records.size());
+            for (int i = 0; i < records.size(); i++) {
+                assertEquals(250 + i, records.get(i)[0]);
+            }
+
+            assertEquals(100, readAll(store, 900, 2000).size());
+            assertTrue(readAll(store, 500, 500).isEmpty());
+        }
+    }
+
+    @Test
+    public void reopenKeepsRecordsAndDropsTornTail() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            store.append(1L, 70, 97, 365, false);
+            store.append(2L, 71, 96, 366, true);
+        }
+        // Simulate a crash in the middle of a third record
+        try (RandomAccessFile raf = new RandomAccessFile(tail(), "rw")) {
+            raf.setLength(HealthDataStore.TAIL_HEADER + 2 * HealthDataStore.RECORD_SIZE + 5);
+        }
+
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertEquals(2, store.size());
+            assertEquals(HealthDataStore.TAIL_HEADER + 2 * HealthDataStore.RECORD_SIZE, tail().length());
+
+            store.append(3L, 72, 95, 367, false);
+            List<long[]> records = readAll(store, 0, store.size());
+            assertEquals(3, records.size());
+            assertEquals(3L, records.get(2)[0]);
+            assertEquals(0, records.get(2)[4]);
+        }
+    }
+
+    @Test
+    public void appendCostDoesNotGrowWithHistory() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            long first = timeAppends(store, 20_000);
+            long second = timeAppends(store, 20_000);
+            System.out.printf("HealthDataStore: %.2f us/append (first 20k), %.2f us/append (next 20k)%n",
+                    first / 20_000 / 1e3, second / 20_000 / 1e3);
+            assertEquals(40_000, store.size());
+            // The old JSON rewrite was quadratic, an append-only file stays flat
+            Benchmarks.check("next 20k appends took " + second / 1_000_000 + " ms", second < first * 4);
+        }
+    }
+
+    private static long timeAppends(HealthDataStore store, int count) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            store.append(i, 72, 98, 365, false);
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long linearIndexAtOrAfter(HealthDataStore store, long timestamp) throws IOException {
+        for (long i = 0; i < store.size(); i++) {
+            if (store.timestampAt(i) >= timestamp) return i;
+        }
+        return store.size();
+    }
+
+    private static void assertSeeksMatchScan(HealthDataStore store, long maxTimestamp) throws IOException {
+        for (long t = -5; t <= maxTimestamp + 5; t += 7) {
+            assertEquals("seek " + t, linearIndexAtOrAfter(store, t), store.indexAtOrAfter(t));
+        }
+    }
+
+    @Test
+    public void sparseIndexSeeksMatchAScan() throws IOException {
+        // Irregular spacing, several records per timestamp here and there, across many blocks
+        long timestamp = 0;
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertEquals(0, store.indexAtOrAfter(100));
+            Random random = new Random(9);
+            SampleBatch batch = new SampleBatch(300);
+            for (int i = 0; i < 3000; i++) {
+                timestamp += random.nextInt(4);
+                if (i % 1000 == 999) {
+                    store.append(batch);
+                    batch.clear();
+                    store.append(timestamp, 70, 97, 365, false);
+                } else {
+                    batch.add(timestamp, 70, 97, 365, false);
+                    if (batch.isFull()) {
+                        store.append(batch);
+                        batch.clear();
+                    }
+                }
+            }
+            store.append(batch);
+            assertSeeksMatchScan(store, timestamp);
+        }
+
+        // Reopened with the sidecar index, without it and with a stale one
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertSeeksMatchScan(store, timestamp);
+        }
+        File index = new File(file.getPath() + ".idx");
+        assertTrue(index.delete());
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertSeeksMatchScan(store, timestamp);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(index, "rw")) {
+            raf.seek(raf.length() - 8);
+            raf.writeLong(-1);
+        }
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertSeeksMatchScan(store, timestamp);
+            store.append(timestamp + 10, 70, 97, 365, false);
+            assertEquals(store.size() - 1, store.indexAtOrAfter(timestamp + 1));
+        }
+    }
+
+    // The wall clock set back between two batches and within one: restamped samples keep
+    // the store in order, so the seeks still agree with a scan
+    @Test
+    public void clockSetBackIsRestampedInOrder() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            SampleBatch batch = new SampleBatch(16);
+            for (long t : new long[]{1000, 2000, 3000}) batch.add(t, 70, 97, 365, false);
+            assertEquals(0, batch.keepInOrder(Long.MIN_VALUE));
+            store.append(batch);
+
+            batch.clear();
+            for (long t : new long[]{1500, 2500, 4000, 3500, 5000}) batch.add(t, 70, 97, 365, false);
+            assertEquals(3, batch.keepInOrder(store.timestampAt(store.size() - 1)));
+            assertArrayEquals(new long[]{3000, 3000, 4000, 4000, 5000}, Arrays.copyOf(batch.timestamps, batch.size()));
+            store.append(batch);
+
+            for (long i = 1; i < store.size(); i++) {
+                assertTrue(store.timestampAt(i) >= store.timestampAt(i - 1));
+            }
+            assertSeeksMatchScan(store, 5000);
+            assertEquals(2, store.indexAtOrAfter(3000));
+            assertEquals(7, store.indexAtOrAfter(4500));
+        }
+    }
+
+    @Test
+    public void indexFollowsATornBlock() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            for (int i = 0; i < 2500; i++) store.append(i * 10L, 70, 97, 365, false);
+        }
+        // Crash inside the second block, with the sidecar index already past it
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 3);
+        }
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            // The torn block is cut off, the tail after it follows the first block
+            assertEquals(2500 - HealthDataStore.BLOCK_RECORDS, store.size());
+            store.append(30_000L, 70, 97, 365, false);
+            assertEquals(HealthDataStore.BLOCK_RECORDS, store.indexAtOrAfter(10_235));
+            assertSeeksMatchScan(store, 30_000);
+        }
+    }
+
+    @Test
+    public void crashWhileSealingLosesNothing() throws IOException {
+        int records = HealthDataStore.BLOCK_RECORDS;
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            for (int i = 0; i < records - 1; i++) store.append(i * 10L, 60 + i % 50, 97, 365, i % 100 == 0);
+        }
+        byte[] fullTail = Files.readAllBytes(tail().toPath());
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            store.append((records - 1) * 10L, 70, 97, 365, false);
+            assertEquals(HealthDataStore.TAIL_HEADER, tail().length());
+        }
+        // The block is written but the tail still holds its samples
+        fullTail = Arrays.copyOf(fullTail, fullTail.length + HealthDataStore.RECORD_SIZE);
+        int last = fullTail.length - HealthDataStore.RECORD_SIZE;
+        ByteBuffer.wrap(fullTail, last, HealthDataStore.RECORD_SIZE)
+                .putLong((records - 1) * 10L).putShort((short) 70).putShort((short) 365).put((byte) 97).put((byte) 0)
+                .putShort(HealthDataStore.checksum(new CRC32(), fullTail, last, records - 1));
+        Files.write(tail().toPath(), fullTail);
+        List<long[]> expected;
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertEquals(records, store.size());
+            expected = readAll(store, 0, records);
+            assertEquals(HealthDataStore.TAIL_HEADER, tail().length());
+        }
+
+        // The block was torn: it is cut off and sealed again from the tail
+        Files.write(tail().toPath(), fullTail);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertEquals(records, store.size());
+            List<long[]> actual = readAll(store, 0, records);
+            for (int i = 0; i < records; i++) assertArrayEquals(expected.get(i), actual.get(i));
+            assertEquals(HealthDataStore.TAIL_HEADER, tail().length());
+        }
+    }
+
+    @Test
+    public void corruptBlockIsReportedNotMisread() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            for (int i = 0; i < 3 * HealthDataStore.BLOCK_RECORDS; i++) store.append(i * 10L, 70 + i % 9, 97, 365, false);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(20);
+            raf.write(raf.read() ^ 0x10);
+        }
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            assertEquals(3 * HealthDataStore.BLOCK_RECORDS, store.size());
+            assertEquals(2 * HealthDataStore.BLOCK_RECORDS + 5, store.indexAtOrAfter((2 * HealthDataStore.BLOCK_RECORDS + 5) * 10L));
+            try {
+                store.read(0, 10, (timestamp, heartRate, saturation, temperature, badPosture) -> { });
+                fail("Corrupt block was read");
+            } catch (IOException expected) {
+                // The checksum does not match
+            }
+        }
+    }
+
+    @Test
+    public void importsTheFixedWidthFormat() throws IOException {
+        File legacy = File.createTempFile("health_data", ".legacy");
+        try {
+            int records = 5000;
+            ByteBuffer buffer = ByteBuffer.allocate(records * HealthDataStore.RECORD_SIZE);
+            for (int i = 0; i < records; i++) {
+                buffer.putLong(1000L * i).putShort((short) (60 + i % 40)).putShort((short) 365)
+                        .put((byte) 98).put((byte) (i % 3 == 0 ? 1 : 0)).putShort((short) 0);
+            }
+            Files.write(legacy.toPath(), buffer.array());
+
+            try (HealthDataStore store = new HealthDataStore(file)) {
+                // An import interrupted after the first 2000 samples resumes after them
+                SampleBatch first = new SampleBatch(2000);
+                for (int i = 0; i < 2000; i++) first.add(1000L * i, 60 + i % 40, 98, 365, i % 3 == 0);
+                store.append(first);
+                store.importRecords(legacy);
+                assertEquals(records, store.size());
+                List<long[]> all = readAll(store, 0, records);
+                for (int i = 0; i < records; i++) {
+                    assertArrayEquals(new long[]{1000L * i, 60 + i % 40, 98, 365, i % 3 == 0 ? 1 : 0}, all.get(i));
+                }
+            }
+        } finally {
+            legacy.delete();
+        }
+    }
+
+    @Test
+    public void rangeSeekAt10MillionSamples() throws IOException {
+        int samples = 10_000_000;
+        long start = 1_700_000_000_000L;
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            SampleBatch batch = new SampleBatch(4096);
+            for (int i = 0; i < samples; i++) {
+                if (!batch.add(start + i * 1000L, 72, 98, 365, false)) {
+                    store.append(batch);
+                    batch.clear();
+                    batch.add(start + i * 1000L, 72, 98, 365, false);
+                }
+            }
+            store.append(batch);
+        }
+
+        long openStart = System.nanoTime();
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            long openTime = System.nanoTime() - openStart;
+            assertEquals(samples, store.size());
+
+            // "14:00-15:00 on some day": seek both ends of random one-hour windows
+            Random random = new Random(1);
+            int seeks = 2000;
+            for (int i = 0; i < 200; i++) store.indexAtOrAfter(start + random.nextInt(samples) * 1000L); // Warm up
+            long seekStart = System.nanoTime();
+            for (int i = 0; i < seeks; i++) {
+                long from = start + random.nextInt(samples - 3600) * 1000L + 500;
+                long first = store.indexAtOrAfter(from);
+                long last = store.indexAtOrAfter(from + Rollups.HOUR);
+                assertEquals(3600, last - first);
+                assertEquals((from - start + 999) / 1000, first);
+            }
+            long perRange = (System.nanoTime() - seekStart) / seeks;
+            System.out.printf("HealthDataStore: 10M samples, open %.1f ms, one-hour range seek %.1f us%n",
+                    openTime / 1e6, perRange / 1e3);
+            Benchmarks.check("range seek took " + perRange + " ns", perRange < 2_000_000);
+        }
+    }
+
+    // Sample number i of the fault-injection tests
+    private static void addSample(SampleBatch batch, long i) {
+        batch.add(1_000_000L + i * 250, 60 + (int) (i % 80), 90 + (int) (i % 11), 350 + (int) (i % 30), i % 13 == 0);
+    }
+
+    private static void assertSamples(HealthDataStore store) throws IOException {
+        long[] index = {0};
+        SampleBatch expected = new SampleBatch(1);
+        store.read(0, store.size(), (timestamp, heartRate, saturation, temperature, badPosture) -> {
+            expected.clear();
+            addSample(expected, index[0]);
+            assertEquals("sample " + index[0], expected.timestamps[0], timestamp);
+            assertEquals(expected.heartRates[0], heartRate);
+            assertEquals(expected.saturations[0], saturation);
+            assertEquals(expected.temperatures[0], temperature);
+            assertEquals(expected.badPostures[0], badPosture);
+            index[0]++;
+        });
+        assertEquals(store.size(), index[0]);
+    }
+
+    // Power cut while the journal was being written: the file ends mid-record, its end was
+    // never written (zeros) or a record holds garbage. Everything before the damage survives.
+    @Test
+    public void tornJournalIsReplayedUpToTheLastGoodRecord() throws IOException {
+        int sealed = 3 * HealthDataStore.BLOCK_RECORDS;
+        int pending = 700;
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            SampleBatch batch = new SampleBatch(50);
+            for (long i = 0; i < sealed + pending; i++) {
+                addSample(batch, i);
+                if (batch.isFull() || i == sealed + pending - 1) {
+                    store.append(batch);
+                    batch.clear();
+                }
+            }
+        }
+        byte[] blocks = Files.readAllBytes(file.toPath());
+        byte[] journal = Files.readAllBytes(tail().toPath());
+        assertEquals(HealthDataStore.TAIL_HEADER + pending * HealthDataStore.RECORD_SIZE, journal.length);
+
+        Random random = new Random(17);
+        for (int round = 0; round < 150; round++) {
+            int damaged = random.nextInt(pending);
+            int at = HealthDataStore.TAIL_HEADER + damaged * HealthDataStore.RECORD_SIZE;
+            byte[] bytes;
+            switch (round % 3) {
+                case 0: // Cut inside or at the start of the record
+                    bytes = Arrays.copyOf(journal, at + random.nextInt(HealthDataStore.RECORD_SIZE));
+                    break;
+                case 1: // The length made it to disk, the data did not
+                    bytes = journal.clone();
+                    Arrays.fill(bytes, at, bytes.length, (byte) 0);
+                    break;
+                default: // One byte of the record is wrong, the records after it are dropped too
+                    bytes = journal.clone();
+                    bytes[at + random.nextInt(HealthDataStore.RECORD_SIZE)] ^= (byte) (1 + random.nextInt(255));
+            }
+            Files.write(file.toPath(), blocks);
+            Files.write(tail().toPath(), bytes);
+
+            try (HealthDataStore store = new HealthDataStore(file)) {
+                assertEquals("round " + round, sealed + damaged, store.size());
+                assertSamples(store);
+                SampleBatch batch = new SampleBatch(1);
+                addSample(batch, store.size());
+                store.append(batch);
+            }
+            try (HealthDataStore store = new HealthDataStore(file)) {
+                assertEquals(sealed + damaged + 1, store.size());
+                assertSamples(store);
+            }
+        }
+    }
+
+    // Writes numbered samples until killed, printing the store size after every append
+    public static final class KilledWriter {
+        public static void main(String[] args) throws IOException {
+            try (HealthDataStore store = new HealthDataStore(new File(args[0]))) {
+                store.setSyncPolicy(SyncPolicy.PER_BATCH);
+                SampleBatch batch = new SampleBatch(37);
+                long next = store.size();
+                while (true) {
+                    batch.clear();
+                    while (!batch.isFull()) addSample(batch, next++);
+                    store.append(batch);
+                    System.out.println(store.size());
+                    System.out.flush();
+                }
+            }
+        }
+    }
+
+    private static String classpathOf(Class<?> type) throws URISyntaxException {
+        return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+
+    // A real writer process killed at random points, sealing blocks on the way: each restart
+    // finds every sample acknowledged before the kill and a clean store to append to
+    @Test
+    public void killedWriterKeepsEverythingItAcknowledged() throws Exception {
+        String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+        String classpath = classpathOf(HealthDataStore.class) + File.pathSeparator + classpathOf(HealthDataStoreTest.class);
+        Random random = new Random(23);
+        long acknowledged = 0;
+        for (int round = 0; round < 6; round++) {
+            Process writer = new ProcessBuilder(java, "-cp", classpath, KilledWriter.class.getName(), file.getPath())
+                    .redirectErrorStream(true).start();
+            long target = acknowledged + 200 + random.nextInt(3000);
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(writer.getInputStream(), StandardCharsets.UTF_8))) {
+                while (acknowledged < target) {
+                    String line = out.readLine();
+                    if (line == null) fail("The writer exited");
+                    acknowledged = Long.parseLong(line.trim());
+                }
+                writer.destroyForcibly();
+                writer.waitFor();
+            }
+            try (HealthDataStore store = new HealthDataStore(file)) {
+                assertTrue(store.size() + " < " + acknowledged, store.size() >= acknowledged);
+                assertSamples(store);
+                acknowledged = store.size();
+            }
+        }
+    }
+
+    // Cost of forcing the journal: batches of 32 samples under each policy
+    @Test
+    public void benchmarkSyncPolicies() throws IOException {
+        int batches = 300;
+        SyncPolicy[] policies = {SyncPolicy.PER_BATCH, SyncPolicy.every(100), SyncPolicy.ON_PAUSE};
+        long[] syncs = new long[policies.length];
+        StringBuilder report = new StringBuilder("HealthDataStore sync:");
+        for (int p = 0; p < policies.length; p++) {
+            File path = File.createTempFile("health_data", ".blk");
+            try (HealthDataStore store = new HealthDataStore(path)) {
+                store.setSyncPolicy(policies[p]);
+                SampleBatch batch = new SampleBatch(32);
+                long next = 0;
+                long start = System.nanoTime();
+                for (int b = 0; b < batches; b++) {
+                    batch.clear();
+                    while (!batch.isFull()) addSample(batch, next++);
+                    store.append(batch);
+                }
+                long elapsed = System.nanoTime() - start;
+                syncs[p] = store.syncCount();
+                report.append(String.format(" %s %.1f us/batch (%d syncs),", policies[p], elapsed / 1e3 / batches, syncs[p]));
+            } finally {
+                path.delete();
+                new File(path.getPath() + ".idx").delete();
+                new File(path.getPath() + ".tail").delete();
+            }
+        }
+        System.out.println(report.substring(0, report.length() - 1));
+        assertEquals(batches, syncs[0]);
+        assertTrue(syncs[1] < batches);
+        assertEquals(0, syncs[2]);
+    }
+}
@@ -0,0 +1,342 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class HealthDataWriterTest {
+
+    private File file;
+    private HealthDataStore store;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("health_data", ".bin");
+        store = new HealthDataStore(file);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        store.close();
+        file.delete();
+    }
+
+    @Test
+    public void groupsSamplesIntoBatches() throws Exception {
+        List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            batchSizes.add(batch.size());
+            store.append(batch);
+        }, 1024, 10, 60_000);
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(writer.submit(i, 70, 98, 365, false));
+        }
+        assertTrue(writer.flush(5000));
+        writer.close();
+
+        assertEquals(100, store.size());
+        assertEquals(100, writer.getWritten());
+        // Far fewer writes than samples
+        assertTrue("Batches: " + batchSizes, batchSizes.size() <= 20);
+    }
+
+    @Test
+    public void commitsAfterMaxDelayWithoutFullBatch() throws Exception {
+        CountDownLatch committed = new CountDownLatch(1);
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            store.append(batch);
+            committed.countDown();
+        }, 1024, 100, 50);
+
+        writer.submit(1L, 70, 98, 365, false);
+        writer.submit(2L, 71, 98, 365, true);
+
+        assertTrue(committed.await(2, TimeUnit.SECONDS));
+        assertEquals(2, store.size());
+        writer.close();
+    }
+
+    // StrictMode-style check: the submitting thread must never reach the disk
+    @Test
+    public void noDiskIoOnSubmittingThread() throws Exception {
+        List<Thread> writingThreads = Collections.synchronizedList(new ArrayList<>());
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            writingThreads.add(Thread.currentThread());
+            store.append(batch);
+            store.flush();
+            try {
+                Thread.sleep(5); // slow storage
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, 4096, 8, 10);
+
+        Thread mainThread = new Thread(() -> {
+            for (int i = 0; i < 2000; i++) {
+                writer.submit(i, 70, 98, 365, false);
+            }
+        }, "main");
+        long start = System.nanoTime();
+        mainThread.start();
+        mainThread.join();
+        long submitNanos = System.nanoTime() - start;
+
+        assertTrue(writer.flush(10_000));
+        writer.close();
+
+        assertEquals(2000, store.size());
+        assertFalse(writingThreads.isEmpty());
+        for (Thread thread : writingThreads) {
+            assertFalse(thread == mainThread);
+        }
+        // Submitting 2000 samples must not wait for the 5 ms commits
+        Benchmarks.check("submit took " + submitNanos / 1_000_000 + " ms", submitNanos < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void closeDrainsPendingSamples() throws Exception {
+        HealthDataWriter writer = new HealthDataWriter(store::append, 1024, 1000, 60_000);
+        for (int i = 0; i < 37; i++) {
+            writer.submit(i, 70, 98, 365, false);
+        }
+        writer.close();
+
+        assertEquals(37, store.size());
+        assertFalse(writer.submit(99, 70, 98, 365, false));
+    }
+
+    @Test
+    public void requestSyncCommitsThenSyncsOnTheWriterThread() throws Exception {
+        List<String> calls = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch synced = new CountDownLatch(2);
+        HealthDataWriter writer = new HealthDataWriter(new HealthDataWriter.Sink() {
+            @Override
+            public void write(SampleBatch batch) throws IOException {
+                store.append(batch);
+                calls.add("write " + batch.size() + " on " + Thread.currentThread().getName());
+            }
+
+            @Override
+            public void sync() throws IOException {
+                store.flush();
+                calls.add("sync on " + Thread.currentThread().getName());
+                synced.countDown();
+            }
+        }, 1024, 100, 60_000);
+
+        writer.submit(1L, 70, 98, 365, false);
+        writer.submit(2L, 71, 98, 365, false);
+        writer.requestSync();
+        // Nothing pending: only the sync
+        Thread.sleep(200);
+        writer.requestSync();
+
+        assertTrue(synced.await(2, TimeUnit.SECONDS));
+        writer.close();
+        assertEquals(Arrays.asList("write 2 on HealthDataWriter", "sync on HealthDataWriter", "sync on HealthDataWriter"),
+                calls);
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void sinkBugLosesOnlyItsBatch() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            if (calls.getAndIncrement() == 0) throw new IllegalStateException("sink bug");
+            store.append(batch);
+        }, 1024, 1, 60_000);
+
+        writer.submit(1L, 70, 98, 365, false);
+        assertTrue(writer.flush(2000));
+        writer.submit(2L, 71, 98, 365, false);
+        assertTrue(writer.flush(2000));
+        writer.close();
+
+        assertEquals(1, writer.getWritten());
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void dropsWhenQueueIsFull() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            store.append(batch);
+        }, 4, 1, 60_000);
+
+        int accepted = 0;
+        for (int i = 0; i < 20; i++) {
+            if (writer.submit(i, 70, 98, 365, false)) accepted++;
+        }
+        release.countDown();
+        assertTrue(writer.flush(5000));
+        writer.close();
+
+        // At most one batch in flight plus a full pending batch
+        assertTrue(accepted <= 8);
+        assertEquals(20 - accepted, writer.getDropped());
+        assertEquals(accepted, store.size());
+    }
+
+    @Test
+    public void fullQueueHoldsTheProducerBackInsteadOfDropping() throws Exception {
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            try {
+                Thread.sleep(5); // slow storage
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            store.append(batch);
+        }, 4, 1, 60_000);
+
+        for (int i = 0; i < 50; i++) {
+            assertTrue(writer.submit(0, i, 70, 98, 365, false, 1000));
+        }
+        assertTrue(writer.flush(5000));
+        writer.close();
+
+        assertEquals(50, store.size());
+        assertEquals(0, writer.getDropped());
+        assertTrue(writer.getStalled() > 0);
+    }
+
+    @Test
+    public void stalledDiskStillDropsAfterTheTimeout() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            store.append(batch);
+        }, 4, 1, 60_000);
+
+        int accepted = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            if (writer.submit(0, i, 70, 98, 365, false, 20)) accepted++;
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1_000_000;
+        release.countDown();
+        assertTrue(writer.flush(5000));
+        writer.close();
+
+        assertTrue(accepted <= 8);
+        assertEquals(10 - accepted, writer.getDropped());
+        // Each dropped sample waited out its timeout first
+        assertTrue("Waited " + elapsedMs + " ms", elapsedMs >= 20 * (10 - accepted));
+        Benchmarks.check("Waited " + elapsedMs + " ms", elapsedMs < 2000);
+    }
+
+    @Test
+    public void switchingToSmallBatchesCommitsWhatIsAlreadyDue() throws Exception {
+        CountDownLatch committed = new CountDownLatch(1);
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            store.append(batch);
+            committed.countDown();
+        }, 1024, 1024, 60_000);
+
+        for (int i = 0; i < 50; i++) {
+            writer.submit(i, 70, 98, 365, false);
+        }
+        assertFalse(committed.await(100, TimeUnit.MILLISECONDS));
+        writer.setBatching(32, 2000);
+
+        assertTrue(committed.await(1, TimeUnit.SECONDS));
+        assertEquals(50, store.size());
+        writer.close();
+    }
+
+    // One sensor at 4 Hz replayed 100 times faster than real time, five minutes per mode:
+    // the screen on with a subscriber and the writer committing every 2 s, then the screen
+    // off with the hub paused and the writer committing once a minute
+    @Test
+    public void benchmarkPowerModes() throws Exception {
+        store.setSyncPolicy(SyncPolicy.every(2000 / SPEEDUP));
+        long[] foreground = replay(false, 0);
+        long[] background = replay(true, 1);
+
+        System.out.printf("Power modes per hour: foreground %d writer + %d main thread wakeups, %d syncs, %.1f ms CPU;"
+                        + " background %d writer + %d main thread wakeups, %d syncs, %.1f ms CPU%n",
+                foreground[0], foreground[1], foreground[2], foreground[3] / 1e6,
+                background[0], background[1], background[2], background[3] / 1e6);
+        assertTrue((background[0] + background[1]) * 20 < foreground[0] + foreground[1]);
+        assertTrue(background[2] * 10 < foreground[2]);
+    }
+
+    private static final int SPEEDUP = 100;
+
+    // Writer wakeups, subscriber deliveries, syncs and CPU nanoseconds, scaled to one hour
+    private long[] replay(boolean idle, int round) throws Exception {
+        int samples = 5 * 60 * 4;
+        long periodNanos = 250_000_000L / SPEEDUP;
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        AtomicLong writerThread = new AtomicLong(-1);
+        HealthDataWriter writer = new HealthDataWriter(batch -> {
+            writerThread.set(Thread.currentThread().getId());
+            store.append(batch);
+        }, 4096, 32, 2000 / SPEEDUP);
+        if (idle) writer.setBatching(1024, 60_000 / SPEEDUP);
+        SampleHub hub = new SampleHub(4096, 256);
+        AtomicInteger deliveries = new AtomicInteger();
+        AtomicInteger delivered = new AtomicInteger();
+        hub.subscribe((batch, firstSequence) -> delivered.addAndGet(batch.size()), command -> {
+            deliveries.incrementAndGet(); // One main thread wakeup per task
+            command.run();
+        }, -1);
+        hub.setPaused(idle);
+
+        long syncs = store.syncCount();
+        long producerCpu = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        long base = 1_700_000_000_000L + round * 3_600_000L;
+        for (int i = 0; i < samples; i++) {
+            LockSupport.parkNanos(start + i * periodNanos - System.nanoTime());
+            long timestamp = base + 250L * i;
+            int heartRate = 60 + i % 40;
+            writer.submit(timestamp, heartRate, 97, 365, false);
+            hub.publish(timestamp, heartRate, 97, 365, false);
+        }
+        producerCpu = threads.getCurrentThreadCpuTime() - producerCpu;
+        long writerCpu = writerThread.get() < 0 ? 0 : threads.getThreadCpuTime(writerThread.get());
+        long wakeups = writer.getWakeups();
+        writer.close();
+        syncs = store.syncCount() - syncs;
+
+        int beforeResume = deliveries.get();
+        hub.setPaused(false);
+        if (idle) {
+            assertEquals(0, beforeResume);
+            assertEquals((samples + 255) / 256, deliveries.get()); // The backlog in one catch-up, a task per batch
+        }
+        assertEquals(samples, delivered.get());
+
+        long hourScale = 3600 / (samples / 4);
+        return new long[]{wakeups * hourScale, deliveries.get() * hourScale, syncs * hourScale,
+                (producerCpu + writerCpu) * hourScale};
+    }
+}
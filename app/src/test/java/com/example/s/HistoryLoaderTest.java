@@ -0,0 +1,170 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class HistoryLoaderTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("health_data", ".blk");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+        new File(file.getPath() + ".tail").delete();
+    }
+
+    private static void append(HealthDataStore store, HistoryRing ring, long from, long to) throws IOException {
+        SampleBatch batch = new SampleBatch(4096);
+        for (long i = from; i < to; i++) {
+            batch.add(1_700_000_000_000L + 250 * i, 60 + (int) (i % 80), 90 + (int) (i % 11), 360 + (int) (i % 15), i % 7 == 0);
+            if (batch.isFull() || i == to - 1) {
+                store.append(batch);
+                if (ring != null) {
+                    synchronized (ring) {
+                        ring.add(batch);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    // The ring must hold exactly the newest ring.size() samples of the store
+    private static void assertSuffixOf(HealthDataStore store, HistoryRing ring) throws IOException {
+        List<long[]> expected = new ArrayList<>();
+        store.read(store.size() - ring.size(), store.size(), (timestamp, heartRate, saturation, temperature, badPosture) ->
+                expected.add(new long[]{timestamp, heartRate, saturation, temperature, badPosture ? 1 : 0}));
+        assertEquals(expected.size(), ring.size());
+        for (int i = 0; i < ring.size(); i++) {
+            long[] sample = expected.get(i);
+            assertEquals(sample[0], ring.timestampAt(i));
+            assertEquals(sample[1], ring.heartRateAt(i));
+            assertEquals(sample[2], ring.saturationAt(i));
+            assertEquals(sample[3], ring.temperatureAt(i));
+            assertEquals(sample[4] == 1, ring.isBadPostureAt(i));
+        }
+    }
+
+    @Test
+    public void endsWithWhatAFullReadWouldLoad() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            append(store, null, 0, 30_000);
+            HistoryRing ring = new HistoryRing(20_000);
+            HistoryLoader loader = new HistoryLoader(store, ring, 1000, 4096);
+            assertEquals(1000, ring.size());
+            assertSuffixOf(store, ring);
+            assertFalse(loader.isDone());
+
+            loader.loadAll();
+            assertTrue(loader.isDone());
+            assertEquals(20_000, ring.size());
+            assertSuffixOf(store, ring);
+            assertFalse(loader.loadPage());
+        }
+    }
+
+    @Test
+    public void smallHistoryLoadsAtOnce() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            append(store, null, 0, 500);
+            HistoryRing ring = new HistoryRing(20_000);
+            HistoryLoader loader = new HistoryLoader(store, ring, 1000, 4096);
+            assertTrue(loader.isDone());
+            assertEquals(500, ring.size());
+            assertSuffixOf(store, ring);
+        }
+        HistoryRing ring = new HistoryRing(100);
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            new HistoryLoader(store, ring, 1000, 4096);
+            assertSuffixOf(store, ring); // Never more than the ring holds
+        }
+    }
+
+    @Test
+    public void newSamplesWhileLoadingKeepTheRingContiguous() throws IOException {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            append(store, null, 0, 10_000);
+            HistoryRing ring = new HistoryRing(8000);
+            HistoryLoader loader = new HistoryLoader(store, ring, 500, 1000);
+            long next = 10_000;
+            while (loader.loadPage()) {
+                append(store, ring, next, next + 700);
+                next += 700;
+                assertSuffixOf(store, ring);
+            }
+            assertSuffixOf(store, ring);
+            assertEquals(8000, ring.size()); // Filled by old and new samples together
+            append(store, ring, next, next + 10);
+            assertSuffixOf(store, ring);
+        }
+    }
+
+    @Test
+    public void concurrentWriterAndLoader() throws Exception {
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            append(store, null, 0, 200_000);
+            HistoryRing ring = new HistoryRing(86_400);
+            HistoryLoader loader = new HistoryLoader(store, ring, 1024, 8192);
+            Thread thread = new Thread(() -> {
+                try {
+                    loader.loadAll();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            thread.start();
+            for (long i = 200_000; i < 220_000; i += 100) {
+                append(store, ring, i, i + 100);
+            }
+            thread.join();
+            synchronized (ring) {
+                assertEquals(86_400, ring.size());
+                assertSuffixOf(store, ring);
+            }
+        }
+    }
+
+    // Cold start on a long history: opening the store and showing the newest samples
+    // must not wait for the day of samples the ring holds
+    @Test
+    public void benchmarkColdStart() throws IOException {
+        int samples = 2_000_000; // Over five days at 4 Hz
+        try (HealthDataStore store = new HealthDataStore(file)) {
+            append(store, null, 0, samples);
+        }
+        int rounds = 10;
+        long firstFrame = Long.MAX_VALUE;
+        long fullLoad = Long.MAX_VALUE;
+        for (int round = 0; round < rounds; round++) {
+            long start = System.nanoTime();
+            try (HealthDataStore store = new HealthDataStore(file)) {
+                HistoryRing ring = new HistoryRing(24 * 60 * 60);
+                HistoryLoader loader = new HistoryLoader(store, ring, 1024, 8192);
+                firstFrame = Math.min(firstFrame, System.nanoTime() - start);
+                loader.loadAll();
+                fullLoad = Math.min(fullLoad, System.nanoTime() - start);
+                assertEquals(ring.capacity(), ring.size());
+            }
+        }
+        System.out.printf("HistoryLoader: %d samples stored, first %d in %.2f ms, full ring in %.2f ms%n",
+                samples, 1024, firstFrame / 1e6, fullLoad / 1e6);
+        Benchmarks.check("Time to first frame " + firstFrame / 1e6 + " ms", firstFrame < 50_000_000L);
+        Benchmarks.check("Full ring in " + fullLoad / 1e6 + " ms", firstFrame * 5 < fullLoad);
+    }
+}
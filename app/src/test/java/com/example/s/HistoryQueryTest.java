@@ -0,0 +1,197 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+public class HistoryQueryTest {
+
+    private static final long START = 1_699_999_200_000L; // On an hour boundary
+
+    private File directory;
+    private HealthDataStore raw;
+    private Rollups rollups;
+    private HistoryQuery query;
+    private long timestamp = START;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("history").toFile();
+        raw = new HealthDataStore(new File(directory, "health_data.bin"));
+        rollups = new Rollups(directory, "health_rollup");
+        query = new HistoryQuery(raw, rollups);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        rollups.close();
+        raw.close();
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    // One sample per second, heart rate cycling from 0 to 99
+    private void record(int samples) throws IOException {
+        record(samples, 1000, -1);
+    }
+
+    // With spikeAt >= 0, heart rate 70 except for a 180 spike at that index and a 40 dip right after
+    private void record(int samples, long periodMs, int spikeAt) throws IOException {
+        SampleBatch batch = new SampleBatch(256);
+        for (int i = 0; i < samples; i++) {
+            int heartRate = spikeAt < 0 ? (int) ((timestamp - START) / 1000 % 100)
+                    : i == spikeAt ? 180 : i == spikeAt + 1 ? 40 : 70;
+            batch.add(timestamp, heartRate, 97, 365, false);
+            timestamp += periodMs;
+            if (batch.isFull()) {
+                raw.append(batch);
+                rollups.add(batch);
+                batch.clear();
+            }
+        }
+        raw.append(batch);
+        rollups.add(batch);
+    }
+
+    @Test
+    public void smallRangeReturnsRawSamples() throws IOException {
+        record(500);
+        HistoryQuery.Window window = query.query(START + 100_000, START + 200_000, 1000);
+        assertEquals(100, window.size);
+        assertEquals(0, window.resolution);
+        assertEquals(START + 100_000, window.timestamps[0]);
+        assertEquals(0f, window.heartRates[0], 0);
+        assertEquals(36.5f, window.temperatures[0], 0.001f);
+    }
+
+    @Test
+    public void largeRangeUsesRollupsAndCoversTheOpenBuckets() throws IOException {
+        record(3 * 3600 + 1234); // Just over three hours
+        long last = query.lastTimestamp();
+        HistoryQuery.Window window = query.query(START, last + 1, 500);
+
+        assertEquals(Rollups.MINUTE, window.resolution);
+        assertTrue(window.size <= 501);
+        // Every minute up to the last sample, the open minute filled in from the finer data
+        assertEquals(START, window.timestamps[0]);
+        assertTrue(window.timestamps[window.size - 1] >= last - Rollups.MINUTE);
+        for (int i = 1; i < window.size; i++) {
+            assertTrue(window.timestamps[i] > window.timestamps[i - 1]);
+        }
+        assertEquals(29.5f, window.heartRates[0], 0.001f);
+    }
+
+    @Test
+    public void hugeRangeIsMergedToMaxPoints() throws IOException {
+        record(48 * 3600);
+        HistoryQuery.Window window = query.query(START, query.lastTimestamp() + 1, 10);
+        assertEquals(5 * Rollups.HOUR, window.resolution);
+        assertTrue(window.size <= 11);
+        assertEquals(49.5f, window.heartRates[0], 0.001f);
+        assertEquals(97f, window.saturations[0], 0.001f);
+    }
+
+    @Test
+    public void minMaxKeepsThePeaksTheMeanSmoothsAway() throws IOException {
+        record(3 * 3600, 1000, 5000);
+        long last = query.lastTimestamp();
+        HistoryQuery.Window mean = query.query(START, last + 1, 500);
+        HistoryQuery.Window minMax = query.queryMinMax(START, last + 1, 500);
+
+        assertTrue(minMax.size <= 502);
+        assertEquals(Rollups.MINUTE, minMax.resolution);
+        assertTrue(max(mean.heartRates, mean.size) < 75);
+        assertEquals(180f, max(minMax.heartRates, minMax.size), 0);
+        assertEquals(40f, min(minMax.heartRates, minMax.size), 0);
+        assertEquals(36.5f, minMax.temperatures[0], 0.001f);
+        for (int i = 1; i < minMax.size; i++) {
+            assertTrue(minMax.timestamps[i] > minMax.timestamps[i - 1]);
+        }
+    }
+
+    @Test
+    public void zoomedInRangeIsBucketedFromRawSamples() throws IOException {
+        record(60 * 50, 20, 1234); // A minute at 50 Hz
+        HistoryQuery.Window window = query.queryMinMax(START, START + 60_000, 1000);
+        assertEquals(120, window.resolution); // 500 buckets of two points
+        assertTrue(window.size <= 1002);
+        assertEquals(180f, max(window.heartRates, window.size), 0);
+        assertEquals(40f, min(window.heartRates, window.size), 0);
+
+        // Few enough samples: the raw ones, untouched
+        HistoryQuery.Window raw = query.queryMinMax(START, START + 10_000, 1000);
+        assertEquals(0, raw.resolution);
+        assertEquals(500, raw.size);
+    }
+
+    private static float max(float[] values, int size) {
+        float max = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < size; i++) max = Math.max(max, values[i]);
+        return max;
+    }
+
+    private static float min(float[] values, int size) {
+        float min = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < size; i++) min = Math.min(min, values[i]);
+        return min;
+    }
+
+    @Test
+    public void costDoesNotDependOnHistorySize() throws IOException {
+        record(1000);
+        HistoryQuery.Window small = query.query(START, query.lastTimestamp() + 1, 200);
+        assertTrue(small.size <= 201);
+
+        record(1_000_000);
+        long first = query.firstTimestamp();
+        long last = query.lastTimestamp();
+        long begin = System.nanoTime();
+        HistoryQuery.Window large = query.query(first, last + 1, 200);
+        long elapsed = System.nanoTime() - begin;
+        assertTrue(large.size <= 201);
+        Benchmarks.check("query took " + elapsed / 1_000_000 + " ms", elapsed < 500_000_000L);
+
+        // What the graph asks for: the whole range, then a zoomed-in hour, at two points per pixel
+        begin = System.nanoTime();
+        HistoryQuery.Window overview = query.queryMinMax(first, last + 1, 2160);
+        HistoryQuery.Window zoomed = query.queryMinMax(last - Rollups.HOUR * 100, last - Rollups.HOUR * 99, 2160);
+        elapsed = System.nanoTime() - begin;
+        assertTrue(overview.size <= 2162 && zoomed.size <= 2162);
+        Benchmarks.check("min/max queries took " + elapsed / 1_000_000 + " ms", elapsed < 500_000_000L);
+    }
+
+    @Test
+    public void recentRingGivesTheSameWindowsAsTheDisk() throws IOException {
+        record(3 * 3600 + 1234);
+        HistoryRing recent = new HistoryRing(1800); // Only the last half hour
+        raw.read(raw.size() - recent.capacity(), raw.size(), recent::add);
+        HistoryQuery withRing = new HistoryQuery(raw, rollups, recent);
+
+        long last = query.lastTimestamp();
+        long[][] ranges = {{last - 600_000, last + 1}, {START, last + 1}, {last - 7200_000, last - 3600_000}};
+        for (long[] range : ranges) {
+            HistoryQuery.Window expected = query.query(range[0], range[1], 700);
+            HistoryQuery.Window actual = withRing.query(range[0], range[1], 700);
+            assertEquals(expected.size, actual.size);
+            for (int i = 0; i < expected.size; i++) {
+                assertEquals(expected.timestamps[i], actual.timestamps[i]);
+                assertEquals(expected.heartRates[i], actual.heartRates[i], 0);
+                assertEquals(expected.temperatures[i], actual.temperatures[i], 0);
+            }
+        }
+    }
+
+    @Test
+    public void emptyRange() throws IOException {
+        assertEquals(-1, query.firstTimestamp());
+        assertEquals(0, query.query(START, START + 1000, 10).size);
+        assertEquals(0, query.query(START, START, 10).size);
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+public class HistoryRingTest {
+
+    private static final int DAY_AT_1_HZ = 24 * 60 * 60;
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    @Test
+    public void addFirstPutsOlderSamplesInFront() {
+        HistoryRing ring = new HistoryRing(100);
+        for (int i = 40; i < 60; i++) ring.add(1000L * i, i, 90, 360, i % 2 == 0);
+        for (int i = 39; i >= 0; i--) assertTrue(ring.addFirst(1000L * i, i, 90, 360, i % 2 == 0));
+        for (int i = 60; i < 100; i++) ring.add(1000L * i, i, 90, 360, i % 2 == 0);
+        assertFalse(ring.addFirst(-1000L, 0, 0, 0, false));
+
+        assertEquals(100, ring.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(1000L * i, ring.timestampAt(i));
+            assertEquals(i, ring.heartRateAt(i));
+            assertEquals(i % 2 == 0, ring.isBadPostureAt(i));
+        }
+        ring.add(100_000L, 100, 90, 360, true); // Overwrites the sample added first in front
+        assertEquals(1000L, ring.timestampAt(0));
+    }
+
+    @Test
+    public void keepsTheNewestSamplesInOrder() {
+        HistoryRing ring = new HistoryRing(100);
+        for (int i = 0; i < 250; i++) {
+            ring.add(1000L * i, 60 + i % 50, 90 + i % 10, 360 + i % 20, i % 3 == 0);
+        }
+        assertEquals(100, ring.size());
+        for (int j = 0; j < ring.size(); j++) {
+            int i = 150 + j;
+            assertEquals(1000L * i, ring.timestampAt(j));
+            assertEquals(60 + i % 50, ring.heartRateAt(j));
+            assertEquals(90 + i % 10, ring.saturationAt(j));
+            assertEquals(360 + i % 20, ring.temperatureAt(j));
+            assertEquals(i % 3 == 0, ring.isBadPostureAt(j));
+        }
+        assertEquals(0, ring.indexAtOrAfter(0));
+        assertEquals(10, ring.indexAtOrAfter(159_500));
+        assertEquals(100, ring.indexAtOrAfter(250_000));
+    }
+
+    @Test
+    public void fieldsKeepTheirFullRange() {
+        HistoryRing ring = new HistoryRing(4);
+        ring.add(Long.MAX_VALUE, 250, 255, 450, true);
+        ring.add(1, 0, 0, -100, false);
+        assertEquals(250, ring.heartRateAt(0));
+        assertEquals(255, ring.saturationAt(0));
+        assertEquals(450, ring.temperatureAt(0));
+        assertTrue(ring.isBadPostureAt(0));
+        assertEquals(-100, ring.temperatureAt(1));
+        assertFalse(ring.isBadPostureAt(1));
+    }
+
+    @Test
+    public void readVisitsARange() {
+        HistoryRing ring = new HistoryRing(8);
+        for (int i = 0; i < 12; i++) ring.add(i, i, i, i, false);
+        List<Long> seen = new ArrayList<>();
+        ring.read(2, 6, (timestamp, heartRate, saturation, temperature, badPosture) -> seen.add(timestamp));
+        assertEquals(List.of(6L, 7L, 8L, 9L), seen);
+    }
+
+    @Test
+    public void dayAt1HzFitsIn2Megabytes() {
+        long before = allocatedBytes();
+        HistoryRing ring = new HistoryRing(DAY_AT_1_HZ);
+        long ringBytes = allocatedBytes() - before;
+
+        // Filling the ring allocates nothing
+        SampleBatch batch = new SampleBatch(64);
+        before = allocatedBytes();
+        for (int i = 0; i < DAY_AT_1_HZ; i++) {
+            if (!batch.add(i * 1000L, 72, 97, 365, i % 7 == 0)) {
+                ring.add(batch);
+                batch.clear();
+                batch.add(i * 1000L, 72, 97, 365, i % 7 == 0);
+            }
+        }
+        ring.add(batch);
+        long fillBytes = allocatedBytes() - before;
+
+        // The same day in the old List<String[]> form
+        before = allocatedBytes();
+        List<String[]> list = new ArrayList<>();
+        for (int i = 0; i < DAY_AT_1_HZ; i++) {
+            list.add(new String[]{String.valueOf(60 + i % 40), String.valueOf(90 + i % 10),
+                    SampleBatch.formatTemperature(360 + i % 20), String.valueOf(i % 7 == 0)});
+        }
+        long listBytes = allocatedBytes() - before;
+
+        System.out.println("HistoryRing: " + ringBytes / 1024 + " KB for a day at 1 Hz, "
+                + "List<String[]>: " + listBytes / 1024 + " KB");
+        assertEquals(DAY_AT_1_HZ, ring.size());
+        assertTrue("ring uses " + ringBytes + " bytes", ringBytes < 2 * 1024 * 1024);
+        assertTrue(ringBytes < HistoryRing.bytesFor(DAY_AT_1_HZ) + 1024);
+        assertTrue("filling allocated " + fillBytes + " bytes", fillBytes < 1024);
+        assertTrue(listBytes > 10 * ringBytes);
+    }
+}
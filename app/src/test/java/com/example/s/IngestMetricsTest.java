@@ -0,0 +1,126 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+public class IngestMetricsTest {
+
+    @Test
+    public void histogramPercentilesAreWithinABucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        LatencyHistogram.Summary summary = histogram.summary();
+        assertEquals(1000, summary.count);
+        assertEquals(500, summary.mean);
+        assertEquals(1000, summary.max);
+        assertTrue(summary.p50 >= 500 && summary.p50 < 1024);
+        assertTrue(summary.p99 >= 990 && summary.p99 <= 1000);
+        assertEquals(0, new LatencyHistogram().summary().p99);
+    }
+
+    @Test
+    public void snapshotCountsAndRates() {
+        IngestMetrics metrics = new IngestMetrics();
+        metrics.recordChunk(140, 20_000, 10, 1);
+        metrics.recordChunk(60, 40_000, 4, 0);
+        metrics.recordRejected(RejectReason.CALIBRATION);
+        metrics.recordRejected(RejectReason.OUT_OF_RANGE);
+        metrics.recordRejected(RejectReason.OUT_OF_RANGE);
+        for (int i = 0; i < 11; i++) metrics.recordAccepted();
+        metrics.recordSocketToUi(3000);
+        metrics.recordReconnect(1200);
+
+        IngestMetrics.Snapshot first = metrics.snapshot(null);
+        assertEquals(200, first.bytes);
+        assertEquals(2, first.chunks);
+        assertEquals(14, first.frames);
+        assertEquals(1, first.malformed);
+        assertEquals(11, first.accepted);
+        assertEquals(1, first.getRejected(RejectReason.CALIBRATION));
+        assertEquals(0, first.getRejected(RejectReason.ZERO_READING));
+        assertEquals(2, first.getRejected(RejectReason.OUT_OF_RANGE));
+        assertEquals(30, first.parseTime.mean);
+        assertEquals(1_200_000, first.reconnects.max);
+        assertEquals(-1, first.queueDepth);
+
+        IngestMetrics.Snapshot second = new IngestMetrics.Snapshot(first.takenAtNanos + 2_000_000_000L, 0,
+                1200, 3, 84, 1, 11, 0, new long[RejectReason.values().length], first.parseTime, first.socketToUi, first.reconnects, 0, 0, 0, 0, 0, 0);
+        assertEquals(500, second.bytesPerSecond(first), 1e-9);
+        assertEquals(35, second.framesPerSecond(first), 1e-9);
+    }
+
+    @Test
+    public void deviceMetricsRollUpIntoTheParent() {
+        IngestMetrics total = new IngestMetrics();
+        IngestMetrics first = new IngestMetrics(total);
+        IngestMetrics second = new IngestMetrics(total);
+        first.recordChunk(100, 1000, 5, 0);
+        first.recordAccepted();
+        second.recordChunk(40, 1000, 2, 1);
+        second.recordRejected(RejectReason.ZERO_READING);
+
+        assertEquals(100, first.snapshot(null).bytes);
+        assertEquals(0, first.snapshot(null).getRejected(RejectReason.ZERO_READING));
+        assertEquals(40, second.snapshot(null).bytes);
+        IngestMetrics.Snapshot sum = total.snapshot(null);
+        assertEquals(140, sum.bytes);
+        assertEquals(7, sum.frames);
+        assertEquals(1, sum.accepted);
+        assertEquals(1, sum.getRejected(RejectReason.ZERO_READING));
+    }
+
+    @Test
+    public void dumpsTextAndJson() {
+        IngestMetrics metrics = new IngestMetrics();
+        metrics.recordChunk(14, 5000, 1, 0);
+        metrics.recordRejected(RejectReason.ZERO_READING);
+        IngestMetrics.Snapshot snapshot = metrics.snapshot(null);
+
+        String text = snapshot.toText(null);
+        assertTrue(text, text.contains("rejected zero_reading 1"));
+        assertTrue(text, text.contains("parse (us)"));
+
+        String json = snapshot.toJson(null);
+        assertTrue(json, json.startsWith("{\"uptime_ms\":"));
+        assertTrue(json, json.contains("\"rejected\":{\"calibration\":0,\"zero_reading\":1,\"out_of_range\":0,\"artifact\":0,\"flatline\":0}"));
+        assertTrue(json, json.contains("\"parse_us\":{\"count\":1,\"mean\":5,"));
+        assertTrue(json, json.endsWith("\"dropped\":-1}"));
+        int depth = 0;
+        for (char c : json.toCharArray()) {
+            if (c == '{') depth++;
+            if (c == '}') depth--;
+            assertTrue(depth >= 0);
+        }
+        assertEquals(0, depth);
+    }
+
+    @Test
+    public void recordingIsCheapAndAllocationFree() {
+        IngestMetrics metrics = new IngestMetrics();
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (int i = 0; i < 100_000; i++) metrics.recordChunk(64, i, 4, 0); // Warm up
+
+        int chunks = 1_000_000;
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < chunks; i++) {
+            metrics.recordChunk(64, i, 4, 0);
+            metrics.recordAccepted();
+            if (IngestMetrics.isVerbose()) throw new AssertionError("verbose logging is off by default");
+        }
+        long perChunk = (System.nanoTime() - start) / chunks;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.println("IngestMetrics: " + perChunk + " ns per recorded chunk");
+        assertTrue("allocated " + allocated + " bytes", allocated < 1024);
+        Benchmarks.check(perChunk + " ns per chunk", perChunk < 2000);
+    }
+}
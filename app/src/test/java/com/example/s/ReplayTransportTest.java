@@ -0,0 +1,249 @@
+package com.example.s;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ReplayTransportTest {
+
+    private File dir;
+    private HealthDataStore store;
+    private Rollups rollups;
+    private HealthDataWriter writer;
+    private DeviceSession session;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("replay").toFile();
+        store = new HealthDataStore(new File(dir, "health_data.bin"));
+        rollups = new Rollups(dir, "health_rollup");
+        writer = new HealthDataWriter(batch -> {
+            store.append(batch);
+            rollups.add(batch);
+        }, 4096, 32, 50);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (session != null) session.stop();
+        writer.close();
+        store.close();
+        rollups.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    // A sensor log of valid frames four a second, heart rate going up and down between 60 and 99
+    private static ReplayTransport.Recording recording(int frames) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < frames; i++) {
+            lines.append(i * 250L).append(' ').append(60 + Math.abs(i % 78 - 39)).append(";97;36.").append(i % 10).append(";0;%\n");
+        }
+        return ReplayTransport.Recording.fromLines(new StringReader(lines.toString()), 250);
+    }
+
+    // The whole ingest path: session, decoder, filters, alerts, writer, raw store and rollups
+    private void run(ReplayTransport transport) {
+        run(transport, writer::submit, finished);
+    }
+
+    private void run(ReplayTransport transport, DeviceSession.SampleSink sink, CountDownLatch finished) {
+        session = new DeviceSession("replay", transport, sink, AckPolicy.PerRead::new,
+                new DeviceSession.Listener() {
+                    @Override
+                    public void onStateChanged(DeviceSession session, ConnectionManager.State state) {
+                    }
+
+                    @Override
+                    public void onAlert(DeviceSession session, AlertRule rule, int episodes, boolean audible) {
+                    }
+
+                    @Override
+                    public void onAlertCleared(DeviceSession session, AlertRule rule) {
+                    }
+
+                    @Override
+                    public void onGaveUp(DeviceSession session) {
+                        finished.countDown(); // The recording is over and no reconnect succeeds
+                    }
+                }, 1, 5, 50);
+        session.start();
+    }
+
+    private void awaitFinished() throws Exception {
+        assertTrue(finished.await(30, TimeUnit.SECONDS));
+        assertTrue(writer.flush(5000));
+    }
+
+    @Test
+    public void parsesTimedAndUntimedLines() throws IOException {
+        ReplayTransport.Recording recording = ReplayTransport.Recording.fromLines(
+                new StringReader("72;98;36.5;0;%\n73;98;36.5;1\n\n1000 74;97;36.4;0;%\n75;97;36.4;0;%\n"), 250);
+        assertEquals(4, recording.size());
+        assertArrayEquals(new long[]{0, 250, 1000, 1250}, recording.offsets);
+        assertEquals("73;98;36.5;1;%", new String(recording.frames[1], StandardCharsets.US_ASCII));
+
+        ReplayTransport.Recording capture = ReplayTransport.Recording.fromCapture(
+                "72;98;36.5;0;%73;98;36.5;1;%74;9".getBytes(StandardCharsets.US_ASCII), 100);
+        assertEquals(3, capture.size());
+        assertEquals("73;98;36.5;1;%", new String(capture.frames[1], StandardCharsets.US_ASCII));
+        assertEquals(200, capture.offsets[2]);
+    }
+
+    @Test
+    public void pacesPlaybackAtTheRequestedSpeed() throws Exception {
+        // 20 intervals of 250 ms: 5 s of recording
+        for (double speed : new double[]{100, 10}) {
+            ReplayTransport transport = new ReplayTransport(recording(21)).speed(speed);
+            InputStream in = transport.connect().getInputStream();
+            byte[] buffer = new byte[4096];
+            long start = System.nanoTime();
+            while (in.read(buffer, 0, buffer.length) >= 0) {
+                // Drain
+            }
+            double elapsedMs = (System.nanoTime() - start) / 1e6;
+            double expectedMs = 5000 / speed;
+            // Never faster than asked; how much slower depends on the machine
+            assertTrue(speed + "x took " + elapsedMs + " ms", elapsedMs >= expectedMs * 0.9);
+            Benchmarks.check(speed + "x took " + elapsedMs + " ms", elapsedMs < expectedMs + 200);
+        }
+    }
+
+    @Test
+    public void fragmentedLinkWithDisconnectsLosesNoFrames() throws Exception {
+        ReplayTransport transport = new ReplayTransport(recording(1000))
+                .speed(ReplayTransport.AS_FAST_AS_POSSIBLE).fragmentation(1, 5).disconnectEvery(97).seed(7);
+        run(transport);
+        awaitFinished();
+
+        assertEquals(10, transport.getDisconnects());
+        assertEquals(10, session.getConnectionManager().getReconnects());
+        IngestMetrics.Snapshot metrics = session.getMetrics().snapshot(null);
+        assertEquals(1000, metrics.frames);
+        assertEquals(0, metrics.malformed);
+        assertEquals(1000, metrics.accepted);
+        assertEquals(1000, store.size());
+        // One ack per read, every read delivered at most 5 bytes
+        assertEquals(metrics.chunks, transport.getAcks().length);
+        assertTrue(metrics.chunks >= metrics.bytes / 5);
+    }
+
+    @Test
+    public void noisyLinkIsCountedNotFatal() throws Exception {
+        ReplayTransport transport = new ReplayTransport(recording(2000))
+                .speed(ReplayTransport.AS_FAST_AS_POSSIBLE).fragmentation(1, 32).noise(0.005).seed(3);
+        run(transport);
+        awaitFinished();
+
+        IngestMetrics.Snapshot metrics = session.getMetrics().snapshot(null);
+        long rejected = 0;
+        for (RejectReason reason : RejectReason.values()) {
+            rejected += metrics.getRejected(reason);
+        }
+        assertTrue(metrics.malformed + rejected > 0);
+        assertTrue(metrics.accepted > 1500);
+        assertEquals(metrics.accepted, store.size());
+    }
+
+    @Test
+    public void benchmarkPipelineFramesPerSecond() throws Exception {
+        int frames = 50_000;
+        ReplayTransport transport = new ReplayTransport(recording(frames))
+                .speed(ReplayTransport.AS_FAST_AS_POSSIBLE).fragmentation(1, 64).seed(1);
+        long start = System.nanoTime();
+        run(transport);
+        while (session.getMetrics().snapshot(null).accepted < frames && System.nanoTime() - start < 30_000_000_000L) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        awaitFinished();
+        System.out.printf("Replay pipeline: %.0f frames/s through decode, filters, writer and store, %d dropped%n",
+                frames / seconds, writer.getDropped());
+
+        // Far above any real sensor the writer queue may overflow; every frame is stored or counted as dropped
+        assertEquals(frames, store.size() + writer.getDropped());
+        Benchmarks.check(frames / seconds + " frames/s", frames / seconds > 2000);
+    }
+
+    // The sensor at 10x its rate, 40 samples/s, into a screen that needs 40 ms per sample it
+    // shows: delivering every sample falls further behind with each one, showing only the
+    // newest keeps the delay under a couple of frames. The store still gets every sample
+    @Test
+    public void burstLatencyToAConflatedScreenStaysBounded() throws Exception {
+        long all = burstLatency(SampleHub.Policy.ALL, 0);
+        long latest = burstLatency(SampleHub.Policy.LATEST, 1);
+        System.out.printf("10x burst into a slow screen: latency %d ms delivering everything, %d ms conflated%n", all, latest);
+        Benchmarks.check("Conflated latency " + latest + " ms", latest < 250);
+        Benchmarks.check("Latency " + all + " ms delivering everything", all > 4 * latest);
+    }
+
+    // Worst delay from a sample being read to it being shown
+    private long burstLatency(SampleHub.Policy policy, int round) throws Exception {
+        int frames = 100;
+        IngestMetrics metrics = new IngestMetrics();
+        SampleHub hub = new SampleHub(4096, 256, metrics);
+        ExecutorService mainThread = Executors.newSingleThreadExecutor();
+        AtomicLong shown = new AtomicLong();
+        AtomicLong maxLatency = new AtomicLong();
+        long storedBefore = store.size();
+        SampleHub.Subscriber screen = (batch, firstSequence) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                try {
+                    Thread.sleep(40);
+                } catch (InterruptedException e) {
+                    return; // Shut down at the end of the run
+                }
+                shown.incrementAndGet();
+                long latency = System.currentTimeMillis() - batch.timestamps[i];
+                if (latency > maxLatency.get()) maxLatency.set(latency);
+            }
+        };
+        hub.subscribe(screen, mainThread, -1, policy);
+
+        CountDownLatch done = new CountDownLatch(1);
+        ReplayTransport transport = new ReplayTransport(recording(frames)).speed(10).seed(round);
+        run(transport, (timestamp, heartRate, saturation, temperature, badPosture) -> {
+            boolean queued = writer.submit(0, timestamp, heartRate, saturation, temperature, badPosture, 1000);
+            hub.publish(timestamp, heartRate, saturation, temperature, badPosture);
+            return queued;
+        }, done);
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        session.stop();
+        Thread.sleep(300); // Let the screen catch up with what it is going to show
+        hub.unsubscribe(screen);
+        mainThread.shutdownNow();
+        assertTrue(mainThread.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue(writer.flush(5000));
+
+        assertEquals(frames, store.size() - storedBefore);
+        assertEquals(0, writer.getDropped());
+        IngestMetrics.Snapshot snapshot = metrics.snapshot(null);
+        if (policy == SampleHub.Policy.LATEST) {
+            assertTrue(snapshot.conflated > 0);
+            assertEquals(frames, shown.get() + snapshot.conflated);
+        } else {
+            assertEquals(0, snapshot.conflated + snapshot.deliveryDropped);
+        }
+        return maxLatency.get();
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+public class RollupsTest {
+
+    private File directory;
+    private HealthDataStore raw;
+    private long timestamp = 1_700_000_000_000L;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("rollups").toFile();
+        raw = new HealthDataStore(new File(directory, "health_data.bin"));
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raw.close();
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    // Random walk around realistic values, with irregular gaps between samples
+    private void generate(int samples, long seed) throws IOException {
+        Random random = new Random(seed);
+        int heartRate = 70, saturation = 97, temperature = 365;
+        for (int i = 0; i < samples; i++) {
+            timestamp += random.nextInt(10) == 0 ? random.nextInt(600_000) : 200 + random.nextInt(1200);
+            heartRate = Math.max(35, Math.min(200, heartRate + random.nextInt(5) - 2));
+            saturation = Math.max(80, Math.min(100, saturation + random.nextInt(3) - 1));
+            temperature = Math.max(340, Math.min(420, temperature + random.nextInt(3) - 1));
+            raw.append(timestamp, heartRate, saturation, temperature, random.nextInt(4) == 0);
+        }
+    }
+
+    // Aggregates every raw sample by bucket, the last (open) bucket excluded
+    private List<long[]> bruteForce(long width) throws IOException {
+        TreeMap<Long, long[]> buckets = new TreeMap<>();
+        raw.read(0, raw.size(), (timestamp, heartRate, saturation, temperature, badPosture) -> {
+            long start = timestamp - Math.floorMod(timestamp, width);
+            long[] b = buckets.get(start);
+            if (b == null) {
+                b = new long[]{start, 0, Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MAX_VALUE, Long.MIN_VALUE, 0,
+                        Long.MAX_VALUE, Long.MIN_VALUE, 0, 0};
+                buckets.put(start, b);
+            }
+            b[1]++;
+            b[2] = Math.min(b[2], heartRate); b[3] = Math.max(b[3], heartRate); b[4] += heartRate;
+            b[5] = Math.min(b[5], saturation); b[6] = Math.max(b[6], saturation); b[7] += saturation;
+            b[8] = Math.min(b[8], temperature); b[9] = Math.max(b[9], temperature); b[10] += temperature;
+            if (badPosture) b[11]++;
+        });
+        buckets.pollLastEntry();
+        return new ArrayList<>(buckets.values());
+    }
+
+    private static List<long[]> stored(RollupStore store) throws IOException {
+        List<long[]> rollups = new ArrayList<>();
+        store.read(0, store.size(), r -> rollups.add(new long[]{r.start, r.count,
+                r.heartRateMin, r.heartRateMax, r.heartRateSum,
+                r.saturationMin, r.saturationMax, r.saturationSum,
+                r.temperatureMin, r.temperatureMax, r.temperatureSum, r.badPostureCount}));
+        return rollups;
+    }
+
+    private static void assertSameBuckets(List<long[]> expected, List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            for (int j = 0; j < expected.get(i).length; j++) {
+                assertEquals("bucket " + i + " field " + j, expected.get(i)[j], actual.get(i)[j]);
+            }
+        }
+    }
+
+    private void assertAllTiersMatch(Rollups rollups) throws IOException {
+        for (long width : new long[]{Rollups.SECOND, Rollups.MINUTE, Rollups.HOUR}) {
+            assertSameBuckets(bruteForce(width), stored(rollups.getStore(width)));
+        }
+    }
+
+    @Test
+    public void incrementalMatchesBruteForce() throws IOException {
+        generate(20_000, 1);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            SampleBatch batch = new SampleBatch(32);
+            raw.read(0, raw.size(), (timestamp, heartRate, saturation, temperature, badPosture) -> {
+                batch.add(timestamp, heartRate, saturation, temperature, badPosture);
+                if (batch.isFull()) {
+                    try {
+                        rollups.add(batch);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    batch.clear();
+                }
+            });
+            rollups.add(batch);
+
+            assertAllTiersMatch(rollups);
+        }
+    }
+
+    @Test
+    public void catchUpAfterRestartMatchesBruteForce() throws IOException {
+        generate(5_000, 2);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+        }
+        // More samples persisted while the rollups were closed, e.g. the open buckets lost in a crash
+        generate(5_000, 3);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            assertAllTiersMatch(rollups);
+        }
+    }
+
+    @Test
+    public void rebuildMatchesBruteForce() throws IOException {
+        generate(10_000, 4);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            // Corrupt the tiers with unrelated data, then rebuild
+            rollups.add(Long.MAX_VALUE / 2, 1, 1, 1, false);
+            rollups.add(Long.MAX_VALUE / 2 + Rollups.HOUR * 2, 1, 1, 1, false);
+            rollups.rebuild(raw);
+            assertAllTiersMatch(rollups);
+        }
+    }
+
+    @Test
+    public void coarseTiersStaySmall() throws IOException {
+        // A day at 1 Hz
+        long start = 1_700_000_000_000L;
+        for (int i = 0; i < 86_400; i++) {
+            raw.append(start + i * 1000L, 70, 97, 365, false);
+        }
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            assertEquals(86_399, rollups.getStore(Rollups.SECOND).size());
+            assertEquals(1439, rollups.getStore(Rollups.MINUTE).size(), 1);
+            assertEquals(23, rollups.getStore(Rollups.HOUR).size(), 1);
+        }
+    }
+
+    // A sample hours later closes every open bucket, so the stores show what they held
+    private void closeOpenBuckets(Rollups rollups) throws IOException {
+        timestamp += 3 * Rollups.HOUR;
+        raw.append(timestamp, 70, 97, 365, false);
+        rollups.add(timestamp, 70, 97, 365, false);
+    }
+
+    private void feed(Rollups rollups, long from) throws IOException {
+        SampleBatch batch = new SampleBatch(64);
+        for (long i = from; i < raw.size(); i += batch.size()) {
+            batch.clear();
+            raw.read(i, i + batch.capacity(), batch::add);
+            rollups.add(batch);
+        }
+    }
+
+    @Test
+    public void snapshotRestoresTheOpenBuckets() throws IOException {
+        generate(5_000, 5);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            rollups.snapshot(raw);
+        }
+        // Persisted after the snapshot, lost from the rollups in a crash
+        generate(3_000, 6);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            closeOpenBuckets(rollups);
+            assertAllTiersMatch(rollups);
+        }
+    }
+
+    @Test
+    public void snapshotOlderThanTheStoresIsOnlyUsedWhereItStillHolds() throws IOException {
+        generate(5_000, 7);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            rollups.snapshot(raw);
+            // The tiers store more buckets, then the process dies before the next snapshot
+            long from = raw.size();
+            generate(4_000, 8);
+            feed(rollups, from);
+        }
+        generate(1_000, 9);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            closeOpenBuckets(rollups);
+            assertAllTiersMatch(rollups);
+        }
+    }
+
+    @Test
+    public void unusableSnapshotFallsBackToTheStoredBuckets() throws IOException {
+        generate(5_000, 10);
+        File snapshot = new File(directory, "health_rollup.snap");
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            rollups.snapshot(raw);
+        }
+        // Killed while writing the next one: the temporary file is left behind, the snapshot is intact
+        Files.write(new File(directory, "health_rollup.snap.tmp").toPath(), new byte[]{1, 2, 3});
+        generate(500, 11);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            rollups.snapshot(raw);
+        }
+        // A flipped byte fails the checksum
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(40);
+            int value = file.read();
+            file.seek(40);
+            file.write(value ^ 0x10);
+        }
+        generate(500, 12);
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            closeOpenBuckets(rollups);
+            assertAllTiersMatch(rollups);
+        }
+    }
+
+    // Restart after 50 minutes at 50 Hz: with a snapshot at the end nothing is replayed,
+    // without one the whole open hour is
+    @Test
+    public void benchmarkCatchUpWithAndWithoutSnapshot() throws IOException {
+        long start = 1_700_000_000_000L - Math.floorMod(1_700_000_000_000L, Rollups.HOUR);
+        SampleBatch batch = new SampleBatch(1000);
+        for (int i = 0; i < 50 * 60 * 50; i++) {
+            batch.add(start + i * 20L, 60 + i % 50, 97, 365, false);
+            if (batch.isFull()) {
+                raw.append(batch);
+                batch.clear();
+            }
+        }
+        try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+            rollups.catchUp(raw);
+            rollups.snapshot(raw);
+        }
+        long withSnapshot = Long.MAX_VALUE;
+        long withoutSnapshot = Long.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long begin = System.nanoTime();
+            try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+                rollups.catchUp(raw);
+            }
+            withSnapshot = Math.min(withSnapshot, System.nanoTime() - begin);
+        }
+        File snapshot = new File(directory, "health_rollup.snap");
+        byte[] saved = Files.readAllBytes(snapshot.toPath());
+        for (int round = 0; round < 5; round++) {
+            snapshot.delete();
+            long begin = System.nanoTime();
+            try (Rollups rollups = new Rollups(directory, "health_rollup")) {
+                rollups.catchUp(raw);
+            }
+            withoutSnapshot = Math.min(withoutSnapshot, System.nanoTime() - begin);
+        }
+        Files.write(snapshot.toPath(), saved);
+        System.out.printf("Rollups: catch-up of %d samples, %.2f ms with a snapshot, %.2f ms without%n",
+                raw.size(), withSnapshot / 1e6, withoutSnapshot / 1e6);
+        assertTrue(withSnapshot * 5 < withoutSnapshot);
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.s;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+public class SampleCodecTest {
+
+    private static void assertRoundTrip(SampleCodec codec, SampleBatch batch) throws IOException {
+        int length = codec.encode(batch);
+        SampleBatch decoded = new SampleBatch(batch.capacity());
+        SampleCodec.decode(Arrays.copyOf(codec.buffer(), length), 0, length, decoded);
+        int size = batch.size();
+        assertEquals(size, decoded.size());
+        assertArrayEquals(Arrays.copyOf(batch.timestamps, size), Arrays.copyOf(decoded.timestamps, size));
+        assertArrayEquals(Arrays.copyOf(batch.heartRates, size), Arrays.copyOf(decoded.heartRates, size));
+        assertArrayEquals(Arrays.copyOf(batch.saturations, size), Arrays.copyOf(decoded.saturations, size));
+        assertArrayEquals(Arrays.copyOf(batch.temperatures, size), Arrays.copyOf(decoded.temperatures, size));
+        for (int i = 0; i < size; i++) assertEquals(batch.badPostures[i], decoded.badPostures[i]);
+    }
+
+    // A sensor at about 4 Hz with arrival jitter, heart rate wandering, saturation and
+    // temperature mostly steady, posture changing now and then
+    private static void realistic(Random random, SampleBatch batch, long start, int count) {
+        long timestamp = start;
+        int heartRate = 70;
+        int saturation = 97;
+        int temperature = 365;
+        boolean badPosture = false;
+        for (int i = 0; i < count; i++) {
+            timestamp += 250 + random.nextInt(9) - 4;
+            if (random.nextInt(3) == 0) heartRate = Math.max(45, Math.min(140, heartRate + random.nextInt(5) - 2));
+            if (random.nextInt(20) == 0) saturation = Math.max(90, Math.min(100, saturation + random.nextInt(3) - 1));
+            if (random.nextInt(200) == 0) temperature += random.nextInt(3) - 1;
+            if (random.nextInt(400) == 0) badPosture = !badPosture;
+            batch.add(timestamp, heartRate, saturation, temperature, badPosture);
+        }
+    }
+
+    @Test
+    public void fuzzRoundTrip() throws IOException {
+        Random random = new Random(42);
+        SampleCodec codec = new SampleCodec();
+        for (int round = 0; round < 2000; round++) {
+            int count = random.nextInt(round % 10 == 0 ? 3 : 2048);
+            SampleBatch batch = new SampleBatch(2048);
+            switch (round % 5) {
+                case 0: // Anything at all, including the extremes
+                    for (int i = 0; i < count; i++) {
+                        long timestamp = random.nextInt(10) == 0
+                                ? (random.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE) : random.nextLong();
+                        int value = random.nextInt(10) == 0 ? Integer.MIN_VALUE : random.nextInt();
+                        batch.add(timestamp, value, random.nextInt(), Integer.MAX_VALUE - random.nextInt(3), random.nextBoolean());
+                    }
+                    break;
+                case 1: // Constant
+                    for (int i = 0; i < count; i++) batch.add(1_700_000_000_000L, 72, 98, 365, true);
+                    break;
+                case 2: // Small values, irregular times, gaps and steps back in time
+                    long timestamp = random.nextLong() >> 20;
+                    for (int i = 0; i < count; i++) {
+                        timestamp += random.nextInt(50) == 0 ? random.nextInt() : random.nextInt(600) - 100;
+                        batch.add(timestamp, random.nextInt(300), random.nextInt(101), random.nextInt(500) - 50, random.nextInt(7) == 0);
+                    }
+                    break;
+                default:
+                    realistic(random, batch, 1_700_000_000_000L + random.nextInt(), count);
+            }
+            assertRoundTrip(codec, batch);
+        }
+    }
+
+    @Test
+    public void truncatedOrForeignBlocksAreRejected() throws IOException {
+        SampleCodec codec = new SampleCodec();
+        SampleBatch batch = new SampleBatch(1024);
+        realistic(new Random(3), batch, 0, 1024);
+        int length = codec.encode(batch);
+        byte[] block = Arrays.copyOf(codec.buffer(), length);
+        SampleBatch decoded = new SampleBatch(1024);
+        for (int cut : new int[]{0, 1, 5, length / 2, length - 1}) {
+            try {
+                SampleCodec.decode(block, 0, cut, decoded);
+                fail("Decoded a block cut at " + cut);
+            } catch (IOException expected) {
+                // Ran out of bits
+            }
+        }
+        try {
+            SampleCodec.decode(block, 0, length, new SampleBatch(10));
+            fail("Decoded more samples than fit");
+        } catch (IOException expected) {
+            // The batch is too small
+        }
+        byte[] foreign = "72;98;36.5;0;%".getBytes(StandardCharsets.US_ASCII);
+        try {
+            SampleCodec.decode(foreign, 0, foreign.length, decoded);
+            fail("Decoded text");
+        } catch (IOException expected) {
+            // Not a sample block
+        }
+    }
+
+    @Test
+    public void compressionOfRealisticData() throws IOException {
+        SampleCodec codec = new SampleCodec();
+        Random random = new Random(5);
+        int blocks = 200;
+        long encoded = 0;
+        long text = 0;
+        SampleBatch batch = new SampleBatch(HealthDataStore.BLOCK_RECORDS);
+        long start = 1_700_000_000_000L;
+        for (int block = 0; block < blocks; block++) {
+            batch.clear();
+            realistic(random, batch, start, batch.capacity());
+            start = batch.timestamps[batch.size() - 1];
+            encoded += codec.encode(batch) + 8; // Plus the block header of the store
+            for (int i = 0; i < batch.size(); i++) {
+                // The line the text log used to keep for every sample
+                text += ("Frequenza cardiaca: " + batch.heartRates[i] + ", Saturazione: " + batch.saturations[i]
+                        + ", Temperatura: " + SampleBatch.formatTemperature(batch.temperatures[i])
+                        + ", Postura: " + batch.badPostures[i] + " a " + batch.timestamps[i] + "\n").length();
+            }
+            assertRoundTrip(codec, batch);
+        }
+        long samples = (long) blocks * batch.capacity();
+        double perSample = (double) encoded / samples;
+        System.out.printf("SampleCodec: %.2f bytes/sample, %.1fx smaller than fixed records, %.1fx smaller than text%n",
+                perSample, HealthDataStore.RECORD_SIZE / perSample, text / (double) encoded);
+        assertTrue(HealthDataStore.RECORD_SIZE / perSample >= 10);
+    }
+
+    @Test
+    public void benchmarkEncodeDecode() throws IOException {
+        SampleCodec codec = new SampleCodec();
+        SampleBatch batch = new SampleBatch(HealthDataStore.BLOCK_RECORDS);
+        realistic(new Random(8), batch, 1_700_000_000_000L, batch.capacity());
+        SampleBatch decoded = new SampleBatch(batch.capacity());
+        int length = codec.encode(batch);
+        byte[] block = Arrays.copyOf(codec.buffer(), length);
+        int rounds = 20_000;
+
+        for (int i = 0; i < rounds / 4; i++) {
+            codec.encode(batch);
+            SampleCodec.decode(block, 0, length, decoded);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) codec.encode(batch);
+        double encodeSeconds = (System.nanoTime() - start) / 1e9;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) SampleCodec.decode(block, 0, length, decoded);
+        double decodeSeconds = (System.nanoTime() - start) / 1e9;
+
+        double samples = (double) rounds * batch.size();
+        System.out.printf("SampleCodec: encode %.1f M samples/s, decode %.1f M samples/s%n",
+                samples / encodeSeconds / 1e6, samples / decodeSeconds / 1e6);
+        assertTrue(samples / decodeSeconds > 1_000_000);
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class SampleHubTest {
+
+    // Executor that only runs tasks when asked, like a busy main thread
+    private static class QueuedExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) task.run();
+        }
+    }
+
+    private static class Recorder implements SampleHub.Subscriber {
+        final List<Long> timestamps = new ArrayList<>();
+        final List<Long> firstSequences = new ArrayList<>();
+        int deliveries;
+
+        @Override
+        public void onSamples(SampleBatch batch, long firstSequence) {
+            deliveries++;
+            firstSequences.add(firstSequence);
+            for (int i = 0; i < batch.size(); i++) {
+                timestamps.add(batch.timestamps[i]);
+            }
+        }
+    }
+
+    @Test
+    public void coalescesSamplesIntoOneDelivery() {
+        SampleHub hub = new SampleHub(1024, 256);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, executor, -1);
+
+        for (int i = 0; i < 100; i++) {
+            hub.publish(i, 70, 98, 365, false);
+        }
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+
+        assertEquals(1, recorder.deliveries);
+        assertEquals(100, recorder.timestamps.size());
+        assertEquals(0L, (long) recorder.firstSequences.get(0));
+        assertEquals(99, hub.getLatestSequence());
+    }
+
+    @Test
+    public void splitsLargeBacklogIntoBatches() {
+        SampleHub hub = new SampleHub(1024, 64);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, executor, -1);
+
+        for (int i = 0; i < 200; i++) {
+            hub.publish(i, 70, 98, 365, false);
+        }
+        executor.runAll();
+
+        assertEquals(4, recorder.deliveries);
+        assertEquals(200, recorder.timestamps.size());
+        assertEquals(192L, (long) recorder.firstSequences.get(3));
+    }
+
+    // A subscriber slower than the publisher must not keep the executor (the main looper) to itself
+    @Test
+    public void executorGetsControlBackBetweenDeliveries() {
+        SampleHub hub = new SampleHub(1024, 64);
+        QueuedExecutor executor = new QueuedExecutor();
+        int[] published = {0};
+        List<Integer> sizes = new ArrayList<>();
+        hub.subscribe((batch, firstSequence) -> {
+            sizes.add(batch.size());
+            // A burst arriving while the subscriber is busy
+            for (int i = 0; i < 3 && published[0] < 20; i++) hub.publish(published[0]++, 70, 98, 365, false);
+        }, executor, -1, SampleHub.Policy.LATEST);
+
+        hub.publish(published[0]++, 70, 98, 365, false);
+        for (int delivery = 1; delivery <= 8; delivery++) {
+            assertEquals(1, executor.tasks.size());
+            executor.tasks.poll().run();
+            assertEquals(delivery, sizes.size());
+        }
+        assertEquals(0, executor.tasks.size());
+        assertEquals(20, published[0]);
+
+        // Same for a backlog larger than one batch
+        SampleHub backlog = new SampleHub(1024, 8);
+        for (int i = 0; i < 20; i++) backlog.publish(i, 70, 98, 365, false);
+        Recorder recorder = new Recorder();
+        backlog.subscribe(recorder, executor, 0);
+        executor.tasks.poll().run();
+        assertEquals(1, recorder.deliveries);
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(3, recorder.deliveries);
+        assertEquals(20, recorder.timestamps.size());
+    }
+
+    @Test
+    public void replaysFromSequenceAfterResubscribe() {
+        SampleHub hub = new SampleHub(1024, 256);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+
+        hub.subscribe(recorder, executor, -1);
+        for (int i = 0; i < 10; i++) hub.publish(i, 70, 98, 365, false);
+        executor.runAll();
+        hub.unsubscribe(recorder);
+
+        // Published while the activity was stopped
+        for (int i = 10; i < 25; i++) hub.publish(i, 70, 98, 365, false);
+        executor.runAll();
+        assertEquals(10, recorder.timestamps.size());
+
+        hub.subscribe(recorder, executor, 10);
+        executor.runAll();
+        assertEquals(25, recorder.timestamps.size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals(i, (long) recorder.timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void replaySkipsSamplesNoLongerInTheRing() {
+        SampleHub hub = new SampleHub(16, 256);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+
+        for (int i = 0; i < 40; i++) hub.publish(i, 70, 98, 365, false);
+        hub.subscribe(recorder, executor, 0);
+        executor.runAll();
+
+        assertEquals(16, recorder.timestamps.size());
+        assertEquals(24L, (long) recorder.timestamps.get(0));
+    }
+
+    @Test
+    public void pausedHubCatchesUpInOneDelivery() {
+        SampleHub hub = new SampleHub(1024, 256);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, executor, -1);
+
+        // Screen off
+        hub.setPaused(true);
+        for (int i = 0; i < 100; i++) {
+            hub.publish(i, 70, 98, 365, false);
+            executor.runAll();
+        }
+        assertEquals(0, recorder.deliveries);
+        assertEquals(1, hub.getSubscriberCount());
+
+        hub.setPaused(false);
+        assertEquals(1, executor.tasks.size());
+        executor.runAll();
+        assertEquals(1, recorder.deliveries);
+        assertEquals(100, recorder.timestamps.size());
+        assertEquals(0L, (long) recorder.firstSequences.get(0));
+    }
+
+    @Test
+    public void latestPolicyConflatesABurstIntoTheNewestSample() {
+        IngestMetrics metrics = new IngestMetrics();
+        SampleHub hub = new SampleHub(1024, 256, metrics);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, executor, -1, SampleHub.Policy.LATEST);
+
+        for (int i = 0; i < 100; i++) hub.publish(i, 70, 98, 365, false);
+        executor.runAll();
+        assertEquals(1, recorder.deliveries);
+        assertEquals(99L, (long) recorder.timestamps.get(0));
+        assertEquals(99L, (long) recorder.firstSequences.get(0));
+        assertEquals(99, metrics.snapshot(null).conflated);
+
+        hub.publish(100, 70, 98, 365, false);
+        executor.runAll();
+        assertEquals(100L, (long) recorder.timestamps.get(1));
+        assertEquals(99, metrics.snapshot(null).conflated);
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestWindow() {
+        IngestMetrics metrics = new IngestMetrics();
+        SampleHub hub = new SampleHub(1024, 64, metrics);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+        hub.subscribe(recorder, executor, -1, SampleHub.Policy.dropOldest(100));
+
+        for (int i = 0; i < 300; i++) hub.publish(i, 70, 98, 365, false);
+        executor.runAll();
+        assertEquals(100, recorder.timestamps.size());
+        assertEquals(200L, (long) recorder.timestamps.get(0));
+        assertEquals(299L, (long) recorder.timestamps.get(99));
+        assertEquals(200, metrics.snapshot(null).deliveryDropped);
+        assertEquals(0, metrics.snapshot(null).conflated);
+    }
+
+    @Test
+    public void newOnlySubscriptionDoesNotReplay() {
+        SampleHub hub = new SampleHub(16, 256);
+        QueuedExecutor executor = new QueuedExecutor();
+        Recorder recorder = new Recorder();
+
+        for (int i = 0; i < 5; i++) hub.publish(i, 70, 98, 365, false);
+        hub.subscribe(recorder, executor, -1);
+        executor.runAll();
+        assertEquals(0, recorder.deliveries);
+
+        hub.publish(5, 70, 98, 365, false);
+        executor.runAll();
+        assertEquals(1, recorder.timestamps.size());
+        assertEquals(5L, (long) recorder.timestamps.get(0));
+    }
+
+    // Per-sample latency and publisher CPU of the batched path, one sample in flight at a
+    // time; comparable with the broadcast numbers printed by SampleDeliveryBenchmark on a device
+    @Test
+    public void benchmarkPublishToDelivery() throws Exception {
+        int samples = 20_000;
+        SampleHub hub = new SampleHub(4096, 256);
+        ExecutorService consumer = Executors.newSingleThreadExecutor();
+        Semaphore delivered = new Semaphore(0);
+        long[] latencySum = new long[1];
+        hub.subscribe((batch, firstSequence) -> {
+            long now = System.nanoTime();
+            for (int i = 0; i < batch.size(); i++) {
+                latencySum[0] += now - batch.timestamps[i];
+            }
+            delivered.release(batch.size());
+        }, consumer, -1);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuStart = threads.getCurrentThreadCpuTime();
+        for (int i = 0; i < samples; i++) {
+            // The timestamp carries the publish time here to measure the latency
+            hub.publish(System.nanoTime(), 70, 98, 365, false);
+            assertTrue(delivered.tryAcquire(5, TimeUnit.SECONDS));
+        }
+        long cpu = threads.getCurrentThreadCpuTime() - cpuStart;
+        consumer.shutdown();
+
+        System.out.printf("SampleHub: %.2f us publisher CPU/sample, %.1f us mean latency to subscriber%n",
+                cpu / 1e3 / samples, latencySum[0] / 1e3 / samples);
+    }
+}
@@ -0,0 +1,181 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SessionManagerTest {
+
+    private SessionManager sessions;
+
+    @After
+    public void tearDown() {
+        if (sessions != null) sessions.stopAll();
+    }
+
+    // A sensor that streams one frame with its own heart rate per read until closed
+    private static final class StreamingConnection implements ConnectionManager.Connection {
+        private final byte[] frame;
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        StreamingConnection(int heartRate) {
+            frame = (heartRate + ";98;36.5;0;%").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    try {
+                        if (closed.await(1, TimeUnit.MILLISECONDS)) throw new IOException("Connection closed");
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    System.arraycopy(frame, 0, b, off, frame.length);
+                    return frame.length;
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    // Heart rates each device received, by address
+    private final Map<String, Map<Integer, AtomicInteger>> received = new ConcurrentHashMap<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final CountDownLatch gaveUp = new CountDownLatch(1);
+
+    private final DeviceSession.Listener listener = new DeviceSession.Listener() {
+        @Override
+        public void onStateChanged(DeviceSession session, ConnectionManager.State state) {
+        }
+
+        @Override
+        public void onAlert(DeviceSession session, AlertRule rule, int episodes, boolean audible) {
+        }
+
+        @Override
+        public void onAlertCleared(DeviceSession session, AlertRule rule) {
+        }
+
+        @Override
+        public void onGaveUp(DeviceSession session) {
+            sessions.remove(session);
+            gaveUp.countDown();
+        }
+    };
+
+    // Device "n" sends heart rate 60 + n; device "unreachable" never connects
+    private DeviceSession createSession(String address) {
+        created.incrementAndGet();
+        Map<Integer, AtomicInteger> counts = received.computeIfAbsent(address, a -> new ConcurrentHashMap<>());
+        return new DeviceSession(address, () -> {
+            if (address.equals("unreachable")) throw new IOException("Device unreachable");
+            return new StreamingConnection(60 + Integer.parseInt(address));
+        }, (timestamp, heartRate, saturation, temperature, badPosture) -> {
+            counts.computeIfAbsent(heartRate, h -> new AtomicInteger()).incrementAndGet();
+            return true;
+        }, AckPolicy.PerRead::new, listener, 10, 50, 100);
+    }
+
+    private int receivedFrom(String address) {
+        Map<Integer, AtomicInteger> counts = received.get(address);
+        AtomicInteger count = counts == null ? null : counts.get(60 + Integer.parseInt(address));
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    public void duplicateStartsShareOneSession() throws Exception {
+        sessions = new SessionManager(this::createSession, 4);
+        assertEquals(SessionManager.StartResult.STARTED, sessions.start("1"));
+        DeviceSession first = sessions.get("1");
+        for (int i = 0; i < 5; i++) {
+            assertEquals(SessionManager.StartResult.ALREADY_RUNNING, sessions.start("1"));
+        }
+        assertEquals(1, created.get());
+        assertSame(first, sessions.get("1"));
+        assertEquals(1, sessions.liveCount());
+    }
+
+    @Test
+    public void devicesAreReadConcurrentlyAndKeptApart() throws Exception {
+        sessions = new SessionManager(this::createSession, 4);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(SessionManager.StartResult.STARTED, sessions.start(String.valueOf(i)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        for (int i = 0; i < 4; i++) {
+            while (receivedFrom(String.valueOf(i)) < 100 && System.nanoTime() < deadline) {
+                Thread.sleep(5);
+            }
+        }
+        for (int i = 0; i < 4; i++) {
+            String address = String.valueOf(i);
+            assertTrue(receivedFrom(address) >= 100);
+            // Only the device's own heart rate reached its sink
+            assertEquals(1, received.get(address).size());
+            DeviceSession session = sessions.get(address);
+            assertEquals(ConnectionManager.State.CONNECTED, session.getState());
+            assertTrue(session.getMetrics().snapshot(null).accepted >= 100);
+        }
+        assertEquals(4, sessions.liveCount());
+
+        sessions.stopAll();
+        assertTrue(sessions.getSessions().isEmpty());
+    }
+
+    @Test
+    public void limitsTheNumberOfDevices() {
+        sessions = new SessionManager(this::createSession, 2);
+        assertEquals(SessionManager.StartResult.STARTED, sessions.start("1"));
+        assertEquals(SessionManager.StartResult.STARTED, sessions.start("2"));
+        assertEquals(SessionManager.StartResult.TOO_MANY_DEVICES, sessions.start("3"));
+
+        assertTrue(sessions.stop("1"));
+        assertFalse(sessions.stop("1"));
+        assertNull(sessions.get("1"));
+        assertEquals(SessionManager.StartResult.STARTED, sessions.start("3"));
+    }
+
+    @Test
+    public void sessionThatGaveUpIsReplacedOnNextStart() throws Exception {
+        sessions = new SessionManager(this::createSession, 4);
+        assertEquals(SessionManager.StartResult.STARTED, sessions.start("unreachable"));
+        assertTrue(gaveUp.await(5, TimeUnit.SECONDS));
+        assertNull(sessions.get("unreachable"));
+
+        assertEquals(SessionManager.StartResult.STARTED, sessions.start("unreachable"));
+        assertEquals(2, created.get());
+    }
+}
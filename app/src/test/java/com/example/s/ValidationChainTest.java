@@ -0,0 +1,92 @@
+package com.example.s;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ValidationChainTest {
+
+    @Test
+    public void standardChainGivesTheReason() {
+        ValidationChain chain = ValidationChain.standard(new AnomalyDetector());
+        assertEquals(RejectReason.CALIBRATION, chain.validate(0, 72, 98, 80));
+        assertEquals(RejectReason.ZERO_READING, chain.validate(250, 0, 98, 365));
+        assertEquals(RejectReason.ZERO_READING, chain.validate(500, 72, 0, 365));
+        assertEquals(RejectReason.OUT_OF_RANGE, chain.validate(750, 72, 98, 3650));
+        assertNull(chain.validate(1000, 72, 98, 365));
+    }
+
+    @Test
+    public void firstRejectingRuleWinsAndTheRestDoNotRun() {
+        List<String> ran = new ArrayList<>();
+        ValidationChain chain = new ValidationChain()
+                .then((timestamp, heartRate, saturation, temperature) -> {
+                    ran.add("first");
+                    return null;
+                })
+                .reject(RejectReason.ZERO_READING, (heartRate, saturation, temperature) -> {
+                    ran.add("second");
+                    return heartRate == 0;
+                })
+                .then((timestamp, heartRate, saturation, temperature) -> {
+                    ran.add("third");
+                    return RejectReason.ARTIFACT;
+                });
+        assertEquals(3, chain.size());
+        assertEquals(RejectReason.ZERO_READING, chain.validate(0, 0, 98, 365));
+        assertEquals("[first, second]", ran.toString());
+        ran.clear();
+        assertEquals(RejectReason.ARTIFACT, chain.validate(0, 72, 98, 365));
+        assertEquals("[first, second, third]", ran.toString());
+        assertNull(new ValidationChain().validate(0, 0, 0, 0));
+    }
+
+    // Frames/s through the decoder and a chain of passing range checks, so every rule runs
+    private static double framesPerSecond(int ruleCount, byte[] chunk) {
+        ValidationChain chain = new ValidationChain();
+        for (int i = 0; i < ruleCount; i++) {
+            int limit = 300 + i;
+            chain.reject(RejectReason.OUT_OF_RANGE, (heartRate, saturation, temperature) ->
+                    heartRate > limit || saturation > limit || temperature > limit * 10);
+        }
+        long[] accepted = new long[1];
+        long[] timestamp = new long[1];
+        FrameDecoder decoder = new FrameDecoder((heartRate, saturation, temperature, badPosture) -> {
+            if (chain.validate(timestamp[0] += 250, heartRate, saturation, temperature) == null) accepted[0]++;
+        });
+
+        int rounds = 20_000;
+        for (int i = 0; i < rounds / 4; i++) {
+            decoder.feed(chunk, 0, chunk.length);
+        }
+        long before = decoder.getFramesDecoded();
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            decoder.feed(chunk, 0, chunk.length);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        assertEquals(decoder.getFramesDecoded(), accepted[0]);
+        return (decoder.getFramesDecoded() - before) / seconds;
+    }
+
+    @Test
+    public void benchmarkFramesPerSecondByRuleCount() {
+        byte[] frame = "72;98;36.5;1;%".getBytes(StandardCharsets.US_ASCII);
+        byte[] chunk = new byte[4096 - 4096 % frame.length];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = frame[i % frame.length];
+        }
+        for (int rules : new int[]{0, 5, 20}) {
+            framesPerSecond(rules, chunk); // Warm up the JIT first
+        }
+        for (int rules : new int[]{0, 5, 20}) {
+            System.out.printf("ValidationChain: %d rules, %.0f frames/s through decoder and chain%n",
+                    rules, framesPerSecond(rules, chunk));
+        }
+    }
+}